@@ -0,0 +1,43 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: BenchmarkMain.java
+ * Purpose:  Entry point of benchmarks.jar. Runs JMH and writes the
+ *           results as JSON.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: mvn -B package
+ * Execution Command: java -jar benchmarks/target/benchmarks.jar [JMH options]
+ */
+
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH with the given options. Unless the options choose another result
+ * format, results are written to jmh-result.json so runs can be compared
+ * by tools.
+ */
+public final class BenchmarkMain {
+
+  private BenchmarkMain() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    List<String> options = new ArrayList<>(Arrays.asList(args));
+    if (!options.contains("-rf")) {
+      options.add("-rf");
+      options.add("json");
+    }
+    if (!options.contains("-rff")) {
+      options.add("-rff");
+      options.add("jmh-result.json");
+    }
+    org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+  }
+}
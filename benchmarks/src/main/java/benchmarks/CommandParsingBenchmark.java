@@ -0,0 +1,93 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: CommandParsingBenchmark.java
+ * Purpose:  Measures how long the server takes to read a protocol v1
+ *           request line and find its command and argument.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: mvn -B package
+ */
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the decoding every request goes through before it is dispatched, for
+ * requests of different lengths. splitLine is the way requests were decoded
+ * before CommandDecoder: read into a new string, split on whitespace and
+ * upper case the command. decodeLine is CommandDecoder. Run with -prof gc
+ * to compare the bytes allocated per request (gc.alloc.rate.norm); decoding
+ * a command without an argument should allocate nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+
+  private static final String[] COMMANDS = {"DOWNLOAD", "RANGE", "RESUME", "SIZE", "CD",
+      "DIR", "PWD", "LIST", "SEARCH", "HASH", "RDOWNLOAD", "STATS", "BYE"};
+
+  private static final MethodHandle READ_LINE = ServerClasses.method(
+      "Protocol", "readLine",
+      MethodType.methodType(String.class, InputStream.class), InputStream.class);
+  private static final MethodHandle READ = ServerClasses.method(
+      "CommandDecoder", "read",
+      MethodType.methodType(boolean.class, Object.class, InputStream.class), InputStream.class);
+  private static final MethodHandle COMMAND = ServerClasses.method(
+      "CommandDecoder", "command",
+      MethodType.methodType(String.class, Object.class));
+  private static final MethodHandle REST = ServerClasses.method(
+      "CommandDecoder", "rest",
+      MethodType.methodType(String.class, Object.class, int.class), int.class);
+
+  @Param({"PWD", "CD /home/user/downloads", "DOWNLOAD annual report 2018.pdf",
+      "RANGE 0 8000000 big.bin"})
+  public String request;
+
+  private ByteArrayInputStream line;
+  private Object decoder;
+
+  @Setup
+  public void setup() {
+    line = new ByteArrayInputStream((request + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    decoder = ServerClasses.construct("CommandDecoder", new Object[]{String[].class},
+        (Object) COMMANDS);
+  }
+
+  @Benchmark
+  public String splitLine() throws Throwable {
+    line.reset();
+    String rawInput = (String) READ_LINE.invokeExact((InputStream) line);
+    String command = rawInput.split("\\s+").length >= 2 ? rawInput.split("\\s+")[0] : rawInput;
+    return command.toUpperCase();
+  }
+
+  @Benchmark
+  public String decodeLine() throws Throwable {
+    line.reset();
+    boolean read = (boolean) READ.invokeExact(decoder, (InputStream) line);
+    return (String) COMMAND.invokeExact(decoder);
+  }
+
+  @Benchmark
+  public String decodeArgument() throws Throwable {
+    line.reset();
+    boolean read = (boolean) READ.invokeExact(decoder, (InputStream) line);
+    String command = (String) COMMAND.invokeExact(decoder);
+    return (String) REST.invokeExact(decoder, 1);
+  }
+}
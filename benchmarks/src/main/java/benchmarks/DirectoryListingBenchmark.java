@@ -0,0 +1,108 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: DirectoryListingBenchmark.java
+ * Purpose:  Measures how long DIR takes to build a listing, read from
+ *           the disk and served from the directory cache.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: mvn -B package
+ */
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Lists directories of 10 to 1,000,000 empty files. uncached() is what
+ * getDirectory costs on a cache miss, cached() is a hit.
+ *
+ * The directories are created under java.io.tmpdir the first time and reused
+ * afterwards, because creating a million files takes a while.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryListingBenchmark {
+
+  private static final MethodHandle LIST_DIRECTORY = ServerClasses.method(
+      "ClientConnection", "listDirectory",
+      MethodType.methodType(String.class, File.class), File.class);
+
+  private static final MethodHandle CACHE_GET = ServerClasses.method(
+      "DirectoryCache", "get",
+      MethodType.methodType(String.class, Object.class, File.class, Function.class),
+      File.class, Function.class);
+
+  @Param({"10", "1000", "100000", "1000000"})
+  public int entries;
+
+  private File directory;
+  private Object cache;
+  private Function<File, String> loader;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = createDirectory(entries);
+    cache = ServerClasses.construct("DirectoryCache", new Object[]{int.class}, 16);
+    loader = folder -> {
+      try {
+        return (String) LIST_DIRECTORY.invokeExact(folder);
+      } catch (Throwable ex) {
+        throw new IllegalStateException(ex);
+      }
+    };
+  }
+
+  @Benchmark
+  public String uncached() throws Throwable {
+    return (String) LIST_DIRECTORY.invokeExact(directory);
+  }
+
+  @Benchmark
+  public String cached() throws Throwable {
+    return (String) CACHE_GET.invokeExact(cache, directory, loader);
+  }
+
+  /**
+   * Creates a directory with the given number of empty files, or reuses it.
+   *
+   * @param entries number of files
+   * @return the directory
+   * @throws IOException if the files can't be created
+   */
+  private static File createDirectory(int entries) throws IOException {
+    Path directory = Paths.get(System.getProperty("java.io.tmpdir"),
+        "download-server-benchmarks", "dir-" + entries);
+    Path complete = directory.resolveSibling("dir-" + entries + ".complete");
+    if (Files.exists(complete)) {
+      return directory.toFile();
+    }
+
+    Files.createDirectories(directory);
+    for (int i = 0; i < entries; i++) {
+      Path file = directory.resolve("file-" + i + ".txt");
+      if (!Files.exists(file)) {
+        Files.createFile(file);
+      }
+    }
+    // Marks the directory as finished, an interrupted setup starts over
+    Files.createFile(complete);
+    return directory.toFile();
+  }
+}
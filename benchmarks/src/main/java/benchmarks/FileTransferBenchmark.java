@@ -0,0 +1,152 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: FileTransferBenchmark.java
+ * Purpose:  Measures the ways DOWNLOAD can move a file to a client,
+ *           over a loopback socket.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: mvn -B package
+ */
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a file over a loopback connection whose other end is drained by a
+ * background thread. copyLoop() and copyLoopWithChecksum() run the server's
+ * copyFile, the stream path used for compressed data and archives.
+ * zeroCopy() runs its transferFile. directBuffer() and
+ * directBufferWithChecksum() run copyChannel, which reads into a pooled
+ * direct buffer and writes it to the socket channel, skipping the heap.
+ * Both copy paths borrow their buffers from the pool, run with -prof gc to
+ * see that a download allocates next to nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileTransferBenchmark {
+
+  private static final MethodHandle COPY_FILE = ServerClasses.method(
+      "ClientConnection", "copyFile",
+      MethodType.methodType(long.class, Object.class, InputStream.class, long.class,
+          OutputStream.class, Object.class),
+      InputStream.class, long.class, OutputStream.class, "TransferDigest");
+
+  private static final MethodHandle TRANSFER_FILE = ServerClasses.method(
+      "ClientConnection", "transferFile",
+      MethodType.methodType(void.class, Object.class, FileChannel.class, long.class, long.class,
+          SocketChannel.class),
+      FileChannel.class, long.class, long.class, SocketChannel.class);
+
+  private static final MethodHandle COPY_CHANNEL = ServerClasses.method(
+      "ClientConnection", "copyChannel",
+      MethodType.methodType(void.class, Object.class, FileChannel.class, long.class, long.class,
+          SocketChannel.class, Object.class),
+      FileChannel.class, long.class, long.class, SocketChannel.class, "TransferDigest");
+
+  private static final MethodHandle CREATE_DIGEST = ServerClasses.method(
+      "TransferDigest", "create",
+      MethodType.methodType(Object.class, String.class), String.class);
+
+  @Param({"1048576", "67108864"})
+  public int size;
+
+  private Path file;
+  private FileInputStream fileReader;
+  private ServerSocketChannel listener;
+  private SocketChannel socket;
+  private OutputStream socketOut;
+  private Object connection;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = Files.createTempFile("download-server-benchmark", ".bin");
+    byte[] data = new byte[size];
+    new Random(42).nextBytes(data);
+    Files.write(file, data);
+    fileReader = new FileInputStream(file.toFile());
+
+    // The receiving end reads and discards everything, like a fast client
+    listener = ServerSocketChannel.open();
+    listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    Thread drain = new Thread(() -> {
+      ByteBuffer sink = ByteBuffer.allocateDirect(1024 * 1024);
+      try (SocketChannel client = listener.accept()) {
+        while (client.read(sink) != -1) {
+          sink.clear();
+        }
+      } catch (IOException ex) {
+        // Closed by tearDown
+      }
+    }, "Drain");
+    drain.setDaemon(true);
+    drain.start();
+
+    socket = SocketChannel.open(listener.getLocalAddress());
+    socketOut = socket.socket().getOutputStream();
+    connection = ServerClasses.construct("ClientConnection",
+        new Object[]{java.net.Socket.class}, socket.socket());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    socket.close();
+    listener.close();
+    fileReader.close();
+    Files.delete(file);
+  }
+
+  @Benchmark
+  public long copyLoop() throws Throwable {
+    fileReader.getChannel().position(0);
+    return (long) COPY_FILE.invokeExact(connection, (InputStream) fileReader, (long) size,
+        socketOut, (Object) null);
+  }
+
+  @Benchmark
+  public long copyLoopWithChecksum() throws Throwable {
+    fileReader.getChannel().position(0);
+    Object digest = (Object) CREATE_DIGEST.invokeExact("CRC32");
+    return (long) COPY_FILE.invokeExact(connection, (InputStream) fileReader, (long) size,
+        socketOut, digest);
+  }
+
+  @Benchmark
+  public void zeroCopy() throws Throwable {
+    TRANSFER_FILE.invokeExact(connection, fileReader.getChannel(), 0L, (long) size, socket);
+  }
+
+  @Benchmark
+  public void directBuffer() throws Throwable {
+    COPY_CHANNEL.invokeExact(connection, fileReader.getChannel(), 0L, (long) size, socket,
+        (Object) null);
+  }
+
+  @Benchmark
+  public void directBufferWithChecksum() throws Throwable {
+    Object digest = (Object) CREATE_DIGEST.invokeExact("CRC32");
+    COPY_CHANNEL.invokeExact(connection, fileReader.getChannel(), 0L, (long) size, socket,
+        digest);
+  }
+}
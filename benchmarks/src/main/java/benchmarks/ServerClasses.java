@@ -0,0 +1,86 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: ServerClasses.java
+ * Purpose:  Gives the benchmarks access to the server's classes,
+ *           which live in the default package.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: mvn -B package
+ */
+
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+/**
+ * JMH can't generate code for benchmarks in the default package, and classes
+ * in a named package can't name default package classes. The benchmarks
+ * therefore look the server's classes up by name and call them through method
+ * handles. Handles stored in static final fields are constants to the JIT, so
+ * calling through them costs about as much as a direct call.
+ */
+final class ServerClasses {
+
+  private ServerClasses() {
+  }
+
+  /**
+   * Finds a method, private or not.
+   *
+   * @param className  class in the default package, such as "ClientConnection"
+   * @param name       method name
+   * @param type       type the handle is adapted to. Server classes are
+   *                   replaced by Object, an instance method takes its
+   *                   receiver as the first parameter.
+   * @param parameters declared parameter types, server classes by name
+   * @return the handle
+   */
+  static MethodHandle method(String className, String name, MethodType type,
+                             Object... parameters) {
+    try {
+      Method method = find(className).getDeclaredMethod(name, types(parameters));
+      method.setAccessible(true);
+      return MethodHandles.lookup().unreflect(method).asType(type);
+    } catch (ReflectiveOperationException ex) {
+      throw new IllegalStateException("Server method " + className + "." + name + " not found", ex);
+    }
+  }
+
+  /**
+   * Creates an instance with a constructor, private or not.
+   *
+   * @param className  class in the default package
+   * @param parameters declared parameter types, server classes by name
+   * @param arguments  constructor arguments
+   * @return the new instance
+   */
+  static Object construct(String className, Object[] parameters, Object... arguments) {
+    try {
+      Constructor<?> constructor = find(className).getDeclaredConstructor(types(parameters));
+      constructor.setAccessible(true);
+      return constructor.newInstance(arguments);
+    } catch (ReflectiveOperationException ex) {
+      throw new IllegalStateException("Server class " + className + " can't be created", ex);
+    }
+  }
+
+  private static Class<?> find(String className) throws ClassNotFoundException {
+    return Class.forName(className);
+  }
+
+  private static Class<?>[] types(Object[] parameters) throws ClassNotFoundException {
+    Class<?>[] types = new Class<?>[parameters.length];
+    for (int i = 0; i < parameters.length; i++) {
+      types[i] = parameters[i] instanceof String
+          ? find((String) parameters[i]) : (Class<?>) parameters[i];
+    }
+    return types;
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: AdmissionControl.java
+ * Purpose:  Limits how many client sessions the server runs at once.
+ *           Connections beyond the limit wait in a bounded queue and
+ *           connections beyond the queue are told to come back later.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java
+ */
+
+import java.util.ArrayDeque;
+
+/**
+ * AdmissionControl sits between the accept loop and the engine. A session
+ * that fits under the limit starts right away. Otherwise it waits, still
+ * connected but not greeted, until a running session ends. When the queue is
+ * full too the caller refuses the connection with a BUSY reply carrying a
+ * retry-after hint, so a flood of connections costs a queue slot or a closed
+ * socket instead of a thread each.
+ *
+ * The hint is how long the sessions ahead of the client are expected to take:
+ * the average session length times the queued sessions per running slot.
+ */
+class AdmissionControl {
+
+  // Bounds of the retry-after hint in seconds
+  private static final int MIN_RETRY = 1;
+  private static final int MAX_RETRY = 60;
+
+  private final int maxSessions; // 0 for unlimited
+  private final int queueLength;
+
+  // Guarded by this
+  private int active = 0;
+  private final ArrayDeque<Runnable> waiting = new ArrayDeque<>();
+  private long admitted = 0;
+  private long rejected = 0;
+  private double averageSession = MIN_RETRY; // Seconds, moving average
+
+  /**
+   * Constructor.
+   *
+   * @param maxSessions most sessions served at once, 0 for unlimited
+   * @param queueLength most connections waiting for a session
+   */
+  AdmissionControl(int maxSessions, int queueLength) {
+    this.maxSessions = maxSessions;
+    this.queueLength = queueLength;
+  }
+
+  /**
+   * Starts a session now, queues it, or turns it away.
+   *
+   * @param session starts serving the connection, run at most once
+   * @return false if the connection has to be refused
+   */
+  boolean admit(Runnable session) {
+    synchronized (this) {
+      if (maxSessions > 0 && active >= maxSessions) {
+        if (waiting.size() >= queueLength) {
+          rejected++;
+          return false;
+        }
+        waiting.add(session);
+        return true;
+      }
+      active++;
+      admitted++;
+    }
+    session.run(); // Outside the lock, starting a thread can take a while
+    return true;
+  }
+
+  /**
+   * Ends a session and starts the longest waiting one in its place.
+   *
+   * @param seconds how long the session lasted
+   */
+  void release(double seconds) {
+    Runnable next;
+    synchronized (this) {
+      averageSession = averageSession * 0.9 + seconds * 0.1;
+      next = waiting.poll();
+      if (next == null) {
+        active--;
+      } else {
+        admitted++;
+      }
+    }
+    if (next != null) {
+      next.run();
+    }
+  }
+
+  /**
+   * @return seconds a refused client should wait before connecting again
+   */
+  synchronized int retryAfter() {
+    double slots = Math.max(maxSessions, 1);
+    double seconds = averageSession * (waiting.size() + 1) / slots;
+    return (int) Math.max(MIN_RETRY, Math.min(MAX_RETRY, Math.ceil(seconds)));
+  }
+
+  /**
+   * @return number of sessions being served
+   */
+  synchronized int getActive() {
+    return active;
+  }
+
+  /**
+   * @return number of connections waiting for a session
+   */
+  synchronized int getWaiting() {
+    return waiting.size();
+  }
+
+  /**
+   * @return number of sessions started since the server started
+   */
+  synchronized long getAdmitted() {
+    return admitted;
+  }
+
+  /**
+   * @return number of connections refused with BUSY
+   */
+  synchronized long getRejected() {
+    return rejected;
+  }
+}
@@ -0,0 +1,336 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: Archive.java
+ * Purpose:  Archive format used by RDOWNLOAD to send a whole folder
+ *           in one stream. The server packs a folder while it is
+ *           being sent and the client unpacks it while it is being
+ *           received. Shared by the client and the server.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java Client.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * An archive is a sequence of entries, each starting with a type byte:
+ *
+ * <pre>
+ *   'D'  UTF path                       folder
+ *   'F'  UTF path, long size, data      file followed by exactly size bytes
+ *   'E'                                 end of the archive
+ * </pre>
+ *
+ * Paths are relative to the folder being sent and use "/" as the separator.
+ * Folders come before their contents, so empty folders are recreated too.
+ * Nothing is staged on disk: pack() produces the archive on demand while the
+ * caller reads it, holding only the open folder streams of the current path.
+ */
+final class Archive {
+
+  static final byte FOLDER = 'D';
+  static final byte FILE = 'F';
+  static final byte END = 'E';
+
+  private Archive() {
+  }
+
+  /**
+   * Creates a stream that reads a folder as an archive. Entries that can't
+   * be read when the walk reaches them are left out, and so are symbolic
+   * links: a link can't send the walk in circles or out of the folder.
+   *
+   * @param root the folder to pack
+   * @return the archive stream, which must be closed
+   * @throws IOException if the folder can't be read
+   */
+  static InputStream pack(File root) throws IOException {
+    return new Packer(root.toPath());
+  }
+
+  /**
+   * Unpacks an archive into a folder, creating folders and overwriting files
+   * as they arrive.
+   *
+   * @param archive stream the archive is read from, positioned at its start
+   * @param target  folder the archive is unpacked into
+   * @param listener told about every file that is unpacked, may be null
+   * @return number of files unpacked
+   * @throws IOException if the archive is malformed or a file can't be written
+   */
+  static long unpack(InputStream archive, File target, Listener listener) throws IOException {
+    DataInputStream in = new DataInputStream(archive);
+    long files = 0;
+
+    if (!target.isDirectory() && !target.mkdirs()) {
+      throw new IOException("Could not create " + target);
+    }
+
+    try (BufferPool.Lease lease = BufferPool.HEAP.acquire(256 * 1024)) {
+      byte[] buffer = lease.array();
+      while (true) {
+        byte type = in.readByte();
+        if (type == END) {
+          return files;
+        }
+        if (type != FOLDER && type != FILE) {
+          throw new IOException("Malformed archive");
+        }
+
+        File entry = resolve(target, in.readUTF());
+        if (type == FOLDER) {
+          if (!entry.isDirectory() && !entry.mkdirs()) {
+            throw new IOException("Could not create " + entry);
+          }
+          continue;
+        }
+
+        long size = in.readLong();
+        if (size < 0) {
+          throw new IOException("Malformed archive");
+        }
+        entry.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(entry)) {
+          long remaining = size;
+          while (remaining > 0) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (bytesRead == -1) {
+              throw new EOFException("Archive ended inside " + entry);
+            }
+            out.write(buffer, 0, bytesRead);
+            remaining -= bytesRead;
+          }
+        }
+        files++;
+        if (listener != null) {
+          listener.unpacked(entry, size);
+        }
+      }
+    }
+  }
+
+  /**
+   * Turns an archive path into a file inside the target folder. Paths that
+   * are absolute or climb out of the target with ".." are refused, so a
+   * malicious server can't write anywhere else.
+   *
+   * @param target the folder the archive is unpacked into
+   * @param path   relative path from the archive
+   * @return the file the entry is written to
+   * @throws IOException if the path leaves the target folder
+   */
+  private static File resolve(File target, String path) throws IOException {
+    if (path.isEmpty() || path.startsWith("/") || path.contains("\\")) {
+      throw new IOException("Illegal path in archive: " + path);
+    }
+    for (String part : path.split("/")) {
+      if (part.isEmpty() || part.equals(".") || part.equals("..")) {
+        throw new IOException("Illegal path in archive: " + path);
+      }
+    }
+    return new File(target, path.replace('/', File.separatorChar));
+  }
+
+  /**
+   * Told about every file unpack() writes.
+   */
+  interface Listener {
+    void unpacked(File file, long size);
+  }
+
+  /**
+   * Walks the folder depth first and serves the archive bytes as they are
+   * read. Each entry header is built in a small buffer, file data is read
+   * from the file's channel straight into the caller's buffer, so no buffer
+   * is allocated per file.
+   */
+  private static class Packer extends InputStream {
+
+    private final Path root;
+    // Open folder listings from the root down to the folder being walked
+    private final Deque<DirectoryStream<Path>> streams = new ArrayDeque<>();
+    private final Deque<Iterator<Path>> iterators = new ArrayDeque<>();
+
+    private byte[] header = new byte[0]; // Header of the current entry
+    private int headerPosition = 0;
+    private FileChannel file;            // Data of the current file entry
+    private long fileRemaining = 0;
+    private boolean ended = false;       // END entry was produced
+
+    Packer(Path root) throws IOException {
+      this.root = root;
+      open(root);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+
+      while (true) {
+        if (headerPosition < header.length) {
+          int count = Math.min(length, header.length - headerPosition);
+          System.arraycopy(header, headerPosition, buffer, offset, count);
+          headerPosition += count;
+          return count;
+        }
+
+        if (fileRemaining > 0) {
+          int count = file.read(
+              ByteBuffer.wrap(buffer, offset, (int) Math.min(length, fileRemaining)));
+          if (count == -1) {
+            // The file shrank after its size was sent, pad with zeros
+            count = (int) Math.min(length, fileRemaining);
+            Arrays.fill(buffer, offset, offset + count, (byte) 0);
+          }
+          fileRemaining -= count;
+          if (fileRemaining == 0) {
+            closeFile();
+          }
+          return count;
+        }
+
+        if (ended) {
+          return -1;
+        }
+        nextEntry();
+      }
+    }
+
+    @Override
+    public void close() {
+      closeFile();
+      while (!streams.isEmpty()) {
+        closeFolder();
+      }
+    }
+
+    /**
+     * Builds the header of the next entry, or the END entry once the walk is
+     * complete.
+     *
+     * @throws IOException if the header can't be built
+     */
+    private void nextEntry() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      while (!iterators.isEmpty()) {
+        bytes.reset();
+        Iterator<Path> entries = iterators.peek();
+        Path path;
+        try {
+          if (!entries.hasNext()) {
+            closeFolder();
+            continue;
+          }
+          path = entries.next();
+        } catch (DirectoryIteratorException ex) {
+          closeFolder(); // Folder vanished while it was walked
+          continue;
+        }
+
+        String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+        BasicFileAttributes attributes;
+        try {
+          attributes = Files.readAttributes(path, BasicFileAttributes.class,
+              LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException ex) {
+          continue; // Deleted meanwhile
+        }
+
+        try {
+          if (attributes.isDirectory()) {
+            out.writeByte(FOLDER);
+            out.writeUTF(name);
+            open(path);
+          } else if (attributes.isRegularFile()) {
+            // Open before writing the header so unreadable files are left out
+            file = FileChannel.open(path, StandardOpenOption.READ);
+            fileRemaining = attributes.size();
+            out.writeByte(FILE);
+            out.writeUTF(name);
+            out.writeLong(fileRemaining);
+            if (fileRemaining == 0) {
+              closeFile();
+            }
+          } else {
+            continue; // A link, or neither a file nor a folder
+          }
+        } catch (IOException ex) {
+          // Permission denied, or the path is too long for the header
+          closeFile();
+          fileRemaining = 0;
+          continue;
+        }
+
+        header = bytes.toByteArray();
+        headerPosition = 0;
+        return;
+      }
+
+      out.writeByte(END);
+      ended = true;
+      header = bytes.toByteArray();
+      headerPosition = 0;
+    }
+
+    /**
+     * Starts walking a folder.
+     *
+     * @param folder the folder
+     * @throws IOException if the folder can't be listed
+     */
+    private void open(Path folder) throws IOException {
+      DirectoryStream<Path> stream = Files.newDirectoryStream(folder);
+      streams.push(stream);
+      iterators.push(stream.iterator());
+    }
+
+    /**
+     * Finishes walking the innermost folder.
+     */
+    private void closeFolder() {
+      iterators.pop();
+      try {
+        streams.pop().close();
+      } catch (IOException ignored) {
+        // Nothing left to release
+      }
+    }
+
+    private void closeFile() {
+      if (file != null) {
+        try {
+          file.close();
+        } catch (IOException ignored) {
+          // Nothing left to release
+        }
+        file = null;
+      }
+    }
+  }
+}
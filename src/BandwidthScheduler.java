@@ -0,0 +1,219 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: BandwidthScheduler.java
+ * Purpose:  Server wide upload limit. Shares the allowed bandwidth
+ *           fairly between the connections that are downloading so
+ *           one bulk download can't starve everyone else.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BandwidthScheduler limits what the server sends with token buckets. There
+ * is one bucket for the whole server and one per connection. A connection's
+ * bucket refills at its fair share: the global rate divided by the number of
+ * connections downloading right now, capped by the per-connection rate. Bulk
+ * downloads therefore never take more than their share, while a new small
+ * download starts with a full bucket and finishes at once.
+ *
+ * Buckets hand out reservations instead of waiting for tokens: a sender takes
+ * the bytes it is about to write, possibly driving the bucket negative, and
+ * sleeps until the debt is paid off. Senders are served in the order they
+ * asked and nobody spins. Both rates can be changed while the server runs.
+ */
+class BandwidthScheduler {
+
+  // Largest piece a single reservation covers. Keeps turns short so senders
+  // interleave even when they write big buffers.
+  private static final int SLICE = 64 * 1024;
+
+  // Smallest bucket, so a bucket always holds at least one slice
+  private static final long MIN_BURST = 256 * 1024;
+
+  private volatile long globalRate;     // Bytes per second, 0 for unlimited
+  private volatile long connectionRate; // Bytes per second, 0 for unlimited
+
+  private final Bucket global = new Bucket();
+  private final AtomicInteger active = new AtomicInteger(); // Flows downloading now
+
+  /**
+   * Constructor.
+   *
+   * @param globalRate     bytes per second for the whole server, 0 for unlimited
+   * @param connectionRate bytes per second for one connection, 0 for unlimited
+   */
+  BandwidthScheduler(long globalRate, long connectionRate) {
+    setRates(globalRate, connectionRate);
+  }
+
+  /**
+   * Changes the limits. Takes effect with the next write of every connection.
+   *
+   * @param globalRate     bytes per second for the whole server, 0 for unlimited
+   * @param connectionRate bytes per second for one connection, 0 for unlimited
+   */
+  void setRates(long globalRate, long connectionRate) {
+    this.globalRate = Math.max(globalRate, 0);
+    this.connectionRate = Math.max(connectionRate, 0);
+  }
+
+  /**
+   * @return true if any limit is set
+   */
+  boolean isLimited() {
+    return globalRate > 0 || connectionRate > 0;
+  }
+
+  long getGlobalRate() {
+    return globalRate;
+  }
+
+  long getConnectionRate() {
+    return connectionRate;
+  }
+
+  /**
+   * @return number of connections downloading right now
+   */
+  int getActive() {
+    return active.get();
+  }
+
+  /**
+   * Creates the flow of a new connection.
+   *
+   * @return the flow, idle until it is started
+   */
+  Flow newFlow() {
+    return new Flow();
+  }
+
+  /**
+   * The share of one connection. Everything the connection writes goes
+   * through wrap(), and start()/stop() mark when it is downloading so the
+   * global rate is only split between connections that use it.
+   */
+  class Flow {
+    private final Bucket bucket = new Bucket();
+    private boolean started = false;
+
+    /**
+     * Counts the connection as downloading. Calling it again is harmless.
+     */
+    synchronized void start() {
+      if (!started) {
+        started = true;
+        active.incrementAndGet();
+      }
+    }
+
+    /**
+     * Counts the connection as idle again.
+     */
+    synchronized void stop() {
+      if (started) {
+        started = false;
+        active.decrementAndGet();
+      }
+    }
+
+    /**
+     * Waits until the connection may send more bytes.
+     *
+     * @param bytes number of bytes about to be sent
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    void acquire(long bytes) throws InterruptedIOException {
+      long total = globalRate;
+      long own = connectionRate;
+      if (total == 0 && own == 0) {
+        return; // Unlimited
+      }
+
+      // Fair share of the global rate, this connection included
+      long share = 0;
+      if (total > 0) {
+        int flows = active.get() + (started ? 0 : 1);
+        share = Math.max(total / Math.max(flows, 1), 1);
+      }
+      long rate = own == 0 ? share : share == 0 ? own : Math.min(own, share);
+
+      long wait = bucket.reserve(bytes, rate);
+      if (total > 0) {
+        wait = Math.max(wait, global.reserve(bytes, total));
+      }
+
+      if (wait > 0) {
+        try {
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+      }
+    }
+
+    /**
+     * Wraps a stream so every write waits for bandwidth first.
+     *
+     * @param out stream connected to the client
+     * @return the limited stream
+     */
+    OutputStream wrap(OutputStream out) {
+      return new FilterOutputStream(out) {
+        @Override
+        public void write(int b) throws IOException {
+          acquire(1);
+          out.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+          while (length > 0) {
+            int slice = Math.min(length, SLICE);
+            acquire(slice);
+            out.write(bytes, offset, slice);
+            offset += slice;
+            length -= slice;
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * Token bucket that refills at the rate given with each reservation. It
+   * holds a quarter of a second of tokens, at least MIN_BURST.
+   */
+  private static class Bucket {
+    private double tokens = MIN_BURST; // Start full so new flows can burst
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Takes bytes out of the bucket.
+     *
+     * @param bytes number of bytes about to be sent
+     * @param rate  refill rate in bytes per second
+     * @return nanoseconds the caller has to wait before sending
+     */
+    synchronized long reserve(long bytes, long rate) {
+      long now = System.nanoTime();
+      double burst = Math.max(rate / 4.0, MIN_BURST);
+      tokens = Math.min(burst, tokens + (now - lastRefill) * (rate / 1e9));
+      lastRefill = now;
+
+      tokens -= bytes;
+      return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+    }
+  }
+}
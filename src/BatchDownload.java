@@ -0,0 +1,447 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: BatchDownload.java
+ * Purpose:  Non-interactive batch mode of the client. Downloads every
+ *           file listed in a manifest over several connections at
+ *           once and prints a summary, for scripted and nightly pulls.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Client.java
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BatchDownload reads a manifest with one download per line: the remote path,
+ * then optionally a tab and the local target. A remote path is absolute or
+ * relative to the folder the server starts clients in. A local target that is
+ * missing, ends with a slash or is an existing folder gets the remote file
+ * name. Blank lines and lines starting with # are skipped.
+ *
+ * Targets that already exist are handled by the policy given up front, never
+ * by asking: overwrite them, skip them or save under the first free name
+ * "name (n).ext". The policy is applied to the whole manifest before anything
+ * is downloaded, so two entries can't pick the same new name.
+ *
+ * Each of the parallel connections speaks protocol v2 and takes the next
+ * entry when it is done with one, so small and large files balance out.
+ * Downloads go through PartialDownload like DOWNLOAD does, so a batch that is
+ * interrupted resumes every file where it stopped when it is run again.
+ */
+class BatchDownload {
+
+  static final String OVERWRITE = "overwrite";
+  static final String SKIP = "skip";
+  static final String RENAME = "rename";
+
+  private final String host;
+  private final int port;
+  private final int parallel;
+  private final String policy;
+  private final String checksum; // null for none
+  private final String compress; // null for none
+
+  private final AtomicInteger downloaded = new AtomicInteger();
+  private final AtomicInteger reused = new AtomicInteger(); // Contents held locally
+  private final AtomicLong bytes = new AtomicLong();
+  private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+  private volatile String connectError; // Why the last connection attempt failed
+
+  /**
+   * Constructor.
+   *
+   * @param host     the server name or IP address to connect to
+   * @param port     the port number to connect to
+   * @param parallel number of connections downloading at once
+   * @param policy   OVERWRITE, SKIP or RENAME, for targets that exist
+   * @param checksum checksum the server sends after each file, or null
+   * @param compress compression codecs offered, best first, or null
+   */
+  BatchDownload(String host, int port, int parallel, String policy, String checksum,
+                String compress) {
+    this.host = host;
+    this.port = port;
+    this.parallel = parallel;
+    this.policy = policy;
+    this.checksum = checksum;
+    this.compress = compress;
+  }
+
+  /**
+   * Downloads every entry of a manifest and prints a summary.
+   *
+   * @param manifest the manifest file
+   * @return number of files that failed, or -1 if the manifest can't be read
+   */
+  int run(File manifest) {
+    List<String[]> entries;
+    try {
+      entries = readManifest(manifest);
+    } catch (IOException ex) {
+      System.err.println("Could not read manifest " + manifest + ": " + ex.getMessage());
+      return -1;
+    }
+
+    // Decide every target before the first download starts
+    Queue<String[]> pending = new ConcurrentLinkedQueue<>();
+    Set<File> taken = new HashSet<>();
+    int skipped = 0;
+    for (String[] entry : entries) {
+      File target = resolveTarget(entry[0], entry[1], taken);
+      if (target == null) {
+        System.out.println("SKIPPED " + entry[0] + " (the local file exists)");
+        skipped++;
+      } else {
+        taken.add(target);
+        pending.add(new String[]{entry[0], target.getPath()});
+      }
+    }
+
+    int connections = Math.min(parallel, pending.size());
+    System.out.println("Downloading " + pending.size() + " files over " + connections
+        + " connections");
+    long startTime = System.nanoTime();
+
+    Thread[] threads = new Thread[connections];
+    for (int i = 0; i < connections; i++) {
+      threads[i] = new Thread(new Worker(pending), "Batch-" + i);
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+
+    // Entries left over when every connection failed
+    String[] entry;
+    while ((entry = pending.poll()) != null) {
+      failures.add(entry[0] + ": not attempted, " + connectError);
+    }
+
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    System.out.println();
+    System.out.printf("Batch finished in %.2f seconds: %d downloaded, %d reused, %d skipped, "
+        + "%d failed%n", seconds, downloaded.get(), reused.get(), skipped, failures.size());
+    System.out.printf("%d bytes received (%.2f MB/s)%n", bytes.get(),
+        bytes.get() / 1e6 / Math.max(seconds, 1e-9));
+    for (String failure : failures) {
+      System.out.println("\tFAILED " + failure);
+    }
+    return failures.size();
+  }
+
+  /**
+   * Reads the entries of a manifest.
+   *
+   * @param manifest the manifest file
+   * @return {remote path, local target} pairs, the target possibly empty
+   * @throws IOException if the manifest can't be read
+   */
+  private static List<String[]> readManifest(File manifest) throws IOException {
+    List<String[]> entries = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+          continue;
+        }
+        int tab = line.indexOf('\t');
+        String remote = (tab == -1 ? line : line.substring(0, tab)).trim();
+        String local = tab == -1 ? "" : line.substring(tab + 1).trim();
+        entries.add(new String[]{remote, local});
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Picks the local file an entry is saved to, applying the policy if it
+   * exists already. A target with an unfinished download is resumed whatever
+   * the policy.
+   *
+   * @param remote remote path of the file
+   * @param local  local target from the manifest, possibly empty
+   * @param taken  targets already given to earlier entries
+   * @return the file to save to, or null to skip the entry
+   */
+  private File resolveTarget(String remote, String local, Set<File> taken) {
+    String name = remote.substring(remote.lastIndexOf('/') + 1);
+    File target = local.isEmpty() ? new File(name) : new File(local);
+    if (local.endsWith("/") || target.isDirectory()) {
+      target = new File(target, name);
+    }
+    target = target.getAbsoluteFile();
+
+    if (!target.exists() && !taken.contains(target)) {
+      return target;
+    }
+    if (policy.equals(OVERWRITE)) {
+      return taken.contains(target) ? null : target;
+    }
+    if (policy.equals(SKIP)) {
+      return null;
+    }
+
+    // RENAME: "name (1).ext", "name (2).ext" and so on
+    String fileName = target.getName();
+    int dot = fileName.lastIndexOf('.');
+    String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+    String extension = dot > 0 ? fileName.substring(dot) : "";
+    for (int n = 1; ; n++) {
+      File renamed = new File(target.getParentFile(), base + " (" + n + ")" + extension);
+      if (!renamed.exists() && !taken.contains(renamed)
+          && PartialDownload.find(renamed) == null) {
+        return renamed;
+      }
+    }
+  }
+
+  /**
+   * One connection of the batch. Takes entries off the shared queue until it
+   * is empty. A failed entry is reported and the connection is opened again
+   * for the next one; if the server can't be reached the worker stops and
+   * leaves the remaining entries to the others.
+   */
+  private class Worker implements Runnable {
+    private final Queue<String[]> pending;
+    private ServerConnection connection;
+    private FramedSession session;
+    private String home;      // Folder the server started the connection in
+    private String directory; // Current folder on the server
+    private String reuse;     // How the last file was reused instead of downloaded
+
+    Worker(Queue<String[]> pending) {
+      this.pending = pending;
+    }
+
+    public void run() {
+      String[] entry;
+      while ((entry = pending.poll()) != null) {
+        if (session == null) {
+          try {
+            connect();
+          } catch (IOException ex) {
+            pending.add(entry); // Another connection may still get it
+            connectError = ex.getMessage();
+            disconnect();
+            return;
+          }
+        }
+
+        try {
+          long received = download(entry[0], new File(entry[1]));
+          if (received == -1) {
+            reused.incrementAndGet();
+            System.out.println("OK " + entry[0] + " -> " + entry[1] + " (" + reuse + ")");
+            continue;
+          }
+          downloaded.incrementAndGet();
+          System.out.println("OK " + entry[0] + " -> " + entry[1] + " (" + received + " bytes)");
+        } catch (FramedSession.RemoteError ex) {
+          failures.add(entry[0] + ": " + describe(ex.getCode()));
+        } catch (IOException ex) {
+          failures.add(entry[0] + ": " + ex.getMessage());
+          disconnect(); // The connection may be out of step, start over
+        }
+      }
+
+      if (session != null) {
+        try {
+          session.bye();
+        } catch (IOException ignored) {
+          // Closing anyway
+        }
+      }
+      disconnect();
+    }
+
+    /**
+     * Opens the connection and switches it to protocol v2.
+     *
+     * @throws IOException if the server can't be reached or only speaks v1
+     */
+    private void connect() throws IOException {
+      connection = ServerConnection.open(host, port);
+      if (!Protocol.HELLO_V2.equals(connection.greeting)) {
+        throw new IOException("Batch mode requires a server that speaks protocol v2");
+      }
+      OutputStream out = connection.socket.getOutputStream();
+      out.write((Protocol.V2 + "\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+      session = new FramedSession(connection.in, out);
+      home = session.call(Protocol.PWD, null);
+      directory = home;
+    }
+
+    private void disconnect() {
+      if (connection != null) {
+        try {
+          connection.close();
+        } catch (IOException ignored) {
+          // Nothing left to release
+        }
+      }
+      connection = null;
+      session = null;
+    }
+
+    /**
+     * Downloads one file, resuming an unfinished download of the target.
+     *
+     * @param remote remote path of the file
+     * @param target local file to save it as
+     * @return number of bytes received, or -1 if the contents were already held
+     * locally
+     * @throws FramedSession.RemoteError if the server refuses the file
+     * @throws IOException               if the transfer fails
+     */
+    private long download(String remote, File target) throws IOException {
+      int slash = remote.lastIndexOf('/');
+      String name = remote.substring(slash + 1);
+      String folder = home;
+      if (slash == 0) {
+        folder = "/";
+      } else if (slash > 0) {
+        folder = remote.startsWith("/") ? remote.substring(0, slash)
+            : home + "/" + remote.substring(0, slash);
+      }
+
+      // Only change folders when the entry is in a different one
+      if (!folder.equals(directory)) {
+        String response = session.call(Protocol.CD, folder);
+        if (response.equals("DDNE") || response.equals("PD")) {
+          throw new FramedSession.RemoteError(response);
+        }
+        directory = folder;
+      }
+
+      TransferDigest digest = checksum != null ? TransferDigest.create(checksum) : null;
+      String algorithm = digest != null ? digest.getAlgorithm() : null;
+      long[] transfer = null; // {total size, bytes that follow}
+
+      PartialDownload partial = PartialDownload.find(target);
+      if (partial == null && Client.localIndex != null) {
+        reuse = Client.reuseLocalCopy(target, session.call(Protocol.HASH, name));
+        if (reuse != null) {
+          return -1;
+        }
+      }
+      if (partial != null) {
+        try {
+          transfer = session.download(name, partial.getReceived(), Long.MAX_VALUE,
+              partial.getSize(), algorithm, compress);
+        } catch (FramedSession.RemoteError ex) {
+          if (!ex.getCode().equals("CHANGED")) {
+            throw ex;
+          }
+          partial.delete(); // Changed on the server, start over
+          partial = null;
+        }
+      }
+      if (partial == null) {
+        transfer = session.download(name, 0, Long.MAX_VALUE, -1, algorithm, compress);
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+          throw new IOException("Could not create " + parent);
+        }
+        partial = PartialDownload.start(target, transfer[0]);
+      }
+
+      InputStream data = session.codec() != null
+          ? Compression.decoder(session.codec(), session.data(), transfer[1]) : session.data();
+      long received = save(partial, data, transfer[1], digest);
+      Client.indexDownload(target);
+      return received;
+    }
+
+    /**
+     * Writes the data of a download to its part file and moves it into place
+     * once the trailer checks out.
+     *
+     * @param partial        the download being saved
+     * @param data           stream the file bytes are read from
+     * @param bytesRemaining number of bytes the server is sending
+     * @param digest         checksum the server sends as a trailer, or null
+     * @return number of bytes received
+     * @throws IOException if the transfer fails or the checksum doesn't match
+     */
+    private long save(PartialDownload partial, InputStream data, long bytesRemaining,
+                      TransferDigest digest) throws IOException {
+      long received = partial.getReceived();
+      long checkpoint = received;
+      long count = 0;
+
+      try (OutputStream fileWriter = partial.openOutput();
+           BufferPool.Lease lease = BufferPool.HEAP.acquire(1000000)) {
+        byte[] buffer = lease.array(); // File transfer buffer 1mb
+        try {
+          while (bytesRemaining > 0) {
+            int bytesRead = data.read(buffer, 0, (int) Math.min(buffer.length, bytesRemaining));
+            if (bytesRead == -1) {
+              throw new EOFException("Server closed the connection");
+            }
+            fileWriter.write(buffer, 0, bytesRead);
+            if (digest != null) {
+              digest.update(buffer, 0, bytesRead);
+            }
+            bytesRemaining -= bytesRead;
+            received += bytesRead;
+            count += bytesRead;
+            bytes.addAndGet(bytesRead);
+
+            // Periodically record how much of the file is safely on disk
+            if (received - checkpoint >= PartialDownload.CHECKPOINT_BYTES) {
+              fileWriter.flush();
+              partial.record(received);
+              checkpoint = received;
+            }
+          }
+          fileWriter.flush();
+        } catch (IOException ex) {
+          // Keep everything that arrived so the next run can resume
+          fileWriter.flush();
+          partial.record(received);
+          throw ex;
+        }
+      }
+
+      String trailer = session.trailer();
+      if (digest != null && !Client.verifyTrailer(trailer, digest)) {
+        partial.delete();
+        throw new IOException("checksum mismatch, the file was deleted");
+      }
+      partial.complete();
+      return count;
+    }
+  }
+
+  /**
+   * @param code error code sent by the server
+   * @return the error for the summary
+   */
+  private static String describe(String code) {
+    switch (code) {
+      case "FNF":
+        return "file not found on the server";
+      case "DDNE":
+        return "folder not found on the server";
+      case "PD":
+        return "permission denied";
+      default:
+        return code;
+    }
+  }
+}
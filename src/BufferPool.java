@@ -0,0 +1,260 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: BufferPool.java
+ * Purpose:  Transfer buffers shared by every connection. Copy loops
+ *           borrow a buffer for the length of a download instead of
+ *           allocating a new one. Shared by the client and the server.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java Client.java
+ */
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BufferPool keeps the buffers of finished transfers for the next ones, so a
+ * busy server doesn't allocate and collect a megabyte for every download.
+ * Buffers come in four size classes, 16kb, 64kb, 256kb and 1mb, and a request
+ * gets the smallest class that holds it; bigger requests get 1mb and loop.
+ * Each class keeps up to RETAINED bytes of idle buffers, buffers released
+ * beyond that are left to the garbage collector.
+ *
+ * There are two pools. DIRECT holds buffers outside the heap for the paths
+ * that move data between channels: a channel reads into and writes from a
+ * direct buffer without copying it, and the buffers don't weigh on the
+ * garbage collector at all. HEAP holds buffers backed by arrays for the paths
+ * that go through streams, which only take arrays.
+ *
+ * A buffer is borrowed as a Lease and given back by closing it, best with
+ * try-with-resources. A lease that is dropped without being closed is a leak:
+ * the garbage collector reports it through a phantom reference that still
+ * holds the buffer, so the buffer goes back to the pool and the leak is
+ * counted by getLeaks().
+ */
+final class BufferPool {
+
+  // Size of the largest buffers
+  static final int LARGEST = 1024 * 1024;
+
+  private static final int[] SIZES = {16 * 1024, 64 * 1024, 256 * 1024, LARGEST};
+
+  // Idle bytes kept per size class
+  private static final int RETAINED = 32 * 1024 * 1024;
+
+  static final BufferPool DIRECT = new BufferPool(true);
+  static final BufferPool HEAP = new BufferPool(false);
+
+  private final boolean direct;
+  private final SizeClass[] classes = new SizeClass[SIZES.length];
+  private final ReferenceQueue<Lease> abandoned = new ReferenceQueue<>();
+  private final Set<Tracker> leased = ConcurrentHashMap.newKeySet();
+  private final LongAdder allocated = new LongAdder(); // Bytes allocated since start
+  private final LongAdder leaks = new LongAdder();
+
+  /**
+   * Constructor.
+   *
+   * @param direct true for buffers outside the heap
+   */
+  private BufferPool(boolean direct) {
+    this.direct = direct;
+    for (int i = 0; i < SIZES.length; i++) {
+      classes[i] = new SizeClass(SIZES[i]);
+    }
+  }
+
+  /**
+   * Borrows a buffer. The buffer is cleared, its capacity is at least size
+   * or 1mb, whichever is smaller.
+   *
+   * @param size number of bytes wanted
+   * @return the lease, close it to give the buffer back
+   */
+  Lease acquire(int size) {
+    reclaim();
+
+    SizeClass sizeClass = classes[classes.length - 1];
+    for (SizeClass candidate : classes) {
+      if (candidate.size >= size) {
+        sizeClass = candidate;
+        break;
+      }
+    }
+
+    ByteBuffer buffer = sizeClass.take();
+    if (buffer == null) {
+      buffer = direct ? ByteBuffer.allocateDirect(sizeClass.size)
+          : ByteBuffer.allocate(sizeClass.size);
+      allocated.add(sizeClass.size);
+    }
+    buffer.clear();
+
+    Lease lease = new Lease(buffer);
+    Tracker tracker = new Tracker(lease, buffer, sizeClass, abandoned);
+    lease.tracker = tracker;
+    leased.add(tracker);
+    return lease;
+  }
+
+  /**
+   * @return bytes of the buffers that are lent out
+   */
+  long getLeasedBytes() {
+    long bytes = 0;
+    for (Tracker tracker : leased) {
+      bytes += tracker.sizeClass.size;
+    }
+    return bytes;
+  }
+
+  /**
+   * @return bytes of the idle buffers kept for reuse
+   */
+  long getPooledBytes() {
+    long bytes = 0;
+    for (SizeClass sizeClass : classes) {
+      bytes += sizeClass.idleBytes();
+    }
+    return bytes;
+  }
+
+  /**
+   * @return bytes allocated since the start, stops growing once the pool
+   * covers the load
+   */
+  long getAllocatedBytes() {
+    return allocated.sum();
+  }
+
+  /**
+   * @return number of leases dropped without being closed
+   */
+  long getLeaks() {
+    reclaim();
+    return leaks.sum();
+  }
+
+  /**
+   * Adds the pool's counts to a metrics report.
+   *
+   * @param gauges report the counts are added to
+   */
+  void report(Map<String, Number> gauges) {
+    String prefix = direct ? "bufferpool_direct_" : "bufferpool_heap_";
+    gauges.put(prefix + "leased_bytes", getLeasedBytes());
+    gauges.put(prefix + "pooled_bytes", getPooledBytes());
+    gauges.put(prefix + "allocated_bytes_total", getAllocatedBytes());
+    gauges.put(prefix + "leaks_total", getLeaks());
+  }
+
+  /**
+   * Takes back the buffers of leases that were collected without being
+   * closed.
+   */
+  private void reclaim() {
+    Reference<? extends Lease> reference;
+    while ((reference = abandoned.poll()) != null) {
+      Tracker tracker = (Tracker) reference;
+      if (leased.remove(tracker)) {
+        leaks.increment();
+        tracker.sizeClass.give(tracker.buffer);
+      }
+    }
+  }
+
+  /**
+   * A borrowed buffer.
+   */
+  final class Lease implements AutoCloseable {
+    private ByteBuffer buffer;
+    private Tracker tracker;
+
+    private Lease(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    /**
+     * @return the buffer, valid until the lease is closed
+     */
+    ByteBuffer buffer() {
+      if (buffer == null) {
+        throw new IllegalStateException("Buffer used after it was released");
+      }
+      return buffer;
+    }
+
+    /**
+     * @return the array behind a HEAP buffer
+     */
+    byte[] array() {
+      return buffer().array();
+    }
+
+    /**
+     * Gives the buffer back to the pool. Closing twice does nothing.
+     */
+    @Override
+    public void close() {
+      if (buffer == null) {
+        return;
+      }
+      if (leased.remove(tracker)) {
+        tracker.clear();
+        tracker.sizeClass.give(buffer);
+      }
+      buffer = null;
+    }
+  }
+
+  /**
+   * Follows a lease to find out if it is dropped without being closed. Holds
+   * the buffer itself, so a leaked buffer can still be reused.
+   */
+  private static final class Tracker extends PhantomReference<Lease> {
+    final ByteBuffer buffer;
+    final SizeClass sizeClass;
+
+    Tracker(Lease lease, ByteBuffer buffer, SizeClass sizeClass, ReferenceQueue<Lease> queue) {
+      super(lease, queue);
+      this.buffer = buffer;
+      this.sizeClass = sizeClass;
+    }
+  }
+
+  /**
+   * Idle buffers of one size.
+   */
+  private static final class SizeClass {
+    final int size;
+    private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<>();
+
+    SizeClass(int size) {
+      this.size = size;
+    }
+
+    synchronized ByteBuffer take() {
+      return idle.pollFirst();
+    }
+
+    synchronized void give(ByteBuffer buffer) {
+      if ((long) (idle.size() + 1) * size <= RETAINED) {
+        idle.addFirst(buffer); // Most recently used first, it is likely still cached
+      }
+    }
+
+    synchronized long idleBytes() {
+      return (long) idle.size() * size;
+    }
+  }
+}
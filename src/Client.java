@@ -13,28 +13,152 @@
  *           and download files from the server to client machine.
  * Language: Java 8 (1.8.0_101)
  * Compilation Command: javac Client.java
- * Execution Command: java Client <host> [port]
+ * Execution Command: java Client [options] <host> [port]
  */
 
 import java.io.*;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 class Client {
 
+  private static final String USAGE =
+      "Usage: java Client [--streams=N] [--segment=bytes] [--checksum=algorithm|none] " +
+          "[--compress=codecs|none] [--retries=N] [--protocol=v1] [--dedup=on|off] " +
+          "[--batch=manifest [--parallel=N] [--policy=overwrite|skip|rename]] <host> [port]";
+
   private static Socket sock = null;
+  // Protocol v2 session, null while talking protocol v1
+  private static FramedSession session = null;
+  private static boolean allowV2 = true;
+  // Servers that greet with HELLO V2 also stream listings with LIST
+  private static boolean listSupported = false;
+  private static String host;
+  private static int port = 50001;
+
+  // Checksum the server sends after each download, null for none
+  static String checksum = "CRC32";
+
+  // Compression codecs offered for each download, best first, null for none
+  private static String compress = Compression.ALL;
+
+  // Number of connections and segment size used by PDOWNLOAD
+  private static int streams = 4;
+  private static long segmentSize = 8000000;
+
+  // Batch mode, set by the --batch, --parallel and --policy options
+  private static String batch = null;
+  private static int parallel = 4;
+  private static String policy = BatchDownload.SKIP;
+
+  // Hashes of the files downloaded so far, used to skip downloads of contents
+  // already held. Null unless --dedup=on.
+  static HashIndex localIndex = null;
+
+  // Commands typed at the prompt
+  private static final String[] COMMANDS = {"DOWNLOAD", "DIR", "CD", "PWD", "SEARCH",
+      "PDOWNLOAD", "RDOWNLOAD", "SYNC", "PIPE", "STATS", "HELP", "BYE"};
+
+  // Number of entries DIR asks the server for at a time
+  private static final int LIST_PAGE = 1000;
+
+  // Least time between two updates of the download progress, 200ms
+  private static final long PROGRESS_NANOS = 200000000;
 
   public static void main(String args[]) {
 
-    if (args.length == 1) {
+    List<String> positional = new ArrayList<>();
+
+    try {
+      // Options are given as --name=value before or after the host and port
+      for (String arg : args) {
+        if (arg.startsWith("--streams=")) {
+          streams = Integer.parseInt(arg.substring(arg.indexOf("=") + 1));
+        } else if (arg.startsWith("--segment=")) {
+          segmentSize = Long.parseLong(arg.substring(arg.indexOf("=") + 1));
+        } else if (arg.startsWith("--compress=")) {
+          compress = arg.substring(arg.indexOf("=") + 1).toUpperCase();
+          if (compress.equals("NONE")) {
+            compress = null;
+          }
+        } else if (arg.startsWith("--retries=")) {
+          ServerConnection.retries = Integer.parseInt(arg.substring(arg.indexOf("=") + 1));
+          if (ServerConnection.retries < 0) {
+            throw new NumberFormatException();
+          }
+        } else if (arg.startsWith("--batch=")) {
+          batch = arg.substring(arg.indexOf("=") + 1);
+        } else if (arg.startsWith("--parallel=")) {
+          parallel = Integer.parseInt(arg.substring(arg.indexOf("=") + 1));
+        } else if (arg.startsWith("--policy=")) {
+          policy = arg.substring(arg.indexOf("=") + 1).toLowerCase();
+          if (!policy.equals(BatchDownload.OVERWRITE) && !policy.equals(BatchDownload.SKIP)
+              && !policy.equals(BatchDownload.RENAME)) {
+            throw new NumberFormatException();
+          }
+        } else if (arg.startsWith("--dedup=")) {
+          String dedup = arg.substring(arg.indexOf("=") + 1).toLowerCase();
+          if (!dedup.equals("on") && !dedup.equals("off")) {
+            throw new NumberFormatException();
+          }
+          localIndex = dedup.equals("on") ? new HashIndex(
+              new File(System.getProperty("user.home"), ".download-client-hashes")) : null;
+        } else if (arg.equals("--protocol=v1")) {
+          allowV2 = false;
+        } else if (arg.startsWith("--checksum=")) {
+          checksum = arg.substring(arg.indexOf("=") + 1);
+          if (checksum.equalsIgnoreCase("none")) {
+            checksum = null;
+          } else if (TransferDigest.create(checksum) == null) {
+            throw new NumberFormatException();
+          }
+        } else {
+          positional.add(arg);
+        }
+      }
+      if (streams < 1 || segmentSize < 1 || parallel < 1) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException ex) {
+      System.err.println(USAGE);
+      return;
+    }
+
+    if (batch != null && !allowV2) {
+      System.err.println("Batch mode requires protocol v2. Run it without --protocol=v1.");
+    } else if (batch != null && (positional.size() == 1 || positional.size() == 2)) {
+      // Non-interactive, the exit status tells scripts whether files failed
+      host = positional.get(0);
+      if (positional.size() == 2) {
+        port = Integer.parseInt(positional.get(1));
+      }
+      int failed = new BatchDownload(host, port, parallel, policy, checksum, compress)
+          .run(new File(batch));
+      saveIndex();
+      System.exit(failed == 0 ? 0 : 1);
+    } else if (positional.size() == 1) {
       // User only entered a hostname, connect to default port
-      connect(args[0], 50001);
-    } else if (args.length == 2) {
+      host = positional.get(0);
+      connect(host, port);
+    } else if (positional.size() == 2) {
       // User entered hostname and port number
-      connect(args[0], Integer.parseInt(args[1]));
+      host = positional.get(0);
+      port = Integer.parseInt(positional.get(1));
+      connect(host, port);
     } else {
-      System.err.println("Usage: java Client <host> [port]");
+      System.err.println(USAGE);
     }
   }
 
@@ -46,9 +170,15 @@ class Client {
    */
   private static void connect(String hostname, int port) {
 
+    ServerConnection connection = null;
+
     // Create a new TCP socket and try to connect to server
     try {
-      sock = new Socket(hostname, port);
+      connection = ServerConnection.open(hostname, port);
+      sock = connection.socket;
+    } catch (ServerConnection.BusyException ex) {
+      System.err.println(ex.getMessage() + ". Connection Failed.");
+      System.exit(-1);
     } catch (UnknownHostException ex) {
       System.err.println("Unknown Host. Connection Failed.");
       ex.printStackTrace();
@@ -63,14 +193,17 @@ class Client {
     try {
       PrintWriter outStream = new PrintWriter(sock.getOutputStream(), true);
 
-      BufferedReader inStream = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+      // Server responses and file data are both read from this one stream.
+      // A BufferedReader would read ahead and swallow the start of a file.
+      InputStream inStream = connection.in;
 
       Scanner keyboard = new Scanner(System.in);
 
       // Connection succeeded, loop indefinitely and accept user input
-      clientLoop(outStream, inStream, keyboard);
+      clientLoop(connection.greeting, outStream, inStream, keyboard);
 
       System.out.println("Exiting program.");
+      saveIndex();
 
       // Close socket when user chooses to exit
       sock.close();
@@ -89,11 +222,13 @@ class Client {
    * Loops indefinitely until user enters BYE command. Parses user inputs and
    * sends server only valid protocol commands.
    *
+   * @param greeting  the first line the server sent
    * @param outStream PrintWriter output stream connected to the server
-   * @param inStream  BufferedReader input stream connected to the server
+   * @param inStream  buffered input stream connected to the server
    * @param keyboard  Scanner connected to System.in in order to get user input
    */
-  private static void clientLoop(PrintWriter outStream, BufferedReader inStream, Scanner keyboard) {
+  private static void clientLoop(String greeting, PrintWriter outStream, InputStream inStream,
+                                 Scanner keyboard) {
 
     String rawInput; // The unmodified string from the user's input
     String parsedCommand; // The parsed command from rawInput (first word)
@@ -101,9 +236,17 @@ class Client {
 
     boolean run = true; // Loop conditional
 
-    // Connection is complete, read message from server (should be "HELLO")
+    // Connection is complete, show the message from the server (should be "HELLO")
     try {
-      System.out.println("Message from Server: " + inStream.readLine());
+      System.out.println("Message from Server: " + greeting);
+
+      listSupported = Protocol.HELLO_V2.equals(greeting);
+
+      // Switch to the framed protocol if the server offers it
+      if (Protocol.HELLO_V2.equals(greeting) && allowV2) {
+        outStream.println(Protocol.V2);
+        session = new FramedSession(inStream, sock.getOutputStream());
+      }
     } catch (IOException ex) {
       System.err.println("Error Receiving Welcome Message from Server");
       ex.printStackTrace();
@@ -115,32 +258,33 @@ class Client {
       shellMenu(currentPath); // Set directory in shell display
       rawInput = keyboard.nextLine(); // Read user input from System.in
 
-      // Get first word from multi-word inputs
-      if (rawInput.split("\\s+").length > 1) {
-        parsedCommand = rawInput.split("\\s+")[0];
-      } else {
-        parsedCommand = rawInput;
-      }
+      // First word of the input, matched without regard to case
+      parsedCommand = CommandDecoder.commandOf(rawInput, COMMANDS);
 
-      // Convert user's command to uppercase and test it for a match
-      switch (parsedCommand.toUpperCase()) {
+      switch (parsedCommand) {
         case "BYE":
-          outStream.println(parsedCommand); // Send "BYE" to server
+          // Send "BYE" to server
+          if (session != null) {
+            try {
+              session.bye();
+            } catch (IOException e) {
+              e.printStackTrace();
+            }
+          } else {
+            outStream.println(parsedCommand);
+          }
           run = false; // Stop looping
           break;
         case "PWD":
-          outStream.println(parsedCommand); // Send "PWD" to server
-
           // Update prompt to the current server directory
           try {
-            currentPath = inStream.readLine();
+            currentPath = request("PWD", null, outStream, inStream);
           } catch (IOException e) {
             System.err.println("Could not read PWD response...");
             e.printStackTrace();
           }
           break;
         case "DIR":
-          outStream.println(parsedCommand); // Send "DIR" to server
           try {
             /*
              * Server response protocol: The server sends back a long string of various file
@@ -150,8 +294,20 @@ class Client {
              * output and display it in whatever format it wants.
              */
 
-            String response = inStream.readLine();
-            displayDirectory(response);
+            if (listSupported) {
+              // Rows are displayed page by page as they arrive
+              listDirectory(rawInput, outStream, inStream);
+            } else {
+              String response = request("DIR", null, outStream, inStream);
+              displayDirectory(response);
+            }
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+          break;
+        case "SEARCH":
+          try {
+            search(rawInput, outStream, inStream);
           } catch (IOException e) {
             e.printStackTrace();
           }
@@ -168,6 +324,30 @@ class Client {
         case "DOWNLOAD":
           receiveFile(rawInput, keyboard, outStream, inStream);
           break;
+        case "PDOWNLOAD":
+          parallelDownload(rawInput, keyboard, outStream, inStream);
+          break;
+        case "RDOWNLOAD":
+          receiveFolder(rawInput, keyboard, outStream, inStream);
+          break;
+        case "SYNC":
+          syncFile(rawInput);
+          break;
+        case "PIPE":
+          // Display new directory if the batch changed it
+          String path = pipeline(rawInput);
+          if (path != null) {
+            currentPath = path;
+          }
+          break;
+        case "STATS":
+          try {
+            displayStatistics(outStream, inStream);
+          } catch (IOException e) {
+            System.err.println("Could not read STATS response...");
+            e.printStackTrace();
+          }
+          break;
         case "HELP":
           displayHelpMenu();
           break;
@@ -179,7 +359,10 @@ class Client {
 
   /**
    * Sends a request to the download server to download a specific file. The
-   * server will transfer the file to the client over a TCP connection.
+   * server will transfer the file to the client over a TCP connection. The
+   * data is written to a ".part" file first and a sidecar records how many
+   * bytes have safely reached the disk. If a partial download of the file
+   * exists, only the missing remainder is requested from the server.
    *
    * @param rawInput  Unformatted user input String that will be sent to the
    *                  server
@@ -187,24 +370,70 @@ class Client {
    * @param outStream TCP socket stream to the server
    * @param inStream  TCP socket stream from the server
    */
-  private static void receiveFile(String rawInput, Scanner keyboard, PrintWriter outStream, BufferedReader inStream) {
+  private static void receiveFile(String rawInput, Scanner keyboard, PrintWriter outStream, InputStream inStream) {
 
     String fileName;
+    PartialDownload partial;
 
     // Send server request and get response
     if (rawInput.split("\\s+").length >= 2) {
-      outStream.println(rawInput);
       // Cut out command to get name of file to download
       fileName = rawInput.substring(rawInput.indexOf(" ")).trim();
 
-      try {
-        // Get server response and check it for error codes
-        String response = inStream.readLine();
-        if (response.equals("FNF")) {
-          System.out.println("File could not be found on the server.");
+      // Contents already held locally don't need to be downloaded again
+      File target = new File(System.getProperty("user.dir"), fileName);
+      if (localIndex != null && PartialDownload.find(target) == null) {
+        try {
+          String reused = reuseLocalCopy(target, request("HASH", fileName, outStream, inStream));
+          if (reused != null) {
+            System.out.println("Download Skipped, " + reused + ".");
+            return;
+          }
+        } catch (IOException e) {
+          System.err.println("DOWNLOAD error. Could not get response from server");
+          e.printStackTrace();
           return;
         }
-        // Otherwise response is "READY" and we just continue as normal
+      }
+
+      // Protocol v2 downloads have no READY handshake
+      if (session != null) {
+        receiveFramedFile(fileName, keyboard);
+        return;
+      }
+
+      try {
+        // Continue where an earlier attempt stopped if it left a partial file
+        partial = PartialDownload.find(new File(System.getProperty("user.dir"), fileName));
+        if (partial != null) {
+          outStream.println("RESUME " + partial.getReceived() + " " + fileName);
+          String response = Protocol.readLine(inStream);
+          if (response.equals("FNF")) {
+            System.out.println("File could not be found on the server.");
+            return;
+          }
+          if (!response.equals("READY " + partial.getSize())) {
+            // File on the server changed, the partial data is useless
+            System.out.println("File changed on the server since the last attempt. Starting over.");
+            outStream.println("STOP");
+            partial.delete();
+            partial = null;
+          } else {
+            System.out.println("Resuming download at byte " + partial.getReceived() + ".");
+          }
+        }
+
+        if (partial == null) {
+          outStream.println(rawInput);
+
+          // Get server response and check it for error codes
+          String response = Protocol.readLine(inStream);
+          if (response.equals("FNF")) {
+            System.out.println("File could not be found on the server.");
+            return;
+          }
+          // Otherwise response is "READY" and we just continue as normal
+        }
       } catch (IOException e) {
         System.err.println("DOWNLOAD error. Could not get response from server");
         e.printStackTrace();
@@ -217,118 +446,738 @@ class Client {
 
     // Create new local file object before attempting to download
     // Downloaded files will be saved to the program's execution directory
-    File newFile = new File(System.getProperty("user.dir"), fileName);
-    byte[] buffer = new byte[1000000]; // File transfer buffer 1mb
-    boolean readyToReceive = false; // Set true when client is ready for download
+    File newFile = partial != null ? partial.getTarget() : chooseLocalFile(fileName, keyboard);
+    boolean readyToReceive = newFile != null; // Set true when client is ready for download
 
-    InputStream bytesIn = null; // Receives data from server
-    BufferedOutputStream fileWriter = null; // Outputs data to a file
+    // Client is ready to proceed with file download
+    if (readyToReceive) {
 
-    // Logic to prevent local file of the same name being overwritten
-    // Check if the file already exists before downloading
-    if (newFile.exists()) {
-      System.out.print("File of the same name already exists locally. " + "Would you like to overwrite it? [y/n] ");
+      // Send ready response to server, asking for a checksum trailer and
+      // offering the compression codecs
+      TransferDigest digest = checksum != null ? TransferDigest.create(checksum) : null;
+      String ready = digest != null ? "READY " + digest.getAlgorithm() : "READY";
+      outStream.println(compress != null ? ready + " COMPRESS=" + compress : ready);
 
-      // User chooses to overwrite the file.
-      if (keyboard.nextLine().toLowerCase().equals("y")) {
-        readyToReceive = true;
+      try {
+
+        // Server sends the number of bytes it will be sending, followed by
+        // the codec if it compresses them
+        String[] count = Protocol.readLine(inStream).split(" ");
+        long bytesRemaining = Long.parseLong(count[0]);
+        long offset = partial != null ? partial.getReceived() : 0;
+
+        if (count.length > 1) {
+          // Compressed data arrives in blocks that end before the trailer
+          Compression.Decoder data = Compression.decoder(count[1],
+              new Compression.BlockInputStream(inStream), bytesRemaining);
+          saveFile(newFile, fileName, partial, offset, bytesRemaining, data, inStream, digest);
+          displayCompression(count[1], data.getWireBytes(), bytesRemaining);
+        } else {
+          saveFile(newFile, fileName, partial, offset, bytesRemaining, inStream, inStream, digest);
+        }
+
+      } catch (IOException e) {
+        System.err.println("Error while receiving file.");
+        e.printStackTrace();
+      }
+
+    } else {
+      System.out.println("Download Cancelled.");
+      outStream.println("STOP");
+    }
+  }
+
+  /**
+   * Downloads a file over a protocol v2 connection. The local file is chosen
+   * before the request is sent, and a partial download is resumed by asking
+   * for the remainder of a file of the recorded size. The server refuses with
+   * "CHANGED" if the file no longer has that size.
+   *
+   * @param fileName name of the file on the server
+   * @param keyboard Scanner that parses user input from the command line
+   */
+  private static void receiveFramedFile(String fileName, Scanner keyboard) {
+    TransferDigest digest = checksum != null ? TransferDigest.create(checksum) : null;
+    String algorithm = digest != null ? digest.getAlgorithm() : null;
+    PartialDownload partial = PartialDownload.find(new File(System.getProperty("user.dir"), fileName));
+    long[] transfer = null; // {total size, bytes that follow}
+    File newFile;
+
+    try {
+      // Continue where an earlier attempt stopped if it left a partial file
+      if (partial != null) {
+        try {
+          transfer = session.download(fileName, partial.getReceived(), Long.MAX_VALUE,
+              partial.getSize(), algorithm, compress);
+          System.out.println("Resuming download at byte " + partial.getReceived() + ".");
+        } catch (FramedSession.RemoteError e) {
+          if (!e.getCode().equals("CHANGED")) {
+            throw e;
+          }
+          // File on the server changed, the partial data is useless
+          System.out.println("File changed on the server since the last attempt. Starting over.");
+          partial.delete();
+          partial = null;
+        }
+      }
+
+      if (partial == null) {
+        newFile = chooseLocalFile(fileName, keyboard);
+        if (newFile == null) {
+          System.out.println("Download Cancelled.");
+          return;
+        }
+        transfer = session.download(fileName, 0, Long.MAX_VALUE, -1, algorithm, compress);
       } else {
+        newFile = partial.getTarget();
+      }
 
-        System.out.print("Would you like to save the file under a different name? [y/n] ");
-        if (keyboard.nextLine().toLowerCase().equals("y")) {
-          System.out.print("Enter the new filename: ");
-          newFile = new File(System.getProperty("user.dir"), keyboard.nextLine());
-          if (!newFile.exists()) {
-            readyToReceive = true;
-          } else {
-            System.out.println("You chose another name that exists... Pathetic. Download aborted.");
+      long offset = partial != null ? partial.getReceived() : 0;
+      if (session.codec() != null) {
+        Compression.Decoder data = Compression.decoder(session.codec(), session.data(), transfer[1]);
+        saveFile(newFile, fileName, partial, offset, transfer[1], data, null, digest);
+        displayCompression(session.codec(), data.getWireBytes(), transfer[1]);
+      } else {
+        saveFile(newFile, fileName, partial, offset, transfer[1], session.data(), null, digest);
+      }
+
+    } catch (FramedSession.RemoteError e) {
+      System.out.println("File could not be found on the server.");
+    } catch (IOException e) {
+      System.err.println("Error while receiving file.");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Downloads a whole folder from the current server directory. The server
+   * streams the folder as a single archive and it is unpacked on the fly into
+   * a folder of the same name in the program's execution directory, so many
+   * small files don't each pay for a READY handshake.
+   *
+   * @param rawInput  Unformatted user input String containing the folder name
+   * @param keyboard  Scanner that parses user input from the command line
+   * @param outStream TCP socket stream to the server
+   * @param inStream  TCP socket stream from the server
+   */
+  private static void receiveFolder(String rawInput, Scanner keyboard, PrintWriter outStream,
+                                    InputStream inStream) {
+    if (rawInput.split("\\s+").length < 2) {
+      System.out.println("Invalid usage of RDOWNLOAD command. Type HELP to learn more.");
+      return;
+    }
+
+    String folderName = rawInput.substring(rawInput.indexOf(" ")).trim();
+    TransferDigest digest = checksum != null ? TransferDigest.create(checksum) : null;
+    String algorithm = digest != null ? digest.getAlgorithm() : null;
+
+    try {
+      InputStream data;
+      File target;
+
+      if (session != null) {
+        target = chooseLocalFile(new File(folderName).getName(), keyboard);
+        if (target == null) {
+          System.out.println("Download Cancelled.");
+          return;
+        }
+        session.downloadFolder(folderName, algorithm);
+        data = session.data();
+      } else {
+        outStream.println("RDOWNLOAD " + folderName);
+        String response = Protocol.readLine(inStream);
+        if (!"READY".equals(response)) {
+          throw new FramedSession.RemoteError(String.valueOf(response));
+        }
+
+        target = chooseLocalFile(new File(folderName).getName(), keyboard);
+        if (target == null) {
+          outStream.println("CANCEL"); // Anything but READY aborts
+          System.out.println("Download Cancelled.");
+          return;
+        }
+        outStream.println(algorithm == null ? "READY" : "READY " + algorithm);
+        data = inStream;
+      }
+
+      // Compute the checksum over the archive while it is unpacked
+      InputStream archive = digest == null ? data : new FilterInputStream(data) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b != -1) {
+            digest.update(new byte[]{(byte) b}, 0, 1);
           }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          int bytesRead = super.read(buffer, offset, length);
+          if (bytesRead > 0) {
+            digest.update(buffer, offset, bytesRead);
+          }
+          return bytesRead;
+        }
+      };
+
+      System.out.println(target.getName() + ":");
+      System.out.println("\tSave Location: " + target.getPath());
+      long[] received = {0, 0}; // Files and bytes unpacked so far
+      long files = Archive.unpack(archive, target, (file, size) -> {
+        received[0]++;
+        received[1] += size;
+        // Printing every file would slow down folders of many small files
+        if (received[0] % 256 == 0) {
+          System.out.printf("\r\t %d files, %d bytes", received[0], received[1]);
         }
+      });
+      System.out.printf("\r\t %d files, %d bytes%n", received[0], received[1]);
+
+      // Same trailer rules as a single file download
+      String trailer = null;
+      if (session != null) {
+        trailer = session.trailer();
+      } else if (digest != null) {
+        trailer = Protocol.readLine(inStream);
       }
-      // File doesn't exist locally, so download normally
-    } else {
-      readyToReceive = true;
+      if (digest != null && !verifyTrailer(trailer, digest)) {
+        System.out.println("Download Failed. The folder was corrupted in transit, "
+            + "its files can't be trusted.");
+        return;
+      }
+      System.out.println("Download Finished! " + files + " files saved.");
+
+    } catch (FramedSession.RemoteError e) {
+      System.out.println(e.getCode().equals("PD") ? "Folder Access Permission Denied."
+          : "Folder could not be found on the server.");
+    } catch (IOException e) {
+      System.out.println();
+      System.err.println("Error while receiving folder.");
+      e.printStackTrace();
     }
+  }
 
-    // Client is ready to proceed with file download
-    if (readyToReceive) {
+  /**
+   * Updates a local copy of a file to match the server's copy. The client
+   * sends block checksums of its copy and the server answers with the blocks
+   * to reuse and the bytes that changed, so a large file that changed a
+   * little costs little more than its checksums. The copy is patched in place
+   * and checked against the server's checksum trailer afterwards; a SYNC that
+   * fails part way is repaired by running it again.
+   *
+   * @param rawInput Unformatted user input String containing the file name
+   */
+  private static void syncFile(String rawInput) {
+    if (rawInput.split("\\s+").length < 2) {
+      System.out.println("Invalid usage of SYNC command. Type HELP to learn more.");
+      return;
+    }
+    if (session == null) {
+      System.out.println("SYNC requires protocol v2. Reconnect without --protocol=v1.");
+      return;
+    }
 
-      // Send ready response to server
-      outStream.println("READY");
+    String fileName = rawInput.substring(rawInput.indexOf(" ")).trim();
+    File localFile = new File(System.getProperty("user.dir"), new File(fileName).getName());
+    if (!localFile.isFile()) {
+      System.out.println("There is no local copy of " + localFile.getName()
+          + " to update. Use DOWNLOAD instead.");
+      return;
+    }
+    TransferDigest digest = checksum != null ? TransferDigest.create(checksum) : null;
+    String algorithm = digest != null ? digest.getAlgorithm() : null;
 
-      // Create output stream to new file
+    try {
+      ByteArrayOutputStream signature = new ByteArrayOutputStream();
+      int block = Delta.writeSignature(localFile, new DataOutputStream(signature));
+      long start = System.nanoTime();
+      long total = session.sync(fileName, signature.toByteArray(), algorithm);
+
+      System.out.println(localFile.getName() + ":");
+      System.out.println("\tSave Location: " + localFile.getPath());
+      // A copy deduplicated by a hard link shares its data with the other
+      // links, it gets data of its own before it is patched
       try {
-        fileWriter = new BufferedOutputStream(new FileOutputStream(newFile));
-      } catch (FileNotFoundException e) {
-        System.err.println("Could not create file output stream.");
-        e.printStackTrace();
+        Object links = Files.getAttribute(localFile.toPath(), "unix:nlink");
+        if (links instanceof Integer && (Integer) links > 1) {
+          File copy = new File(localFile.getPath() + ".sync");
+          Files.copy(localFile.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+          Files.move(copy.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+      } catch (UnsupportedOperationException | IllegalArgumentException ex) {
+        // No hard links on this file system
       }
 
-      // Create direct input stream from server. The existing buffered reader
-      // is not good for file transfers
-      try {
-        bytesIn = sock.getInputStream();
-      } catch (IOException e) {
-        e.printStackTrace();
+      long[] result;
+      try (RandomAccessFile file = new RandomAccessFile(localFile, "rw")) {
+        result = Delta.apply(file, block, session.data(), total);
+      }
+      String trailer = session.trailer();
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      // The checksum covers the whole file, so the patched copy is read back
+      if (digest != null) {
+        try (InputStream in = new FileInputStream(localFile);
+             BufferPool.Lease lease = BufferPool.HEAP.acquire(1000000)) {
+          byte[] buffer = lease.array();
+          int bytesRead;
+          while ((bytesRead = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, bytesRead);
+          }
+        }
+        if (!verifyTrailer(trailer, digest)) {
+          System.out.println("Sync Failed. The file does not match the server's copy, "
+              + "SYNC or DOWNLOAD it again.");
+          return;
+        }
       }
 
-      try {
+      System.out.printf("\t %d bytes reused, %d bytes received, %d bytes of checksums sent%n",
+          result[0], result[1], signature.size());
+      System.out.printf("Sync Finished! %d bytes in %.2f seconds, %.1f%% of the file sent.%n",
+          total, seconds, total == 0 ? 0 : 100.0 * result[1] / total);
 
-        // Server sends the size of the file it will be sending
-        int totalSize = Integer.parseInt(inStream.readLine());
-        int bytesRemaining = totalSize;
-        System.out.println(newFile.getName() + ":");
+    } catch (FramedSession.RemoteError e) {
+      System.out.println("File could not be found on the server.");
+    } catch (IOException e) {
+      System.err.println("Error while syncing file. Run SYNC again to repair the local copy.");
+      e.printStackTrace();
+    }
+  }
 
-        // Change size units depending on the file size
-        if (totalSize > 1000000) {
-          System.out.println("\tSize: " + bytesRemaining / 1000000 + " megabytes");
-        } else {
-          System.out.println("\tSize: " + bytesRemaining + " bytes");
+  /**
+   * Saves the file data sent by the server. The data is written to a ".part"
+   * file first, by a DiskWriter while the next data is read, and the sidecar
+   * is updated as the data reaches the disk. When
+   * all data has arrived the checksum trailer is verified and the part file is
+   * moved into place.
+   *
+   * @param newFile        the file the download is saved as
+   * @param fileName       name of the file on the server
+   * @param partial        the partial download being resumed, or null
+   * @param offset         position in the file of the first byte that follows
+   * @param bytesRemaining number of bytes the server is sending
+   * @param data           stream the file bytes are read from
+   * @param control        stream the v1 trailer line is read from, null for v2
+   * @param digest         checksum the server sends as a trailer, or null
+   * @throws IOException if the transfer fails
+   */
+  private static void saveFile(File newFile, String fileName, PartialDownload partial,
+                               long offset, long bytesRemaining, InputStream data,
+                               InputStream control, TransferDigest digest) throws IOException {
+
+    long totalSize = offset + bytesRemaining;
+    System.out.println(newFile.getName() + ":");
+
+    // Change size units depending on the file size
+    if (totalSize > 1000000) {
+      System.out.println("\tSize: " + totalSize / 1000000 + " megabytes");
+    } else {
+      System.out.println("\tSize: " + totalSize + " bytes");
+    }
+
+    // Display where the new file can be found
+    System.out.println("\tSave Location: " + newFile.getPath());
+
+    // Start writing to the partial file on the disk writer thread
+    if (partial == null) {
+      partial = PartialDownload.start(newFile, totalSize);
+    }
+    DiskWriter writer;
+    try {
+      writer = new DiskWriter(partial, digest);
+    } catch (IOException e) {
+      System.err.println("Could not create file output stream.");
+      e.printStackTrace();
+      return;
+    }
+
+    // Show the file download progress. Useful for large files
+    System.out.println("Progress:");
+
+    long received = offset; // Bytes of the file read so far
+    long lastProgress = System.nanoTime() - PROGRESS_NANOS;
+    try {
+      // Loop until all bytes of the incoming file have been successfully read.
+      // The writer thread saves each full buffer while the next one is read.
+      while (bytesRemaining > 0) {
+        int bytesRead = writer.receive(data, bytesRemaining);
+        if (bytesRead == -1) {
+          throw new EOFException("Server closed the connection");
+        }
+        bytesRemaining -= bytesRead; // Decrement bytesRemaining counter
+        received += bytesRead;
+
+        // Display the file download progress as a percentage. Overwrite the
+        // previous line, but not more often than the terminal can keep up with
+        long now = System.nanoTime();
+        if (now - lastProgress >= PROGRESS_NANOS || bytesRemaining == 0) {
+          lastProgress = now;
+          int percentage = (int) (received * 100 / Math.max(totalSize, 1));
+          System.out.printf("\r\t %3d%% complete", percentage);
         }
+      }
+      System.out.println();
+
+      // Wait until the whole file is on the disk, then close it
+      writer.finish();
+      writer.close();
+
+      // Protocol v2 always ends a download with a trailer frame, v1 only sends
+      // a trailer line when a checksum was requested
+      String trailer = null;
+      if (session != null) {
+        trailer = session.trailer();
+      } else if (digest != null) {
+        trailer = Protocol.readLine(control);
+      }
 
-        // Display where the new file can be found
-        System.out.println("\tSave Location: " + newFile.getPath());
+      // Compare the server's checksum trailer with the one computed here
+      if (digest != null && !verifyTrailer(trailer, digest)) {
+        partial.delete();
+        System.out.println("Download Failed. The file was corrupted in transit and has been deleted.");
+        return;
+      }
 
-        // Show the file download progress. Useful for large files
-        System.out.println("Progress:");
-        // Make sure that fileWriter and bytesIn streams have been initialized
-        if (fileWriter != null && bytesIn != null) {
+      // Move the finished file into place
+      partial.complete();
+      indexDownload(newFile);
+
+    } catch (IOException e) {
+      // Keep everything that arrived so the next attempt can resume
+      writer.close();
+      System.out.println();
+      System.out.println("Download interrupted after " + writer.getPosition() + " of " + totalSize
+          + " bytes. DOWNLOAD " + fileName + " again to resume.");
+      throw e;
+    }
 
-          // Loop until all bytes of the incoming file have been successfully read
-          while (bytesRemaining > 0) {
-            int bytesRead = bytesIn.read(buffer, 0, buffer.length);
-            if (bytesRead != -1) {
-              bytesRemaining -= bytesRead; // Decrement bytesRemaining counter
-              fileWriter.write(buffer, 0, bytesRead); // Write new data to file
-            }
+    // Display success message.
+    System.out.println("Download Finished!");
+  }
 
-            // Display the file download progress as a percentage. Overwrite previous line.
-            int percentage = (int) (((float) 1 - (float) bytesRemaining / (float) totalSize) * 100);
+  /**
+   * Reports how much a compressed download saved.
+   *
+   * @param codec     the codec the server used
+   * @param wireBytes compressed bytes received
+   * @param fileBytes file bytes they decompressed to
+   */
+  private static void displayCompression(String codec, long wireBytes, long fileBytes) {
+    System.out.printf("Compressed with %s: %d bytes on the wire for %d bytes of file (%.1f%%)%n",
+        codec, wireBytes, fileBytes, wireBytes * 100.0 / Math.max(fileBytes, 1));
+  }
+
+  /**
+   * Sends a simple request and returns the server's one line response. Uses
+   * a frame when the connection talks protocol v2 and a text line otherwise.
+   *
+   * @param command   command name such as "PWD"
+   * @param argument  command argument, or null for none
+   * @param outStream TCP socket stream to the server
+   * @param inStream  TCP socket stream from the server
+   * @return the response text or error code, null if the server disconnected
+   * @throws IOException if the connection fails
+   */
+  private static String request(String command, String argument, PrintWriter outStream,
+                                InputStream inStream) throws IOException {
+    if (session != null) {
+      return session.call(Protocol.opcodeOf(command), argument);
+    }
+    outStream.println(argument == null ? command : command + " " + argument);
+    return Protocol.readLine(inStream);
+  }
 
-            System.out.printf("\r\t %3d%% complete", percentage);
+  /**
+   * Runs every command of a local batch file over the v2 connection without
+   * waiting for responses in between. All requests are sent at once and the
+   * server interleaves the chunks of the downloads on the connection, so
+   * many small files don't each pay a round trip.
+   *
+   * @param rawInput Unformatted user input String containing the batch file
+   * @return the server directory after the batch, or null if it didn't change
+   */
+  private static String pipeline(String rawInput) {
+    if (rawInput.split("\\s+").length < 2) {
+      System.out.println("Invalid usage of PIPE command. Type HELP to learn more.");
+      return null;
+    }
+    if (session == null) {
+      System.out.println("PIPE requires protocol v2. Reconnect without --protocol=v1.");
+      return null;
+    }
 
-          }
-          System.out.println();
+    File batch = new File(rawInput.substring(rawInput.indexOf(" ")).trim());
+    PipelinedRequests requests = new PipelinedRequests(session, checksum);
 
-          // Flush and close the file output stream when finished
-          fileWriter.flush();
-          fileWriter.close();
+    try (BufferedReader reader = new BufferedReader(new FileReader(batch))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        requests.add(line.trim());
+      }
+    } catch (FileNotFoundException e) {
+      System.out.println("Batch file " + batch + " does not exist.");
+      return null;
+    } catch (IOException e) {
+      System.err.println("Could not send the batch.");
+      e.printStackTrace();
+      return null;
+    }
 
-        } else {
-          System.err.println("Could not download because streams are null...");
+    try {
+      session.receive(requests);
+    } catch (IOException e) {
+      // Keep everything that arrived so the downloads can be resumed
+      requests.abort();
+      System.err.println("Error while receiving pipelined responses.");
+      e.printStackTrace();
+    }
+    return requests.getPath();
+  }
+
+  /**
+   * Avoids a download whose contents are already held locally. If the target
+   * exists with the same contents the download is skipped, and if another
+   * indexed file has them the target is hard linked to it, or copied where
+   * links aren't supported.
+   *
+   * @param target   local file the download would be saved as
+   * @param response the server's answer to HASH for the file
+   * @return what was done instead of the download, or null if the file has to
+   * be downloaded
+   */
+  static String reuseLocalCopy(File target, String response) {
+    // Servers without HASH answer with an error, the file is just downloaded
+    String[] remote = response == null ? new String[0] : response.split(" ");
+    if (localIndex == null || remote.length != 3 || !remote[0].equals(HashIndex.ALGORITHM)) {
+      return null;
+    }
+
+    try {
+      String hash = remote[1];
+      long size = Long.parseLong(remote[2]);
+      if (target.exists()) {
+        boolean same = target.isFile() && target.length() == size
+            && localIndex.hash(target).equals(hash);
+        return same ? "the local file is identical" : null;
+      }
+
+      File source = localIndex.find(hash, size);
+      if (source == null) {
+        return null;
+      }
+      File parent = target.getParentFile();
+      if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+        return null;
+      }
+      String action = "linked to " + source.getPath();
+      try {
+        Files.createLink(target.toPath(), source.toPath());
+      } catch (IOException | UnsupportedOperationException ex) {
+        Files.copy(source.toPath(), target.toPath());
+        action = "copied from " + source.getPath();
+      }
+      localIndex.hash(target);
+      return action;
+    } catch (IOException | NumberFormatException ex) {
+      return null; // Download it instead
+    }
+  }
+
+  /**
+   * Adds a finished download to the local hash index so later downloads of
+   * the same contents can reuse it.
+   *
+   * @param file the downloaded file
+   */
+  static void indexDownload(File file) {
+    if (localIndex == null) {
+      return;
+    }
+    try {
+      localIndex.hash(file);
+    } catch (IOException ex) {
+      // Not indexed, it is downloaded again next time
+    }
+  }
+
+  /**
+   * Writes the local hash index to disk.
+   */
+  private static void saveIndex() {
+    if (localIndex == null) {
+      return;
+    }
+    try {
+      localIndex.save();
+    } catch (IOException ex) {
+      System.err.println("Could not save the hash index: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Checks the checksum trailer the server sends after the file data.
+   *
+   * @param trailer the trailer line, "ALGORITHM hex" or "NONE"
+   * @param digest  checksum computed over the received bytes
+   * @return false if the checksums differ, true if they match or the server
+   * could not compute one
+   */
+  static boolean verifyTrailer(String trailer, TransferDigest digest) {
+    if ("NONE".equals(trailer)) {
+      System.out.println("Server does not support " + digest.getAlgorithm()
+          + ", the download was not verified.");
+      return true;
+    }
+    return (digest.getAlgorithm() + " " + digest.finish()).equals(trailer);
+  }
+
+  /**
+   * Picks the local file a download is saved to. Downloaded files are saved to
+   * the program's execution directory. If a file of the same name already
+   * exists the user is asked to overwrite it or to choose a different name.
+   *
+   * @param fileName name of the file on the server
+   * @param keyboard Scanner that parses user input from the command line
+   * @return the file to save the download to, or null if the user cancelled
+   */
+  private static File chooseLocalFile(String fileName, Scanner keyboard) {
+    File newFile = new File(System.getProperty("user.dir"), fileName);
+
+    // Logic to prevent local file of the same name being overwritten
+    // Check if the file already exists before downloading
+    if (newFile.exists()) {
+      System.out.print("File of the same name already exists locally. " + "Would you like to overwrite it? [y/n] ");
+
+      // User chooses to overwrite the file.
+      if (keyboard.nextLine().toLowerCase().equals("y")) {
+        return newFile;
+      }
+
+      System.out.print("Would you like to save the file under a different name? [y/n] ");
+      if (keyboard.nextLine().toLowerCase().equals("y")) {
+        System.out.print("Enter the new filename: ");
+        newFile = new File(System.getProperty("user.dir"), keyboard.nextLine());
+        if (!newFile.exists()) {
+          return newFile;
         }
+        System.out.println("You chose another name that exists... Pathetic. Download aborted.");
+      }
+      return null;
+    }
 
-        // Display success message.
-        System.out.println("Download Finished!");
+    // File doesn't exist locally, so download normally
+    return newFile;
+  }
 
-      } catch (IOException e) {
-        System.err.println("Error while receiving file.");
-        e.printStackTrace();
+  /**
+   * Downloads a file over several connections at once. The file is split into
+   * segments of segmentSize bytes. Each of the streams connections asks the
+   * server for one segment at a time with the RANGE command and writes it
+   * straight to its position in the local file.
+   *
+   * @param rawInput  Unformatted user input String containing the file name
+   * @param keyboard  Scanner that parses user input from the command line
+   * @param outStream TCP socket stream to the server
+   * @param inStream  TCP socket stream from the server
+   */
+  private static void parallelDownload(String rawInput, Scanner keyboard,
+                                       PrintWriter outStream, InputStream inStream) {
+
+    if (rawInput.split("\\s+").length < 2) {
+      System.out.println("Invalid usage of PDOWNLOAD command. Type HELP to learn more.");
+      return;
+    }
+
+    // Cut out command to get name of file to download
+    String fileName = rawInput.substring(rawInput.indexOf(" ")).trim();
+    long totalSize;
+    String remoteDirectory;
+
+    try {
+      // Get the file size so it can be split, and the directory the file is
+      // in so the extra connections can navigate to it
+      String response = request("SIZE", fileName, outStream, inStream);
+      if (response.equals("FNF")) {
+        System.out.println("File could not be found on the server.");
+        return;
       }
+      totalSize = Long.parseLong(response);
 
-    } else {
+      remoteDirectory = request("PWD", null, outStream, inStream);
+    } catch (IOException | NumberFormatException e) {
+      System.err.println("PDOWNLOAD error. Could not get response from server");
+      e.printStackTrace();
+      return;
+    }
+
+    File newFile = chooseLocalFile(fileName, keyboard);
+    if (newFile == null) {
       System.out.println("Download Cancelled.");
-      outStream.println("STOP");
+      return;
+    }
+
+    // Split the file into segments that the connections take turns fetching
+    Queue<long[]> segments = new ConcurrentLinkedQueue<>();
+    for (long offset = 0; offset < totalSize; offset += segmentSize) {
+      segments.add(new long[]{offset, Math.min(segmentSize, totalSize - offset)});
+    }
+    int connections = Math.min(streams, segments.size());
+
+    System.out.println(newFile.getName() + ":");
+    System.out.println("\tSize: " + totalSize + " bytes in " + segments.size()
+        + " segments over " + connections + " connections");
+    System.out.println("\tSave Location: " + newFile.getPath());
+    System.out.println("Progress:");
+
+    try (RandomAccessFile file = new RandomAccessFile(newFile, "rw")) {
+      file.setLength(totalSize);
+
+      AtomicLong received = new AtomicLong();
+      SegmentDownloader[] downloaders = new SegmentDownloader[connections];
+      Thread[] threads = new Thread[connections];
+      long startTime = System.nanoTime();
+
+      for (int i = 0; i < connections; i++) {
+        downloaders[i] = new SegmentDownloader(host, port, remoteDirectory,
+            fileName, totalSize, segments, file.getChannel(), received);
+        threads[i] = new Thread(downloaders[i]);
+        threads[i].start();
+      }
+
+      // Display the combined progress of all connections until they finish
+      for (Thread thread : threads) {
+        while (thread.isAlive()) {
+          thread.join(250);
+          int percentage = (int) (received.get() * 100 / Math.max(totalSize, 1));
+          System.out.printf("\r\t %3d%% complete", percentage);
+        }
+      }
+      System.out.println();
+
+      double seconds = (System.nanoTime() - startTime) / 1e9;
+
+      for (SegmentDownloader downloader : downloaders) {
+        if (downloader.getError() != null) {
+          System.err.println("Connection failed: " + downloader.getError().getMessage());
+        }
+      }
+
+      if (!segments.isEmpty() || received.get() != totalSize) {
+        System.out.println("Download Failed. Received " + received.get() + " of "
+            + totalSize + " bytes.");
+        return;
+      }
+
+      System.out.printf("Download Finished! %d bytes in %.2f seconds (%.2f MB/s)%n",
+          totalSize, seconds, totalSize / 1e6 / Math.max(seconds, 1e-9));
+
+    } catch (IOException e) {
+      System.err.println("Error while receiving file.");
+      e.printStackTrace();
+    } catch (InterruptedException e) {
+      System.err.println("Interrupted while waiting for the download to finish.");
     }
   }
 
@@ -342,14 +1191,14 @@ class Client {
    * @return Returns new directory string if "CD" request successful. Else prints
    * error to the console and returns "ERROR"
    */
-  private static String changeDirectory(String rawInput, PrintWriter outStream, BufferedReader inStream) {
+  private static String changeDirectory(String rawInput, PrintWriter outStream, InputStream inStream) {
 
     // Make sure that "CD" request has at least a single argument
     if (rawInput.split("\\s+").length >= 2) {
-      outStream.println(rawInput); // Send server command + argument
       try {
-        // response should be the new directory string
-        String response = inStream.readLine();
+        // Send server command + argument, response should be the new directory string
+        String response = request("CD", rawInput.substring(rawInput.indexOf(" ")).trim(),
+            outStream, inStream);
 
         // Get response. Translate error codes if present.
         switch (response) {
@@ -380,7 +1229,7 @@ class Client {
    *
    * @param str String response from the server
    */
-  private static void displayDirectory(String str) {
+  static void displayDirectory(String str) {
 
     // Create a new scanner to get tokens between "#" character.
     Scanner parser = new Scanner(str).useDelimiter("#");
@@ -399,6 +1248,163 @@ class Client {
     parser.close();
   }
 
+  /**
+   * Lists the current server directory with the LIST command. The listing is
+   * requested LIST_PAGE entries at a time and each row is displayed as soon
+   * as it arrives, so huge directories neither wait for nor hold the whole
+   * listing.
+   *
+   * @param rawInput  the DIR command, optionally followed by
+   *                  "sort=name|size|type" and "filter=glob". The filter may
+   *                  contain spaces so it has to come last.
+   * @param outStream TCP socket stream to the server
+   * @param inStream  TCP socket stream from the server
+   * @throws IOException if the connection fails
+   */
+  private static void listDirectory(String rawInput, PrintWriter outStream,
+                                    InputStream inStream) throws IOException {
+    String options = rawInput.indexOf(" ") > 0 ? rawInput.substring(rawInput.indexOf(" ")).trim() : "";
+    String arguments = ("limit=" + LIST_PAGE + " " + options).trim();
+    long[] rows = {0};
+
+    System.out.println("Type      Size(b)       Name");
+    System.out.println("----      -------       ----");
+
+    while (true) {
+      String status;
+      if (session != null) {
+        status = session.stream(Protocol.LIST, arguments, row -> displayRow(row, rows));
+      } else {
+        outStream.println("LIST " + arguments);
+        // Rows start with their type, the status line never does
+        while ((status = Protocol.readLine(inStream)) != null
+            && (status.startsWith("File#") || status.startsWith("Folder#"))) {
+          displayRow(status, rows);
+        }
+        if (status == null) {
+          throw new EOFException("Server closed the connection");
+        }
+      }
+
+      if (status.startsWith("MORE ")) {
+        arguments = "limit=" + LIST_PAGE + " from=" + status.substring(5);
+      } else if (status.equals("END")) {
+        break;
+      } else {
+        System.out.println("DIR Error: " + (status.equals("DDNE")
+            ? "Directory can't be read." : "Invalid sort or filter. Type HELP to learn more."));
+        return;
+      }
+    }
+
+    if (rows[0] == 0) {
+      System.out.println("Empty directory.");
+    }
+    System.out.println();
+  }
+
+  /**
+   * Searches the current server directory and everything below it. Filter
+   * words such as min=1M come first, the rest of the input is the glob the
+   * names must match unless it starts with regex=. Matches are displayed as
+   * the server finds them.
+   *
+   * @param rawInput  the user's SEARCH command
+   * @param outStream TCP socket stream to the server
+   * @param inStream  TCP socket stream from the server
+   * @throws IOException if the connection fails
+   */
+  private static void search(String rawInput, PrintWriter outStream, InputStream inStream)
+      throws IOException {
+    if (rawInput.split("\\s+").length < 2) {
+      System.out.println("Invalid usage of SEARCH command. Type HELP to learn more.");
+      return;
+    }
+
+    // The pattern is sent last as name= so it may contain spaces
+    StringBuilder arguments = new StringBuilder();
+    String rest = rawInput.substring(rawInput.indexOf(" ")).trim();
+    while (rest.matches("(min|max|newer|older|limit)=\\S+(\\s.*)?")) {
+      int end = rest.indexOf(' ');
+      arguments.append(end == -1 ? rest : rest.substring(0, end)).append(' ');
+      rest = end == -1 ? "" : rest.substring(end).trim();
+    }
+    if (!rest.isEmpty()) {
+      arguments.append(rest.startsWith("regex=") || rest.startsWith("name=") ? rest : "name=" + rest);
+    }
+
+    System.out.println("Type      Size(b)       Path");
+    System.out.println("----      -------       ----");
+
+    long[] rows = {0};
+    String status;
+    if (session != null) {
+      status = session.stream(Protocol.SEARCH, arguments.toString().trim(),
+          row -> displayRow(row, rows));
+    } else {
+      outStream.println("SEARCH " + arguments.toString().trim());
+      // Rows start with their type, the status line never does
+      while ((status = Protocol.readLine(inStream)) != null
+          && (status.startsWith("File#") || status.startsWith("Folder#"))) {
+        displayRow(status, rows);
+      }
+      if (status == null) {
+        throw new EOFException("Server closed the connection");
+      }
+    }
+
+    if (status.equals("END")) {
+      System.out.println(rows[0] == 0 ? "No matches."
+          : rows[0] + (rows[0] == 1 ? " match." : " matches."));
+    } else if (status.equals("LIMIT")) {
+      System.out.println("Showing the first " + rows[0] + " matches. Narrow the search or "
+          + "raise limit= to see the rest.");
+    } else {
+      System.out.println("SEARCH Error: " + (status.equals("DDNE")
+          ? "Directory can't be read." : "Invalid filter or pattern. Type HELP to learn more."));
+    }
+    System.out.println();
+  }
+
+  /**
+   * Displays a single row of a LIST response.
+   *
+   * @param row   "Type#Size#Name" row sent by the server
+   * @param count number of rows displayed so far, incremented
+   */
+  private static void displayRow(String row, long[] count) {
+    String[] tokens = row.split("#", 3);
+    if (tokens.length == 3) {
+      System.out.printf("%-6s    %-10s    %s%n", tokens[0], tokens[1], tokens[2]);
+      count[0]++;
+    }
+  }
+
+  /**
+   * Asks the server for its metrics and prints them. Protocol v1 sends one
+   * sample per line and ends with an empty line.
+   *
+   * @param outStream TCP socket stream to the server
+   * @param inStream  TCP socket stream from the server
+   * @throws IOException if the response can't be read
+   */
+  private static void displayStatistics(PrintWriter outStream, InputStream inStream)
+      throws IOException {
+    if (session != null) {
+      System.out.print(session.call(Protocol.STATS, null));
+      return;
+    }
+
+    outStream.println("STATS");
+    String line;
+    while ((line = Protocol.readLine(inStream)) != null && !line.isEmpty()) {
+      System.out.println(line);
+      if (line.equals("Client Request Error.")) {
+        break; // Server without metrics
+      }
+    }
+  }
+
   /**
    * Displays list of all client commands and their usage.
    */
@@ -413,14 +1419,33 @@ class Client {
     string.append("\tDisconnects from the server and closes client\n\n");
     string.append("PWD\n");
     string.append("\tDisplays your current directory on the server\n\n");
-    string.append("DIR\n");
-    string.append("\tDisplays file and folder listings of the current " + "directory\n\n");
+    string.append("DIR [sort=name|size|type] [filter=glob]\n");
+    string.append("\tDisplays file and folder listings of the current " + "directory\n");
+    string.append("\tOptional: sort=name|size|type to sort, filter=<glob> to only show\n");
+    string.append("\tmatching names, such as DIR sort=size filter=*.txt\n\n");
+    string.append("SEARCH [min=size] [max=size] [newer=days] [older=days] [limit=N] <glob>\n");
+    string.append("\tFinds files and folders below the current directory whose names match\n");
+    string.append("\tthe glob, such as SEARCH min=10M *.iso. Use regex=<expression> instead\n");
+    string.append("\tof the glob to match the paths with a regular expression\n\n");
     string.append("CD <absolute/relative directory>\n");
     string.append("\tNavigate to the specified directory.\n" + "\tType .. to move up a directory\n\n");
     string.append("DOWNLOAD <filename>\n");
     string.append("\tDownloads the specified file to ");
     string.append(System.getProperty("user.dir"));
-    string.append("\n\tIf the file exists you will be prompted to overwrite, rename, or cancel\n\tthe download\n");
+    string.append("\n\tIf the file exists you will be prompted to overwrite, rename, or cancel\n\tthe download\n\n");
+    string.append("PDOWNLOAD <filename>\n");
+    string.append("\tDownloads the specified file over " + streams + " connections at once,\n");
+    string.append("\tfetching " + segmentSize + " byte segments in parallel\n\n");
+    string.append("RDOWNLOAD <folder>\n");
+    string.append("\tDownloads the specified folder and everything in it as one stream\n\n");
+    string.append("SYNC <filename>\n");
+    string.append("\tUpdates the local copy of the specified file, receiving only the parts\n");
+    string.append("\tthat changed on the server\n\n");
+    string.append("STATS\n");
+    string.append("\tDisplays the server's connection, command, transfer and error metrics\n\n");
+    string.append("PIPE <local batch file>\n");
+    string.append("\tSends every PWD, DIR, CD and DOWNLOAD line of the file at once and\n");
+    string.append("\treceives the downloads interleaved. Existing local files are skipped\n");
 
     System.out.println(string);
   }
@@ -435,3 +1460,342 @@ class Client {
     System.out.print("> ");
   }
 }
+
+/**
+ * SegmentDownloader fetches file segments over its own connection to the
+ * server. Several of them run at once during a PDOWNLOAD, each taking the next
+ * segment from a shared queue until the queue is empty.
+ */
+class SegmentDownloader implements Runnable {
+
+  private final String host;
+  private final int port;
+  private final String remoteDirectory;
+  private final String fileName;
+  private final long totalSize;
+  private final Queue<long[]> segments;
+  private final FileChannel file;
+  private final AtomicLong received;
+  private volatile Exception error;
+
+  /**
+   * Constructor.
+   *
+   * @param host            the server name or IP address to connect to
+   * @param port            the port number to connect to
+   * @param remoteDirectory server directory that contains the file
+   * @param fileName        name of the file on the server
+   * @param totalSize       size of the whole file in bytes
+   * @param segments        shared queue of {offset, length} segments to fetch
+   * @param file            local file channel the segments are written to
+   * @param received        shared count of bytes received by all connections
+   */
+  SegmentDownloader(String host, int port, String remoteDirectory, String fileName,
+                    long totalSize, Queue<long[]> segments, FileChannel file,
+                    AtomicLong received) {
+    this.host = host;
+    this.port = port;
+    this.remoteDirectory = remoteDirectory;
+    this.fileName = fileName;
+    this.totalSize = totalSize;
+    this.segments = segments;
+    this.file = file;
+    this.received = received;
+  }
+
+  /**
+   * @return the error that stopped this connection, or null
+   */
+  Exception getError() {
+    return error;
+  }
+
+  /**
+   * Connects to the server and fetches segments until none are left. A
+   * segment that fails is put back on the queue for another connection.
+   */
+  public void run() {
+    long[] segment = null;
+    long segmentReceived = 0; // Bytes of the current segment counted in received
+
+    // Waits out BUSY replies like the main connection, the greeting is read
+    try (ServerConnection connection = ServerConnection.open(host, port);
+         BufferPool.Lease lease = BufferPool.HEAP.acquire(1000000)) {
+      PrintWriter outStream = new PrintWriter(connection.socket.getOutputStream(), true);
+      // Control lines and file data are both read from this one stream
+      InputStream inStream = connection.in;
+      ByteBuffer buffer = lease.buffer(); // 1mb transfer buffer
+
+      outStream.println("CD " + remoteDirectory);
+      String response = Protocol.readLine(inStream);
+      if (response == null || response.equals("DDNE") || response.equals("PD")) {
+        throw new IOException("Could not open " + remoteDirectory + " on the server");
+      }
+
+      while ((segment = segments.poll()) != null) {
+        outStream.println("RANGE " + segment[0] + " " + segment[1] + " " + fileName);
+
+        // The server answers with the total size, make sure the file is unchanged
+        response = Protocol.readLine(inStream);
+        if (!("READY " + totalSize).equals(response)) {
+          throw new IOException("Server refused segment: " + response);
+        }
+        TransferDigest digest = Client.checksum != null ? TransferDigest.create(Client.checksum) : null;
+        outStream.println(digest != null ? "READY " + digest.getAlgorithm() : "READY");
+
+        long bytesRemaining = Long.parseLong(Protocol.readLine(inStream));
+        long position = segment[0];
+        segmentReceived = 0;
+
+        // Write each chunk to its place in the file as it arrives
+        while (bytesRemaining > 0) {
+          int bytesRead = inStream.read(buffer.array(), 0,
+              (int) Math.min(buffer.capacity(), bytesRemaining));
+          if (bytesRead == -1) {
+            throw new EOFException("Server closed the connection");
+          }
+
+          if (digest != null) {
+            digest.update(buffer.array(), 0, bytesRead);
+          }
+
+          buffer.clear();
+          buffer.limit(bytesRead);
+          while (buffer.hasRemaining()) {
+            position += file.write(buffer, position);
+          }
+
+          bytesRemaining -= bytesRead;
+          segmentReceived += bytesRead;
+          received.addAndGet(bytesRead);
+        }
+
+        // A corrupted segment is thrown away and fetched again
+        if (digest != null && !Client.verifyTrailer(Protocol.readLine(inStream), digest)) {
+          throw new IOException("Checksum mismatch in segment at " + segment[0]);
+        }
+        segment = null;
+      }
+
+      outStream.println("BYE");
+    } catch (IOException | NumberFormatException e) {
+      error = e;
+      if (segment != null) {
+        // Let another connection retry the segment from the start
+        received.addAndGet(-segmentReceived);
+        segments.add(segment);
+      }
+    }
+  }
+}
+
+/**
+ * PipelinedRequests runs a PIPE batch. Commands are sent as soon as they are
+ * read, and the responses are matched to their commands by request id as they
+ * come back. Downloads are saved through PartialDownload just like DOWNLOAD,
+ * so an interrupted batch can be resumed file by file.
+ */
+class PipelinedRequests implements FramedSession.Listener {
+
+  private final FramedSession session;
+  private final String algorithm;
+  // Commands waiting for a response, by request id
+  private final Map<Integer, String> commands = new HashMap<>();
+  // Downloads that have been requested or are being received, by request id
+  private final Map<Integer, Download> downloads = new HashMap<>();
+  private String path;
+
+  /**
+   * Constructor.
+   *
+   * @param session   protocol v2 session the batch is sent over
+   * @param algorithm checksum the server sends after each download, or null
+   */
+  PipelinedRequests(FramedSession session, String algorithm) {
+    this.session = session;
+    this.algorithm = algorithm;
+  }
+
+  /**
+   * Sends one line of the batch without waiting for its response.
+   *
+   * @param line command line such as "DOWNLOAD file.txt"
+   * @throws IOException if the request can't be sent
+   */
+  void add(String line) throws IOException {
+    if (line.isEmpty()) {
+      return;
+    }
+
+    String command = line.split("\\s+")[0].toUpperCase();
+    String argument = line.indexOf(" ") > 0 ? line.substring(line.indexOf(" ")).trim() : null;
+
+    switch (command) {
+      case "PWD":
+      case "DIR":
+        commands.put(session.send(Protocol.opcodeOf(command), null), line);
+        break;
+      case "CD":
+      case "DOWNLOAD":
+        if (argument == null) {
+          System.out.println("Skipping \"" + line + "\": missing argument.");
+        } else if (command.equals("CD")) {
+          commands.put(session.send(Protocol.CD, argument), line);
+        } else {
+          requestFile(argument);
+        }
+        break;
+      default:
+        System.out.println("Skipping \"" + line + "\": only PWD, DIR, CD and DOWNLOAD can be pipelined.");
+    }
+  }
+
+  /**
+   * Requests a file, or the rest of it if an earlier attempt left a partial
+   * download. Files that already exist locally are skipped, there is nobody
+   * to ask whether to overwrite them.
+   *
+   * @param fileName name of the file on the server
+   * @throws IOException if the request can't be sent
+   */
+  private void requestFile(String fileName) throws IOException {
+    Download download = new Download(fileName);
+    download.partial = PartialDownload.find(download.target);
+
+    if (download.partial == null && download.target.exists()) {
+      System.out.println("Skipping " + fileName + ": file of the same name already exists locally.");
+      return;
+    }
+
+    int id;
+    if (download.partial != null) {
+      id = session.sendDownload(fileName, download.partial.getReceived(), Long.MAX_VALUE,
+          download.partial.getSize(), algorithm);
+    } else {
+      id = session.sendDownload(fileName, 0, Long.MAX_VALUE, -1, algorithm);
+    }
+    downloads.put(id, download);
+  }
+
+  @Override
+  public void onResponse(int id, boolean ok, String text) throws IOException {
+    Download download = downloads.remove(id);
+    if (download != null) {
+      // Download refused before any data was sent
+      if (text.equals("CHANGED")) {
+        download.partial.delete();
+        System.out.println(download.name + ": file changed on the server since the last attempt. "
+            + "DOWNLOAD it again to start over.");
+      } else {
+        System.out.println(download.name + ": file could not be found on the server.");
+      }
+      return;
+    }
+
+    String line = commands.remove(id);
+    if (ok && line.toUpperCase().startsWith("DIR")) {
+      System.out.println(line + ":");
+      Client.displayDirectory(text);
+    } else if (!ok) {
+      System.out.println(line + ": " + (text.equals("DDNE") ? "Directory does not exist."
+          : text.equals("PD") ? "Directory Access Permission Denied"
+          : text.equals("TOOBIG") ? "Too many entries, use LIST instead." : text));
+    } else {
+      System.out.println(line + ": " + text);
+      path = text; // PWD and CD both answer with the current directory
+    }
+  }
+
+  @Override
+  public void onFile(int id, long total, long count) throws IOException {
+    Download download = downloads.get(id);
+    if (download.partial == null) {
+      download.partial = PartialDownload.start(download.target, total);
+    }
+    download.received = total - count;
+    download.checkpoint = download.received;
+    download.digest = algorithm != null ? TransferDigest.create(algorithm) : null;
+    download.fileWriter = download.partial.openOutput();
+
+    System.out.println(download.name + ": receiving " + count + " of " + total + " bytes.");
+  }
+
+  @Override
+  public void onData(int id, byte[] buffer, int offset, int length) throws IOException {
+    Download download = downloads.get(id);
+    download.fileWriter.write(buffer, offset, length);
+    if (download.digest != null) {
+      download.digest.update(buffer, offset, length);
+    }
+    download.received += length;
+
+    // Periodically record how much of the file is safely on disk
+    if (download.received - download.checkpoint >= PartialDownload.CHECKPOINT_BYTES) {
+      download.fileWriter.flush();
+      download.partial.record(download.received);
+      download.checkpoint = download.received;
+    }
+  }
+
+  @Override
+  public void onEnd(int id, String trailer) throws IOException {
+    Download download = downloads.remove(id);
+    download.fileWriter.close();
+
+    if (download.digest != null && !Client.verifyTrailer(trailer, download.digest)) {
+      download.partial.delete();
+      System.out.println(download.name + ": download failed. The file was corrupted in transit "
+          + "and has been deleted.");
+      return;
+    }
+
+    download.partial.complete();
+    System.out.println(download.name + ": download finished, saved to " + download.target.getPath());
+  }
+
+  /**
+   * Records the progress of every download that was cut off, so each one can
+   * be resumed with DOWNLOAD or another PIPE.
+   */
+  void abort() {
+    for (Download download : downloads.values()) {
+      if (download.fileWriter == null) {
+        continue;
+      }
+      try {
+        download.fileWriter.close();
+        download.partial.record(download.received);
+        System.out.println(download.name + ": interrupted after " + download.received
+            + " bytes. DOWNLOAD " + download.name + " again to resume.");
+      } catch (IOException e) {
+        System.err.println(download.name + ": could not record download progress.");
+      }
+    }
+    downloads.clear();
+  }
+
+  /**
+   * @return the server directory reported last by PWD or CD, or null
+   */
+  String getPath() {
+    return path;
+  }
+
+  /**
+   * State of one pipelined download.
+   */
+  private static class Download {
+    final String name;
+    final File target;
+    PartialDownload partial;
+    OutputStream fileWriter;
+    TransferDigest digest;
+    long received;   // Bytes of the file written so far
+    long checkpoint; // Bytes recorded in the sidecar
+
+    Download(String name) {
+      this.name = name;
+      this.target = new File(System.getProperty("user.dir"), name);
+    }
+  }
+}
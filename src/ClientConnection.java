@@ -0,0 +1,1821 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: November 06, 2018
+ * Due Date: December 05, 2018
+ * Course: CSC328 - 020 Network Programming
+ * Professor: Dr. Frye
+ * Assignment: Download Client / Server
+ * Filename: ClientConnection.java
+ * Purpose:  Serves one client connection. Reads the client's
+ *           requests and sends the responses and files, with
+ *           either version of the protocol.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * ClientConnection class is responsible for handling individual connections and
+ * sending and receiving data from client to server and vice versa. Implements
+ * the runnable interface so that each instance can be executed as a separate
+ * thread.
+ */
+class ClientConnection implements Runnable {
+
+  private final Socket client;
+  // Everything sent to the client goes through the connection's share of
+  // the bandwidth limits
+  private final BandwidthScheduler.Flow flow = Server.bandwidth.newFlow();
+  private OutputStream socketOut;
+  private PrintWriter outStream;
+  // Requests are read as bytes so the stream can switch to frames after the
+  // greeting without losing anything a reader had buffered
+  private InputStream inStream;
+  // Framed streams, only created once the client switches to protocol v2
+  private DataInputStream frameIn;
+  private DataOutputStream frameOut;
+  private boolean framed = false;
+  // Protocol v2 downloads in progress. One chunk of each is sent in turn so
+  // pipelined downloads share the connection
+  private final ArrayDeque<FramedTransfer> transfers = new ArrayDeque<>();
+  private BufferPool.Lease chunkLease; // Borrowed while copy-based chunks are sent
+  private boolean greeted = false; // True once the client sent its first line
+  // Protocol v1 request lines, decoded in place. Most used commands first.
+  private final CommandDecoder request = new CommandDecoder("DOWNLOAD", "RANGE", "RESUME",
+      "SIZE", "CD", "DIR", "PWD", "LIST", "SEARCH", "HASH", "RDOWNLOAD", "STATS", "BYE");
+  // Initialize the current directory file to the program's directory
+  private File currentDirectory = new File(System.getProperty("user.dir"));
+  // Listing the client is paging through with LIST, and the token that
+  // continues it
+  private DirectoryCursor cursor;
+  private String cursorToken;
+  private int cursorCount = 0;
+  // When the session started, and whether it has given its slot back
+  private long openedAt;
+  private boolean closed = false;
+
+  /**
+   * Constructor. Takes the connected client socket as a parameter.
+   *
+   * @param client socket that is connected with the client
+   */
+  ClientConnection(Socket client) {
+    this.client = client;
+  }
+
+  /**
+   * Default method implemented by the Runnable interface. It gets called when a
+   * new instance of ClientConnection is created. Starts clientHandler() function
+   */
+  public void run() {
+    clientHandler();
+  }
+
+  /**
+   * Responsible for sending and receiving data from a single client. Loops
+   * indefinitely until client sends a disconnect request. Calls appropriate
+   * functions for other client commands.
+   */
+  private void clientHandler() {
+
+    if (!open()) {
+      close();
+      return;
+    }
+
+    // Loop until client chooses to exit
+    while (serviceCommand()) {
+      // Each iteration handles exactly one client request
+    }
+
+    // Close the client connection when finished.
+    close();
+  }
+
+  /**
+   * Creates the connection's input and output streams and greets the client.
+   *
+   * @return true if the client was greeted, false if the streams could not be
+   * created
+   */
+  boolean open() {
+    openedAt = System.nanoTime();
+    try {
+      // Create server input and output streams
+      socketOut = Server.metrics.counting(flow.wrap(client.getOutputStream()));
+      outStream = new PrintWriter(socketOut, true);
+      inStream = new BufferedInputStream(client.getInputStream());
+    } catch (IOException ex) {
+      System.err.println("Error Creating Input and Output Streams");
+      ex.printStackTrace();
+      return false;
+    }
+
+    Server.log.connected(client.getInetAddress());
+    Server.metrics.connectionOpened();
+
+    // Send client a message that they have successfully connected. Clients
+    // that understand protocol v2 answer "V2", older clients see a greeting
+    outStream.println(Protocol.HELLO_V2);
+    return true;
+  }
+
+  /**
+   * Serves every request the client has already sent. Used by the selector
+   * engine, which only hands the connection to a worker thread once the socket
+   * is readable and takes it back as soon as no more input is buffered.
+   *
+   * @return true if the connection is still open, false once it was closed
+   */
+  boolean serviceReadable() {
+    try {
+      do {
+        if (!serviceCommand()) {
+          close();
+          return false;
+        }
+      } while (inStream.available() > 0 || !transfers.isEmpty());
+
+      // Responses are buffered until the connection runs out of work
+      if (framed) {
+        frameOut.flush();
+      }
+    } catch (IOException ex) {
+      close();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Reads a single request from the client and runs it.
+   *
+   * @return false if the client said BYE or the connection was lost
+   */
+  private boolean serviceCommand() {
+    String command; // Command portion of client request
+
+    if (framed) {
+      return serviceFrame();
+    }
+
+    try {
+      // Client closed the connection without sending BYE
+      if (!request.read(inStream)) {
+        Server.log.disconnected(client.getInetAddress(), "eof");
+        return false;
+      }
+
+      // A v2 client answers the greeting before sending anything else
+      if (!greeted) {
+        greeted = true;
+        if (request.is(Protocol.V2)) {
+          frameIn = new DataInputStream(inStream);
+          frameOut = new DataOutputStream(new BufferedOutputStream(
+              socketOut, Protocol.MAX_CHUNK + Protocol.HEADER_LENGTH));
+          framed = true;
+          Server.log.message("Client switched to protocol v2");
+          return true;
+        }
+      }
+
+      command = request.command();
+
+    } catch (SocketTimeoutException ex) {
+      // The client stopped in the middle of a request
+      Server.log.disconnected(client.getInetAddress(), "timeout");
+      Server.metrics.error();
+      return false;
+    } catch (IOException ex) {
+      System.err.println("Error Reading From Input Stream. Closing " +
+          "connection");
+      ex.printStackTrace();
+      Server.metrics.error();
+      return false;
+    }
+
+    Server.log.command(command);
+    long started = System.nanoTime();
+    boolean keepGoing = runCommand(command);
+    Server.metrics.command(command, System.nanoTime() - started);
+    return keepGoing;
+  }
+
+  /**
+   * Runs a protocol v1 request. The arguments are taken from the request
+   * line still held by the decoder.
+   *
+   * @param command the command, upper case, or CommandDecoder.INVALID
+   * @return false if the client said BYE or the connection was lost
+   */
+  private boolean runCommand(String command) {
+    switch (command) {
+      case "BYE":
+        Server.log.disconnected(client.getInetAddress(), "bye");
+
+        return false; // break out of loop
+      case "PWD":
+        outStream.println(currentDirectory.getPath()); // send file's current path
+        break;
+      case "DIR":
+        outStream.println(getDirectory(currentDirectory.getPath()));
+        break;
+      case "LIST":
+        try {
+          // Rows are only flushed by the final line
+          outStream.println(listPage(request.rest(1), row -> {
+            outStream.write(row);
+            outStream.write('\n');
+          }));
+        } catch (IOException ex) {
+          return false; // PrintWriter rows never throw
+        }
+        break;
+      case "SEARCH":
+        try {
+          // Matches are sent as they are found, then the status line
+          outStream.println(search(request.rest(1), row -> {
+            outStream.write(row);
+            outStream.write('\n');
+          }, outStream::flush));
+        } catch (IOException ex) {
+          return false; // PrintWriter rows never throw
+        }
+        break;
+      case "CD":
+        // Attempt to change directory and store output in String
+        String output = changeDirectory(request.rest(1), currentDirectory);
+
+        // There was an error navigating to new directory
+        if (!output.equals("DDNE") && !output.equals("PD")) {
+          currentDirectory = new File(output);
+        }
+
+        // Send the function response string regardless, the client will handle
+        // displaying the error codes to the user
+        outStream.println(output);
+        break;
+      case "DOWNLOAD":
+        sendFile(request.rest(1), currentDirectory, outStream, inStream);
+        break;
+      case "SIZE":
+        outStream.println(getFileSize(request.rest(1), currentDirectory));
+        break;
+      case "HASH":
+        outStream.println(getFileHash(request.rest(1), currentDirectory));
+        break;
+      case "RANGE":
+        sendRange(currentDirectory, outStream, inStream);
+        break;
+      case "RESUME":
+        sendRemainder(currentDirectory, outStream, inStream);
+        break;
+      case "RDOWNLOAD":
+        sendArchive(request.rest(1), outStream, inStream);
+        break;
+      case "STATS":
+        // One sample per line, then an empty line
+        outStream.print(Server.statistics());
+        outStream.println();
+        break;
+      default:
+        outStream.println("Client Request Error.");
+        Server.metrics.error();
+    }
+    return true;
+  }
+
+  /**
+   * Does one unit of work for a protocol v2 client: runs a single framed
+   * request, or sends the next chunk of a download in progress. Clients may
+   * send many requests without waiting for responses. Requests are read as
+   * soon as they arrive and answered in order, while the data of active
+   * downloads is interleaved chunk by chunk. Every response carries the request
+   * id of the request it answers.
+   *
+   * @return false if the client said BYE or the connection was lost
+   */
+  private boolean serviceFrame() {
+    Protocol.Frame request;
+
+    try {
+      // Keep downloads moving while no new request is waiting
+      if (!transfers.isEmpty() && inStream.available() == 0) {
+        sendNextChunk();
+        return true;
+      }
+
+      // About to wait for the client, send everything buffered so far
+      if (transfers.isEmpty() && inStream.available() == 0) {
+        frameOut.flush();
+      }
+
+      request = Protocol.readRequest(frameIn);
+    } catch (EOFException ex) {
+      Server.log.disconnected(client.getInetAddress(), "eof");
+      return false;
+    } catch (SocketTimeoutException ex) {
+      // The client stopped in the middle of a request
+      Server.log.disconnected(client.getInetAddress(), "timeout");
+      Server.metrics.error();
+      return false;
+    } catch (IOException ex) {
+      System.err.println("Error Reading From Input Stream. Closing " +
+          "connection");
+      ex.printStackTrace();
+      Server.metrics.error();
+      return false;
+    }
+
+    try {
+      Server.log.command(Protocol.commandOf(request.opcode));
+
+      // Downloads that were queued are timed when their END frame is sent
+      int queued = transfers.size();
+      long started = System.nanoTime();
+      boolean keepGoing = runFrame(request);
+      request.discard();
+      if (transfers.size() == queued) {
+        Server.metrics.command(Protocol.commandOf(request.opcode), System.nanoTime() - started);
+      }
+      return keepGoing;
+    } catch (SocketTimeoutException ex) {
+      // The client stopped in the middle of a streamed payload
+      Server.log.disconnected(client.getInetAddress(), "timeout");
+      Server.metrics.error();
+      return false;
+    } catch (IOException ex) {
+      System.err.println("Error Writing To Output Stream. Closing connection");
+      ex.printStackTrace();
+      Server.metrics.error();
+      return false;
+    }
+  }
+
+  /**
+   * Runs a protocol v2 request.
+   *
+   * @param request the request frame
+   * @return false if the client said BYE
+   * @throws IOException if sending to the client fails
+   */
+  private boolean runFrame(Protocol.Frame request) throws IOException {
+    int id = request.requestId;
+
+    switch (request.opcode) {
+      case Protocol.BYE:
+        Server.log.disconnected(client.getInetAddress(), "bye");
+        return false;
+      case Protocol.PWD:
+        Protocol.writeText(frameOut, Protocol.OK, id, currentDirectory.getPath());
+        break;
+      case Protocol.DIR:
+        sendResponse(id, getDirectory(currentDirectory.getPath()));
+        break;
+      case Protocol.LIST:
+        sendFramedList(id, request.text());
+        break;
+      case Protocol.SEARCH:
+        sendFramedSearch(id, request.text());
+        break;
+      case Protocol.CD:
+        String output = changeDirectory(request.text().trim(), currentDirectory);
+        if (output.equals("DDNE") || output.equals("PD")) {
+          Protocol.writeText(frameOut, Protocol.ERROR, id, output);
+        } else {
+          currentDirectory = new File(output);
+          Protocol.writeText(frameOut, Protocol.OK, id, output);
+        }
+        break;
+      case Protocol.SIZE:
+        String size = getFileSize(request.text().trim(), currentDirectory);
+        Protocol.writeText(frameOut, size.equals("FNF") ? Protocol.ERROR : Protocol.OK, id, size);
+        break;
+      case Protocol.HASH:
+        String hash = getFileHash(request.text().trim(), currentDirectory);
+        Protocol.writeText(frameOut, hash.equals("FNF") ? Protocol.ERROR : Protocol.OK, id, hash);
+        break;
+      case Protocol.DOWNLOAD:
+        startFramedTransfer(request);
+        break;
+      case Protocol.RDOWNLOAD:
+        startFramedArchive(request);
+        break;
+      case Protocol.SYNC:
+        sendDelta(request);
+        break;
+      case Protocol.STATS:
+        sendResponse(id, Server.statistics());
+        break;
+      default:
+        Protocol.writeText(frameOut, Protocol.ERROR, id, "Client Request Error.");
+        Server.metrics.error();
+    }
+    return true;
+  }
+
+  /**
+   * Sends the text of a response in an OK frame. Text larger than a client
+   * accepts in one frame is answered with an ERROR frame with "TOOBIG"
+   * instead, which leaves the connection usable. A DIR of a folder that large
+   * can still be read with LIST.
+   *
+   * @param id   request id
+   * @param text the response
+   * @throws IOException if the response can't be written
+   */
+  private void sendResponse(int id, String text) throws IOException {
+    byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+    if (payload.length > Protocol.MAX_RESPONSE) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, "TOOBIG");
+    } else {
+      Protocol.writeFrame(frameOut, Protocol.OK, id, payload, 0, payload.length);
+    }
+  }
+
+  /**
+   * Turns away a connection that the server has no room for. The client gets
+   * "BUSY" and the number of seconds to wait instead of the greeting.
+   *
+   * @param retryAfter seconds the client should wait before trying again
+   */
+  void refuse(int retryAfter) {
+    try {
+      OutputStream out = client.getOutputStream();
+      out.write((Protocol.BUSY + " " + retryAfter + "\n").getBytes());
+      out.flush();
+    } catch (IOException ignored) {
+      // The client is gone already
+    }
+    try {
+      client.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Closes the client connection.
+   */
+  void close() {
+    try {
+      client.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    // Hand the session slot to the next waiting connection
+    if (!closed) {
+      closed = true;
+      Server.admission.release((System.nanoTime() - openedAt) / 1e9);
+      if (socketOut != null) {
+        Server.metrics.connectionClosed();
+      }
+    }
+
+    // Release the files of downloads that never finished
+    for (FramedTransfer transfer : transfers) {
+      transfer.close();
+    }
+    transfers.clear();
+    flow.stop();
+    releaseChunkBuffer();
+
+    if (cursor != null) {
+      cursor.close();
+      cursor = null;
+    }
+  }
+
+  /**
+   * @return the channel of the client socket
+   */
+  SocketChannel getChannel() {
+    return client.getChannel();
+  }
+
+  /**
+   * Display the contents of the clients current working directory.
+   * Separates the results by file and folder. Users can download files and enter
+   * folders.
+   *
+   * @param directory absolute path String to a file directory
+   * @return String delimited by "#" character between tokens. Each
+   * file/folder has 3 different attributes.
+   * Type: "File: or "Folder"
+   * Size: File or Folder Size in Bytes
+   * Name: File or Folder Name
+   * The client will be responsible for parsing the tokens and
+   * formatting the output.
+   */
+  private String getDirectory(String directory) {
+    return Server.directoryCache.get(new File(directory), ClientConnection::listDirectory);
+  }
+
+  /**
+   * Reads a directory listing from the disk. Called by the directory cache
+   * when the listing is not cached or has changed.
+   *
+   * @param folder the directory to list
+   * @return the listing in the format described by getDirectory, empty if
+   * the directory can't be read
+   */
+  private static String listDirectory(File folder) {
+    StringBuilder output = new StringBuilder();
+
+    /* Build a new string with files at the top and directories at the
+       bottom. Delimit each entry with a "#" character. The client will
+       parse the tokens from the long string that the server sends. Each
+       directory item has a total of 3 different details about it.
+    */
+    try (DirectoryCursor entries = new DirectoryCursor(folder, DirectoryCursor.BY_TYPE, "*")) {
+      while (entries.hasNext()) {
+        output.append(entries.next());
+        output.append("#");
+      }
+    } catch (IOException ex) {
+      return ""; // Directory can't be read
+    }
+
+    // If length is 0, the folder was empty
+    if (output.length() == 0) {
+      output.append("EMPTY");
+    }
+
+    return output.toString();
+  }
+
+  /**
+   * Lists the current directory one page at a time. The request arguments
+   * are "name=value" words:
+   * limit  - maximum number of entries in the page (default 1000)
+   * sort   - none, name, size or type (default none)
+   * from   - token returned by the previous page, continues that listing
+   * filter - glob the names must match. Must come last, may contain spaces.
+   * Without "from" a new listing of the current directory is started and any
+   * previous one is dropped.
+   *
+   * @param arguments the request arguments
+   * @param rows      receives one "Type#Size#Name" line per entry
+   * @return "MORE token" if the listing continues, "END" if it is complete,
+   * "TOKEN" if the token is not the current one, "DDNE" if the directory
+   * can't be read or "Client Request Error." if the arguments are invalid
+   * @throws IOException if the rows can't be sent
+   */
+  private String listPage(String arguments, RowWriter rows) throws IOException {
+    int limit = 1000;
+    String sort = DirectoryCursor.UNSORTED;
+    String filter = "*";
+    String from = null;
+
+    try {
+      String rest = arguments;
+      while (!rest.isEmpty()) {
+        int end = rest.startsWith("filter=") ? rest.length() : rest.indexOf(' ');
+        String word = end == -1 ? rest : rest.substring(0, end);
+        rest = end == -1 ? "" : rest.substring(end).trim();
+
+        String value = word.substring(word.indexOf('=') + 1);
+        if (word.startsWith("limit=")) {
+          limit = Integer.parseInt(value);
+        } else if (word.startsWith("sort=")) {
+          sort = value.toLowerCase();
+        } else if (word.startsWith("from=")) {
+          from = value;
+        } else if (word.startsWith("filter=")) {
+          filter = value;
+        } else {
+          return "Client Request Error.";
+        }
+      }
+      if (limit < 1 || limit > 10000) {
+        return "Client Request Error.";
+      }
+    } catch (NumberFormatException ex) {
+      return "Client Request Error.";
+    }
+
+    if (from != null) {
+      // Continue the listing the client is paging through
+      if (cursor == null || !from.equals(cursorToken)) {
+        return "TOKEN";
+      }
+    } else {
+      if (cursor != null) {
+        cursor.close();
+        cursor = null;
+      }
+      try {
+        cursor = new DirectoryCursor(currentDirectory, sort, filter);
+      } catch (IllegalArgumentException ex) {
+        return "Client Request Error.";
+      } catch (IOException ex) {
+        return "DDNE";
+      }
+    }
+
+    for (int count = 0; count < limit && cursor.hasNext(); count++) {
+      rows.write(cursor.next());
+    }
+
+    if (!cursor.hasNext()) {
+      cursor.close();
+      cursor = null;
+      return "END";
+    }
+
+    // A new token for every page, so an old page can't be requested twice
+    cursorToken = Integer.toString(++cursorCount);
+    return "MORE " + cursorToken;
+  }
+
+  /**
+   * Sends a page of a LIST request to a protocol v2 client. The rows are sent
+   * in ENTRIES frames of a bounded size as they are read, followed by the
+   * same status line the v1 command ends with, in an OK or ERROR frame.
+   *
+   * @param id        request id
+   * @param arguments the request arguments, see listPage
+   * @throws IOException if the response can't be written
+   */
+  private void sendFramedList(int id, String arguments) throws IOException {
+    EntryFrames entries = new EntryFrames(frameOut, id);
+    String status = listPage(arguments.trim(), entries);
+    entries.send();
+    boolean ok = status.equals("END") || status.startsWith("MORE ");
+    Protocol.writeText(frameOut, ok ? Protocol.OK : Protocol.ERROR, id, status);
+  }
+
+  /**
+   * Searches the current directory and everything below it, see TreeSearch.
+   * The request arguments are "name=value" words:
+   * min   - smallest file size, such as 500K or 2G
+   * max   - largest file size
+   * newer - modified less than this many days ago
+   * older - modified more than this many days ago
+   * limit - maximum number of matches sent (default 1000)
+   * name  - glob the names must match. Must come last, may contain spaces.
+   * regex - regular expression found in the paths instead. Must come last.
+   * Without name or regex every entry that passes the other filters matches.
+   *
+   * @param arguments the request arguments
+   * @param rows      receives one "Type#Size#Path" line per match as it is found
+   * @param idle      called when no match arrived for a while, so the rows
+   *                  found so far reach the client
+   * @return "END" if every match was sent, "LIMIT" if the search stopped at
+   * the limit, "DDNE" if the directory can't be read or "Client Request
+   * Error." if the arguments are invalid
+   * @throws IOException if the rows can't be sent
+   */
+  private String search(String arguments, RowWriter rows, Flushable idle) throws IOException {
+    long minSize = 0;
+    long maxSize = Long.MAX_VALUE;
+    long newerThan = 0;
+    long olderThan = Long.MAX_VALUE;
+    int limit = 1000;
+    String glob = null;
+    String regex = null;
+    long now = System.currentTimeMillis();
+
+    try {
+      String rest = arguments.trim();
+      while (!rest.isEmpty()) {
+        boolean last = rest.startsWith("name=") || rest.startsWith("regex=");
+        int end = last ? rest.length() : rest.indexOf(' ');
+        String word = end == -1 ? rest : rest.substring(0, end);
+        rest = end == -1 ? "" : rest.substring(end).trim();
+
+        String value = word.substring(word.indexOf('=') + 1);
+        if (word.startsWith("min=")) {
+          minSize = Server.parseSize(value);
+        } else if (word.startsWith("max=")) {
+          maxSize = Server.parseSize(value);
+        } else if (word.startsWith("newer=")) {
+          newerThan = now - (long) (Double.parseDouble(value) * 86400000);
+        } else if (word.startsWith("older=")) {
+          olderThan = now - (long) (Double.parseDouble(value) * 86400000);
+        } else if (word.startsWith("limit=")) {
+          limit = Integer.parseInt(value);
+        } else if (word.startsWith("name=")) {
+          glob = value;
+        } else if (word.startsWith("regex=")) {
+          regex = value;
+        } else {
+          return "Client Request Error.";
+        }
+      }
+      if (limit < 1 || limit > 100000) {
+        return "Client Request Error.";
+      }
+    } catch (NumberFormatException ex) {
+      return "Client Request Error.";
+    }
+
+    if (!currentDirectory.isDirectory() || !currentDirectory.canRead()) {
+      return "DDNE";
+    }
+    TreeSearch search;
+    try {
+      search = new TreeSearch(currentDirectory, glob, regex, minSize, maxSize,
+          newerThan, olderThan);
+    } catch (IllegalArgumentException ex) {
+      return "Client Request Error.";
+    }
+
+    long started = System.nanoTime();
+    long flushed = started;
+    int count = 0;
+    boolean complete;
+    search.start();
+    try {
+      while (count < limit) {
+        String row = search.poll(50);
+        if (row != null) {
+          rows.write(row);
+          count++;
+        } else if (search.isFinished()) {
+          break;
+        }
+        // Matches that trickle in are sent at least ten times a second
+        if (row == null || System.nanoTime() - flushed > 100000000) {
+          idle.flush();
+          flushed = System.nanoTime();
+        }
+      }
+      complete = search.isFinished();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Search interrupted");
+    } finally {
+      search.close();
+    }
+
+    Server.log.message("SEARCH found " + count + " matches among " + search.getVisited()
+        + " entries in " + (System.nanoTime() - started) / 1000000 + " ms");
+    return count < limit || complete ? "END" : "LIMIT";
+  }
+
+  /**
+   * Sends the matches of a SEARCH request to a protocol v2 client in ENTRIES
+   * frames as they are found, followed by the same status line the v1
+   * command ends with, in an OK or ERROR frame.
+   *
+   * @param id        request id
+   * @param arguments the request arguments, see search
+   * @throws IOException if the response can't be written
+   */
+  private void sendFramedSearch(int id, String arguments) throws IOException {
+    EntryFrames entries = new EntryFrames(frameOut, id);
+    Flushable sendChunk = () -> {
+      entries.send();
+      frameOut.flush();
+    };
+
+    String status = search(arguments, entries, sendChunk);
+
+    sendChunk.flush();
+    boolean ok = status.equals("END") || status.equals("LIMIT");
+    Protocol.writeText(frameOut, ok ? Protocol.OK : Protocol.ERROR, id, status);
+  }
+
+  /**
+   * Reads the client request and parses the new directory path given. Makes sure
+   * that the given path exists, is a directory, and the server has read permissions
+   * Return the path if success, otherwise return an error code.
+   *
+   * @param targetDir        the requested directory, without the "CD" command
+   * @param currentDirectory the server's current working directory for the client
+   * @return Returns the new file's absolute path on success.
+   * Returns "PD" if user does not have read permissions
+   * Returns "DDNE" if the directory doesn't exist
+   */
+  private String changeDirectory(String targetDir,
+                                 File currentDirectory) {
+    File newFilePath;
+
+    //Go up a level to parent directory
+    if (targetDir.equals("..")) {
+      newFilePath = new File(currentDirectory.getParent());
+      // If input contains a "/", user entered a full file path
+    } else if (targetDir.contains(File.separator)) {
+      newFilePath = new File(targetDir);
+    } else { // Input is a relative path
+      newFilePath = new File(currentDirectory, targetDir);
+    }
+
+    // Check if the input file/directory exists, is a directory, and has read permissions
+    if (newFilePath.exists() && newFilePath.isDirectory() && newFilePath.canRead()) {
+      return newFilePath.getAbsolutePath(); // Success, return new
+    } else if (!newFilePath.exists() || !newFilePath.isDirectory()) {
+      return "DDNE"; // Directory does not exist
+    } else if (!newFilePath.canRead()) {
+      return "PD"; // Permission denied
+    }
+    // Return directory does not exists generic error code otherwise
+    return "DDNE";
+  }
+
+  /**
+   * Send a file to the connected client. Client must send the filename. Server
+   * checks if the filename exists, sends READY, client confirms the download,
+   * sends READY, server sends the file size, client receives the file size.
+   * Server hands the file to the kernel with FileChannel.transferTo when the
+   * socket has a channel, otherwise it sends the file in 1mb chunks. Client
+   * receives data.
+   *
+   * @param fileName  - The requested file, without the "DOWNLOAD" command
+   * @param directory - The client's current working director
+   * @param outStream - Data output stream to the client
+   * @param inStream  - Data input stream from the client
+   */
+  private void sendFile(String fileName, File directory,
+                        PrintWriter outStream, InputStream inStream) {
+
+    // Set file to the filename the user gives in their request
+    File file = new File(directory, fileName);
+
+    sendFile(file, 0, Long.MAX_VALUE, "READY", outStream, inStream);
+  }
+
+  /**
+   * Sends part of a file to the client. The request has the form
+   * "RANGE offset length filename". The handshake is the same as DOWNLOAD
+   * except that the server's READY response carries the total file size so
+   * the client can check that it is splitting the file it expects. The length
+   * sent before the data is the number of bytes in the range, which is shorter
+   * than requested if the range runs past the end of the file.
+   *
+   * @param directory - The client's current working director
+   * @param outStream - Data output stream to the client
+   * @param inStream  - Data input stream from the client
+   */
+  private void sendRange(File directory, PrintWriter outStream, InputStream inStream) {
+    long offset;
+    long length;
+    String fileName = request.rest(3);
+
+    try {
+      offset = request.number(1);
+      length = request.number(2);
+      if (fileName.isEmpty() || offset < 0 || length < 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException ex) {
+      outStream.println("Client Request Error.");
+      return;
+    }
+
+    File file = new File(directory, fileName);
+    sendFile(file, offset, length, "READY " + file.length(), outStream, inStream);
+  }
+
+  /**
+   * Continues an interrupted download. The request has the form
+   * "RESUME offset filename" and the server sends everything from offset to
+   * the end of the file. Like RANGE, the READY response carries the total file
+   * size so the client can start over if the file changed since the
+   * interrupted download.
+   *
+   * @param directory - The client's current working director
+   * @param outStream - Data output stream to the client
+   * @param inStream  - Data input stream from the client
+   */
+  private void sendRemainder(File directory, PrintWriter outStream, InputStream inStream) {
+    long offset;
+    String fileName = request.rest(2);
+
+    try {
+      offset = request.number(1);
+      if (fileName.isEmpty() || offset < 0) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException ex) {
+      outStream.println("Client Request Error.");
+      return;
+    }
+
+    File file = new File(directory, fileName);
+    sendFile(file, offset, Long.MAX_VALUE, "READY " + file.length(), outStream, inStream);
+  }
+
+  /**
+   * Looks up the size of a file in the client's current directory.
+   *
+   * @param fileName  name of the file, without the "SIZE" command
+   * @param directory the server's current working directory for the client
+   * @return the file size in bytes, or "FNF" if it can't be downloaded
+   */
+  private String getFileSize(String fileName, File directory) {
+    File file = new File(directory, fileName);
+
+    if (file.isFile() && file.canRead()) {
+      return String.valueOf(file.length());
+    }
+    return "FNF";
+  }
+
+  /**
+   * Gets the content hash of a file from the hash index, reading the file
+   * only if it is not indexed yet or changed since.
+   *
+   * @param fileName  name of the file
+   * @param directory directory the file is in
+   * @return "SHA-256 hash size", or "FNF" if the file can't be read
+   */
+  private String getFileHash(String fileName, File directory) {
+    File file = new File(directory, fileName);
+
+    if (file.isFile() && file.canRead()) {
+      try {
+        String hash = Server.hashIndex.hash(file);
+        return HashIndex.ALGORITHM + " " + hash + " " + file.length();
+      } catch (IOException ex) {
+        return "FNF";
+      }
+    }
+    return "FNF";
+  }
+
+  /**
+   * Sends a section of a file once the client has confirmed the download.
+   * Server checks if the file exists, sends the ready response, waits for the
+   * client's READY, sends the number of bytes that follow and then the data.
+   *
+   * @param file      - The file to send
+   * @param offset    - Position of the first byte to send
+   * @param length    - Maximum number of bytes to send
+   * @param ready     - Response that tells the client the file can be sent
+   * @param outStream - Data output stream to the client
+   * @param inStream  - Data input stream from the client
+   */
+  private void sendFile(File file, long offset, long length, String ready,
+                        PrintWriter outStream, InputStream inStream) {
+
+    FileInputStream fileReader = null;
+    ByteBuffer cached = null;
+
+    /* Make sure that given file exists, is a file not a directory, and the
+       server has read permissions for the file */
+    if (file.isFile() && file.exists() && file.canRead()) {
+      // Popular files are sent from memory and never opened
+      cached = Server.fileCache.get(file);
+      try {
+        // Create a new stream to read from source file
+        if (cached == null) {
+          fileReader = new FileInputStream(file);
+        }
+      } catch (FileNotFoundException e) {
+        System.err.println("Could not create file reader stream");
+        e.printStackTrace();
+      }
+
+      // Tell the client that the server is ready to send the file
+      outStream.println(ready);
+
+      try {
+        // Get client response after sending "READY". The client may name a
+        // checksum algorithm after READY to have a trailer sent after the data
+        // It may also offer codecs with "COMPRESS=codec,codec"
+        String reply = Protocol.readLine(inStream);
+        if (reply != null && (reply.equals("READY") || reply.startsWith("READY "))) {
+          String algorithm = null;
+          String offered = null;
+          for (String word : reply.substring("READY".length()).trim().split("\\s+")) {
+            if (word.startsWith("COMPRESS=")) {
+              offered = word.substring("COMPRESS=".length());
+            } else if (!word.isEmpty()) {
+              algorithm = word;
+            }
+          }
+          boolean sendTrailer = algorithm != null;
+          TransferDigest digest = null;
+          if (sendTrailer) {
+            digest = TransferDigest.create(algorithm);
+          }
+
+          // Never send past the end of the file
+          long size = cached != null ? cached.limit() : file.length();
+          long start = Math.min(offset, size);
+          long count = Math.min(length, size - start);
+
+          String codec = null;
+          if (Server.compression && cached != null) {
+            final ByteBuffer data = cached;
+            codec = Compression.choose(offered, file,
+                (buffer, position) -> FileCache.read(data, buffer, position), start, count);
+          } else if (Server.compression && fileReader != null) {
+            codec = Compression.choose(offered, file, fileReader.getChannel()::read, start, count);
+          }
+
+          // Send the number of bytes before sending the file, followed by
+          // the codec if the data is compressed
+          outStream.println(codec == null ? String.valueOf(count) : count + " " + codec);
+
+          // Make sure fileReader stream has been initialized before reading
+          if (fileReader != null || cached != null) {
+            SocketChannel socketChannel = client.getChannel();
+            String mode;
+            flow.start(); // Count this connection in the fair share
+            Server.log.transferStarted(file.getName(), start, count);
+            long sendStarted = System.nanoTime();
+
+            // The kernel copies zero-copy transfers, so a checksum has to be
+            // computed by the copy loop while the bytes pass through it
+            if (codec != null) {
+              Compression.BlockOutputStream blocks = new Compression.BlockOutputStream(socketOut);
+              try (OutputStream encoder = Compression.encoder(codec, blocks)) {
+                if (cached != null) {
+                  copyBuffer(range(cached, start, count), encoder, digest);
+                } else {
+                  fileReader.getChannel().position(start);
+                  copyFile(fileReader, count, encoder, digest);
+                }
+              }
+              mode = codec.toLowerCase() + ", " + count + " bytes as " + blocks.getWireBytes()
+                  + (cached != null ? ", cache" : "")
+                  + (digest == null ? "" : ", " + digest.getAlgorithm());
+            } else if (cached != null) {
+              // The socket channel takes the direct buffer without a copy
+              if (socketChannel != null) {
+                writeBuffer(range(cached, start, count), socketChannel, digest);
+              } else {
+                copyBuffer(range(cached, start, count), socketOut, digest);
+              }
+              mode = digest == null ? "cache" : "cache, " + digest.getAlgorithm();
+            } else if (Server.zeroCopy && socketChannel != null && digest == null) {
+              transferFile(fileReader.getChannel(), start, count, socketChannel);
+              mode = "zero-copy";
+            } else if (socketChannel != null) {
+              copyChannel(fileReader.getChannel(), start, count, socketChannel, digest);
+              mode = digest == null ? "copy" : "copy, " + digest.getAlgorithm();
+            } else {
+              fileReader.getChannel().position(start);
+              copyFile(fileReader, count, socketOut, digest);
+              mode = digest == null ? "copy" : "copy, " + digest.getAlgorithm();
+            }
+
+            // Send the checksum trailer, or NONE if the algorithm is unknown
+            if (sendTrailer) {
+              outStream.println(digest != null
+                  ? digest.getAlgorithm() + " " + digest.finish() : "NONE");
+            }
+
+            long elapsed = System.nanoTime() - sendStarted;
+            Server.metrics.transfer(count, elapsed);
+            Server.log.transferEnded(file.getName(), count, elapsed, mode);
+          }
+
+        } else {
+          Server.log.message("Client has aborted the download");
+        }
+      } catch (IOException e) {
+        System.err.println("Download command could not get client response.");
+        e.printStackTrace();
+        Server.metrics.error();
+      } finally {
+        flow.stop();
+        try {
+          if (fileReader != null) {
+            fileReader.close(); // Close the file input stream
+          }
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    } else {
+      outStream.println("FNF");
+    }
+  }
+
+  /**
+   * Sends a whole folder as one archive stream. The handshake is the same as
+   * DOWNLOAD except that no byte count is sent, the archive ends with its own
+   * END entry. The folder is packed while it is sent, nothing is written to
+   * the disk. Errors are the same as CD: "DDNE" if the folder doesn't exist
+   * and "PD" if it can't be read.
+   *
+   * @param folderName folder relative to the current directory, or absolute
+   * @param outStream  - Data output stream to the client
+   * @param inStream   - Data input stream from the client
+   */
+  private void sendArchive(String folderName, PrintWriter outStream, InputStream inStream) {
+    String folder = changeDirectory(folderName, currentDirectory);
+    if (folderName.isEmpty() || folder.equals("DDNE") || folder.equals("PD")) {
+      outStream.println(folderName.isEmpty() ? "DDNE" : folder);
+      return;
+    }
+
+    // Tell the client that the server is ready to send the folder
+    outStream.println("READY");
+
+    try {
+      String reply = Protocol.readLine(inStream);
+      if (reply == null || !(reply.equals("READY") || reply.startsWith("READY "))) {
+        Server.log.message("Client has aborted the download");
+        return;
+      }
+      boolean sendTrailer = !reply.equals("READY");
+      TransferDigest digest = null;
+      if (sendTrailer) {
+        digest = TransferDigest.create(reply.substring("READY ".length()).trim());
+      }
+
+      long count;
+      flow.start();
+      Server.log.transferStarted(folder, 0, -1);
+      long sendStarted = System.nanoTime();
+      try (InputStream archive = Archive.pack(new File(folder))) {
+        count = copyFile(archive, Long.MAX_VALUE, socketOut, digest);
+      } finally {
+        flow.stop();
+      }
+
+      // The checksum covers every byte of the archive, headers included
+      if (sendTrailer) {
+        outStream.println(digest != null
+            ? digest.getAlgorithm() + " " + digest.finish() : "NONE");
+      }
+
+      long elapsed = System.nanoTime() - sendStarted;
+      Server.metrics.transfer(count, elapsed);
+      Server.log.transferEnded(folder, count, elapsed,
+          digest == null ? "archive" : "archive, " + digest.getAlgorithm());
+    } catch (IOException e) {
+      System.err.println("Folder download could not be sent.");
+      e.printStackTrace();
+      Server.metrics.error();
+    }
+  }
+
+  /**
+   * Answers a protocol v2 RDOWNLOAD request. The payload is the checksum
+   * algorithm and the folder name as UTF strings. The server answers with an
+   * ERROR frame, or with a FILE frame whose sizes are -1 because the archive
+   * length is not known up front. The archive then takes its turn with the
+   * other queued downloads in DATA frames, followed by an END frame.
+   *
+   * @param request the RDOWNLOAD frame
+   * @throws IOException if sending to the client fails
+   */
+  private void startFramedArchive(Protocol.Frame request) throws IOException {
+    int id = request.requestId;
+    String algorithm;
+    String folderName;
+
+    try {
+      DataInputStream payload = request.data();
+      algorithm = payload.readUTF();
+      folderName = payload.readUTF().trim();
+    } catch (IOException ex) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, "Client Request Error.");
+      return;
+    }
+
+    String folder = changeDirectory(folderName, currentDirectory);
+    if (folderName.isEmpty() || folder.equals("DDNE") || folder.equals("PD")) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, folderName.isEmpty() ? "DDNE" : folder);
+      return;
+    }
+
+    InputStream archive;
+    try {
+      archive = Archive.pack(new File(folder));
+    } catch (IOException ex) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, "PD");
+      return;
+    }
+
+    frameOut.writeByte(Protocol.FILE);
+    frameOut.writeInt(id);
+    frameOut.writeInt(16);
+    frameOut.writeLong(-1);
+    frameOut.writeLong(-1);
+
+    transfers.add(new FramedTransfer(id, folder, archive, algorithm));
+    flow.start();
+    Server.log.transferStarted(folder, 0, -1);
+  }
+
+  /**
+   * Answers a protocol v2 SYNC request. The client sent the signature of its
+   * copy of a file; the server sends a FILE frame with the size of its file,
+   * the instructions that rebuild it from the client's copy as DATA frames
+   * and an END frame with the checksum trailer of the whole file. The delta
+   * is computed while it is sent, so unlike a download it is not queued and
+   * other downloads wait until it is done. An ERROR frame with "FNF" is sent
+   * if the file can't be read.
+   *
+   * @param request the SYNC frame
+   * @throws IOException if reading the file or sending to the client fails
+   */
+  private void sendDelta(Protocol.Frame request) throws IOException {
+    int id = request.requestId;
+    String algorithm;
+    File file;
+    Delta.Signature signature;
+
+    try {
+      DataInputStream payload = request.data();
+      algorithm = payload.readUTF();
+      file = new File(currentDirectory, payload.readUTF());
+      signature = Delta.readSignature(payload);
+    } catch (SocketTimeoutException ex) {
+      throw ex; // The client stalled, don't wait for the rest of the frame
+    } catch (IOException ex) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, "Client Request Error.");
+      return;
+    }
+
+    if (!file.isFile() || !file.canRead()) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, "FNF");
+      return;
+    }
+
+    try (FileInputStream fileReader = new FileInputStream(file)) {
+      FileChannel channel = fileReader.getChannel();
+      long total = channel.size();
+
+      frameOut.writeByte(Protocol.FILE);
+      frameOut.writeInt(id);
+      frameOut.writeInt(18);
+      frameOut.writeLong(total);
+      frameOut.writeLong(-1);
+      frameOut.writeUTF("");
+
+      TransferDigest digest = algorithm.isEmpty() ? null : TransferDigest.create(algorithm);
+      Protocol.DataFrameOutputStream frames = new Protocol.DataFrameOutputStream(frameOut, id);
+      long started = System.nanoTime();
+      long literal;
+      flow.start();
+      Server.log.transferStarted(file.getName(), 0, total);
+      try {
+        literal = Delta.encode(signature, channel, frames, digest);
+        frames.close();
+      } finally {
+        frames.release();
+        if (transfers.isEmpty()) {
+          flow.stop();
+        }
+      }
+
+      String trailer = "";
+      if (!algorithm.isEmpty()) {
+        trailer = digest != null ? digest.getAlgorithm() + " " + digest.finish() : "NONE";
+      }
+      Protocol.writeText(frameOut, Protocol.END, id, trailer);
+      long elapsed = System.nanoTime() - started;
+      Server.metrics.transfer(frames.getWireBytes(), elapsed);
+      Server.log.transferEnded(file.getName(), frames.getWireBytes(), elapsed,
+          "delta, " + literal + " of " + total + " bytes literal, v2");
+    } catch (FileNotFoundException ex) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, "FNF");
+    }
+  }
+
+  /**
+   * Answers a protocol v2 DOWNLOAD request. There is no READY handshake, the
+   * client has already decided where to save the file. The server sends a
+   * FILE frame with the total file size and the number of bytes that follow
+   * and queues the download. sendNextChunk() then sends the data as DATA
+   * frames of at most Protocol.MAX_CHUNK bytes, followed by an END frame
+   * carrying the checksum trailer. An ERROR frame with "FNF" or "CHANGED" is
+   * sent instead if the file can't be downloaded or its size is not the size
+   * the client expected.
+   *
+   * @param request the DOWNLOAD frame
+   * @throws IOException if sending to the client fails
+   */
+  private void startFramedTransfer(Protocol.Frame request) throws IOException {
+    int id = request.requestId;
+    long offset;
+    long length;
+    long expectedSize;
+    String algorithm;
+    String offered;
+    File file;
+
+    try {
+      DataInputStream payload = request.data();
+      offset = payload.readLong();
+      length = payload.readLong();
+      expectedSize = payload.readLong();
+      algorithm = payload.readUTF();
+      file = new File(currentDirectory, payload.readUTF());
+      // Clients that don't offer compression end the payload here
+      offered = payload.available() > 0 ? payload.readUTF() : null;
+    } catch (IOException ex) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, "Client Request Error.");
+      return;
+    }
+
+    /* Make sure that given file exists, is a file not a directory, and the
+       server has read permissions for the file */
+    if (offset < 0 || length < 0 || !file.isFile() || !file.canRead()) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, "FNF");
+      return;
+    }
+    if (expectedSize >= 0 && expectedSize != file.length()) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, "CHANGED");
+      return;
+    }
+
+    // Popular files are sent from memory and never opened
+    ByteBuffer cached = Server.fileCache.get(file);
+    FileInputStream fileReader = null;
+    try {
+      if (cached == null) {
+        fileReader = new FileInputStream(file);
+      }
+    } catch (FileNotFoundException ex) {
+      Protocol.writeText(frameOut, Protocol.ERROR, id, "FNF");
+      return;
+    }
+
+    FramedTransfer transfer = new FramedTransfer(id, file.getName(), fileReader, cached,
+        offset, length, algorithm);
+
+    String codec = null;
+    if (Server.compression) {
+      codec = Compression.choose(offered, file, transfer::read, transfer.start,
+          transfer.end - transfer.start);
+    }
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(header);
+    payload.writeLong(transfer.total);
+    payload.writeLong(transfer.end - transfer.position);
+    payload.writeUTF(codec == null ? "" : codec);
+    Protocol.writeFrame(frameOut, Protocol.FILE, id, header.toByteArray(), 0, header.size());
+
+    // Compressed data goes through the encoder into DATA frames
+    if (codec != null) {
+      transfer.codec = codec;
+      transfer.frames = new Protocol.DataFrameOutputStream(frameOut, id);
+      transfer.encoder = Compression.encoder(codec, transfer.frames);
+    }
+
+    transfers.add(transfer);
+    flow.start();
+    Server.log.transferStarted(transfer.name, transfer.start, transfer.end - transfer.start);
+  }
+
+  /**
+   * Sends one DATA frame of the download at the head of the queue and moves
+   * it to the back, so pipelined downloads take turns on the connection. A
+   * download whose data is all sent gets its END frame and leaves the queue.
+   *
+   * @throws IOException if reading the file or sending to the client fails
+   */
+  private void sendNextChunk() throws IOException {
+    FramedTransfer transfer = transfers.poll();
+    SocketChannel socketChannel = client.getChannel();
+    boolean zeroCopyTransfer = Server.zeroCopy && socketChannel != null
+        && transfer.digest == null && transfer.archive == null && transfer.encoder == null;
+
+    try {
+      if (transfer.archive != null) {
+        sendArchiveChunk(transfer);
+      } else if (transfer.position < transfer.end) {
+        int chunk = (int) Math.min(Protocol.MAX_CHUNK, transfer.end - transfer.position);
+
+        if (zeroCopyTransfer) {
+          // Header goes through the buffered stream, the data through sendfile
+          // or straight from the cached buffer
+          Protocol.writeHeader(frameOut, Protocol.DATA, transfer.id, chunk);
+          frameOut.flush();
+          if (transfer.cached != null) {
+            writeBuffer(range(transfer.cached, transfer.position, chunk), socketChannel, null);
+          } else {
+            transferFile(transfer.channel, transfer.position, chunk, socketChannel);
+          }
+        } else {
+          byte[] chunkBuffer = chunkBuffer();
+          // Read the whole chunk first, the header promises exactly chunk bytes
+          int filled = 0;
+          while (filled < chunk) {
+            int bytesRead = transfer.read(
+                ByteBuffer.wrap(chunkBuffer, filled, chunk - filled), transfer.position + filled);
+            if (bytesRead == -1) {
+              throw new EOFException(transfer.name + " shrank during the transfer");
+            }
+            filled += bytesRead;
+          }
+          if (transfer.encoder != null) {
+            // Sync flush so each turn puts this chunk's data on the wire
+            transfer.encoder.write(chunkBuffer, 0, chunk);
+            transfer.encoder.flush();
+          } else {
+            Protocol.writeFrame(frameOut, Protocol.DATA, transfer.id, chunkBuffer, 0, chunk);
+          }
+          if (transfer.digest != null) {
+            transfer.digest.update(chunkBuffer, 0, chunk);
+          }
+        }
+        transfer.position += chunk;
+      }
+    } catch (IOException ex) {
+      transfer.close();
+      throw ex;
+    }
+
+    if (transfer.position < transfer.end) {
+      transfers.add(transfer);
+      return;
+    }
+
+    // Finish the compressed data before the END frame
+    if (transfer.encoder != null) {
+      transfer.encoder.close();
+    }
+
+    // Empty trailer when no checksum was asked for, NONE if unsupported
+    String trailer = "";
+    if (!transfer.algorithm.isEmpty()) {
+      trailer = transfer.digest != null
+          ? transfer.digest.getAlgorithm() + " " + transfer.digest.finish() : "NONE";
+    }
+    Protocol.writeText(frameOut, Protocol.END, transfer.id, trailer);
+    transfer.close();
+    if (transfers.isEmpty()) {
+      flow.stop(); // No download left, give the share back
+      releaseChunkBuffer();
+    }
+
+    // Queued downloads are timed from the request to the END frame
+    long elapsed = System.nanoTime() - transfer.requestedAt;
+    Server.metrics.command(transfer.archive != null ? "RDOWNLOAD" : "DOWNLOAD", elapsed);
+    Server.metrics.transfer(transfer.position - transfer.start, elapsed);
+
+    if (transfer.archive != null) {
+      Server.log.transferEnded(transfer.name, transfer.position, elapsed, "archive"
+          + (transfer.digest == null ? "" : ", " + transfer.digest.getAlgorithm()) + ", v2");
+      return;
+    }
+    String mode = transfer.cached != null ? "cache" : zeroCopyTransfer ? "zero-copy" : "copy";
+    if (transfer.encoder != null) {
+      mode = transfer.codec.toLowerCase() + ", " + (transfer.end - transfer.start)
+          + " bytes as " + transfer.frames.getWireBytes()
+          + (transfer.cached != null ? ", cache" : "");
+    }
+    Server.log.transferEnded(transfer.name, transfer.end - transfer.start, elapsed,
+        mode + (transfer.digest == null ? "" : ", " + transfer.digest.getAlgorithm()) + ", v2");
+  }
+
+  /**
+   * @return the array copy-based chunks are read into. It is borrowed from
+   * the pool while the connection has downloads queued.
+   */
+  private byte[] chunkBuffer() {
+    if (chunkLease == null) {
+      chunkLease = BufferPool.HEAP.acquire(Protocol.MAX_CHUNK);
+    }
+    return chunkLease.array();
+  }
+
+  /**
+   * Gives the chunk buffer back to the pool once no download is left.
+   */
+  private void releaseChunkBuffer() {
+    if (chunkLease != null) {
+      chunkLease.close();
+      chunkLease = null;
+    }
+  }
+
+  /**
+   * Sends the next DATA frame of a folder archive. The archive has no known
+   * length, so the transfer is marked complete when the packer runs out.
+   *
+   * @param transfer the archive transfer
+   * @throws IOException if reading the folder or sending to the client fails
+   */
+  private void sendArchiveChunk(FramedTransfer transfer) throws IOException {
+    byte[] chunkBuffer = chunkBuffer();
+    int filled = 0;
+    int bytesRead = 0;
+    while (filled < chunkBuffer.length
+        && (bytesRead = transfer.archive.read(chunkBuffer, filled, chunkBuffer.length - filled)) != -1) {
+      filled += bytesRead;
+    }
+
+    if (filled > 0) {
+      Protocol.writeFrame(frameOut, Protocol.DATA, transfer.id, chunkBuffer, 0, filled);
+      if (transfer.digest != null) {
+        transfer.digest.update(chunkBuffer, 0, filled);
+      }
+      transfer.position += filled;
+    }
+    if (bytesRead == -1) {
+      transfer.end = transfer.position; // Archive complete
+    }
+  }
+
+  /**
+   * Sends part of a file with FileChannel.transferTo, which lets the kernel
+   * move the bytes straight from the page cache to the socket (sendfile)
+   * without copying them through a buffer on the heap.
+   *
+   * @param source      channel of the file being sent
+   * @param position    position of the first byte to send
+   * @param count       number of bytes to send
+   * @param destination blocking channel of the client socket
+   * @throws IOException if the transfer fails
+   */
+  private void transferFile(FileChannel source, long position, long count,
+                            SocketChannel destination) throws IOException {
+    long end = position + count;
+
+    // The kernel bypasses the limited stream, so a limited transfer is sent
+    // in slices and pays for each slice after it is sent
+    long slice = Server.bandwidth.isLimited() ? Protocol.MAX_CHUNK : count;
+
+    // transferTo may send fewer bytes than requested, keep going until done
+    while (position < end) {
+      long sent = source.transferTo(position, Math.min(slice, end - position), destination);
+      if (sent <= 0) {
+        // The file shrank or the client socket was closed
+        throw new IOException("Transfer stopped before the end of the file");
+      }
+      flow.acquire(sent);
+      Server.metrics.sent(sent);
+      position += sent;
+    }
+  }
+
+  /**
+   * Sends part of a file by reading it into a pooled direct buffer and
+   * writing the buffer to the socket. Used when zero-copy transfers are
+   * disabled or a checksum is computed. The channels read into and write from
+   * the buffer in place, so the bytes never pass through the heap.
+   *
+   * @param source      channel of the file being sent
+   * @param position    position of the first byte to send
+   * @param count       number of bytes to send
+   * @param destination blocking channel of the client socket
+   * @param digest      checksum updated with every byte sent, or null
+   * @throws IOException if the file shrank or the transfer fails
+   */
+  private void copyChannel(FileChannel source, long position, long count,
+                           SocketChannel destination, TransferDigest digest) throws IOException {
+    long end = position + count;
+
+    int size = (int) Math.min(count, Integer.MAX_VALUE);
+    try (BufferPool.Lease lease = BufferPool.DIRECT.acquire(size)) {
+      ByteBuffer buffer = lease.buffer();
+      while (position < end) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+        int bytesRead = source.read(buffer, position);
+        if (bytesRead == -1) {
+          throw new IOException("Transfer stopped before the end of the file");
+        }
+        buffer.flip();
+        writeBuffer(buffer, destination, digest);
+        position += bytesRead;
+      }
+    }
+  }
+
+  /**
+   * @param data     a file from the file cache
+   * @param position position of the first byte
+   * @param count    number of bytes
+   * @return a view of that part of the file
+   */
+  private static ByteBuffer range(ByteBuffer data, long position, long count) {
+    ByteBuffer range = data.duplicate();
+    range.position((int) position);
+    range.limit((int) (position + count));
+    return range;
+  }
+
+  /**
+   * Sends a cached file, or part of it, by writing its buffer to the socket
+   * channel. Cached buffers are direct, so the channel writes them without
+   * copying them first.
+   *
+   * @param data        the bytes to send, from position to limit
+   * @param destination blocking channel of the client socket
+   * @param digest      checksum updated with every byte sent, or null
+   * @throws IOException if the transfer fails
+   */
+  private void writeBuffer(ByteBuffer data, SocketChannel destination,
+                           TransferDigest digest) throws IOException {
+    // Like transferFile, a limited transfer pays for each slice it sends
+    int slice = Server.bandwidth.isLimited() ? Protocol.MAX_CHUNK : data.remaining();
+    int end = data.limit();
+
+    while (data.position() < end) {
+      data.limit(Math.min(end, data.position() + slice));
+      int sent = data.remaining();
+      if (digest != null) {
+        int position = data.position();
+        digest.update(data);
+        data.position(position);
+      }
+      while (data.hasRemaining()) {
+        destination.write(data);
+      }
+      flow.acquire(sent);
+      Server.metrics.sent(sent);
+    }
+  }
+
+  /**
+   * Sends a cached file, or part of it, through a stream when there is no
+   * socket channel or the data is compressed.
+   *
+   * @param data     the bytes to send, from position to limit
+   * @param bytesOut output stream of the client socket or the encoder
+   * @param digest   checksum updated with every byte sent, or null
+   * @throws IOException if writing to the client fails
+   */
+  private void copyBuffer(ByteBuffer data, OutputStream bytesOut,
+                          TransferDigest digest) throws IOException {
+    try (BufferPool.Lease lease = BufferPool.HEAP.acquire(data.remaining())) {
+      byte[] buffer = lease.array();
+      while (data.hasRemaining()) {
+        int length = Math.min(buffer.length, data.remaining());
+        data.get(buffer, 0, length);
+        bytesOut.write(buffer, 0, length);
+        if (digest != null) {
+          digest.update(buffer, 0, length);
+        }
+      }
+    }
+    bytesOut.flush();
+  }
+
+  /**
+   * Sends part of the file by reading it into a buffer and writing the buffer
+   * to the socket output stream. Used for compressed data, folder archives
+   * and sockets without a channel.
+   *
+   * @param fileReader stream positioned at the first byte to send
+   * @param count      number of bytes to send
+   * @param bytesOut   output stream of the client socket
+   * @param digest     checksum updated with every byte sent, or null
+   * @return number of bytes sent, less than count if the stream ended first
+   * @throws IOException if reading the file or writing to the client fails
+   */
+  private long copyFile(InputStream fileReader, long count, OutputStream bytesOut,
+                        TransferDigest digest) throws IOException {
+    int bytesSent;
+    long total = 0;
+
+    // Can transfer 1mb at a time, the buffer is reused by the next download
+    int size = (int) Math.min(count, Integer.MAX_VALUE);
+    try (BufferPool.Lease lease = BufferPool.HEAP.acquire(size)) {
+      byte[] buffer = lease.array();
+
+      // Keep reading from file and sending to client until all data is sent or error
+      while (count > 0 && (bytesSent = fileReader.read(buffer, 0,
+          (int) Math.min(buffer.length, count))) != -1) {
+        bytesOut.write(buffer, 0, bytesSent);
+        if (digest != null) {
+          digest.update(buffer, 0, bytesSent);
+        }
+        count -= bytesSent;
+        total += bytesSent;
+      }
+    }
+    bytesOut.flush();   // Flush the data output stream
+    return total;
+  }
+
+  /**
+   * Receives the rows of a LIST page.
+   */
+  private interface RowWriter {
+    void write(String row) throws IOException;
+  }
+
+  /**
+   * Collects the rows of a LIST or SEARCH response into ENTRIES frames. Rows
+   * are counted in encoded bytes, so a frame never passes MAX_ENTRIES however
+   * many bytes the characters of the names take.
+   */
+  private static class EntryFrames implements RowWriter {
+    private final DataOutputStream out;
+    private final int id;
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(Protocol.MAX_ENTRIES);
+
+    EntryFrames(DataOutputStream out, int id) {
+      this.out = out;
+      this.id = id;
+    }
+
+    @Override
+    public void write(String row) throws IOException {
+      byte[] bytes = (row + '\n').getBytes(StandardCharsets.UTF_8);
+      if (chunk.size() + bytes.length > Protocol.MAX_ENTRIES) {
+        send();
+      }
+      chunk.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Sends the rows collected so far, if there are any.
+     *
+     * @throws IOException if the frame can't be written
+     */
+    void send() throws IOException {
+      if (chunk.size() > 0) {
+        byte[] payload = chunk.toByteArray();
+        Protocol.writeFrame(out, Protocol.ENTRIES, id, payload, 0, payload.length);
+        chunk.reset();
+      }
+    }
+  }
+
+  /**
+   * A protocol v2 download that is waiting for its next chunk to be sent.
+   */
+  private static class FramedTransfer {
+    final int id;
+    final String name;
+    final FileInputStream fileReader;
+    final FileChannel channel;
+    final ByteBuffer cached;   // Set instead of the file when it is in the file cache
+    final InputStream archive; // Set instead of the file for folder archives
+    final long total; // Size of the whole file
+    final long start; // Position of the first byte sent
+    long end; // Position after the last byte sent, archives set it when done
+    final long requestedAt = System.nanoTime();
+    final String algorithm;
+    final TransferDigest digest;
+    long position; // Position of the next byte to send
+    // Set when the data is compressed
+    String codec;
+    Protocol.DataFrameOutputStream frames;
+    OutputStream encoder;
+
+    FramedTransfer(int id, String name, FileInputStream fileReader, ByteBuffer cached,
+                   long offset, long length, String algorithm) throws IOException {
+      this.id = id;
+      this.name = name;
+      this.fileReader = fileReader;
+      this.cached = cached;
+      this.archive = null;
+      this.channel = fileReader != null ? fileReader.getChannel() : null;
+      this.total = cached != null ? cached.limit() : channel.size();
+      // Never send past the end of the file
+      this.start = Math.min(offset, total);
+      this.end = start + Math.min(length, total - start);
+      this.algorithm = algorithm;
+      this.digest = algorithm.isEmpty() ? null : TransferDigest.create(algorithm);
+      this.position = start;
+    }
+
+    FramedTransfer(int id, String name, InputStream archive, String algorithm) {
+      this.id = id;
+      this.name = name;
+      this.fileReader = null;
+      this.channel = null;
+      this.cached = null;
+      this.archive = archive;
+      this.total = -1;
+      this.start = 0;
+      this.end = Long.MAX_VALUE; // Unknown until the archive ends
+      this.algorithm = algorithm;
+      this.digest = algorithm.isEmpty() ? null : TransferDigest.create(algorithm);
+      this.position = 0;
+    }
+
+    /**
+     * Reads part of the file from the disk or the file cache.
+     *
+     * @param buffer   buffer the bytes are read into
+     * @param position position in the file of the first byte read
+     * @return number of bytes read, or -1 at the end of the file
+     * @throws IOException if the file can't be read
+     */
+    int read(ByteBuffer buffer, long position) throws IOException {
+      return cached != null ? FileCache.read(cached, buffer, position)
+          : channel.read(buffer, position);
+    }
+
+    void close() {
+      if (frames != null) {
+        frames.release(); // Already closed with the encoder unless abandoned
+      }
+      try {
+        if (archive != null) {
+          archive.close();
+        } else if (fileReader != null) {
+          fileReader.close();
+        }
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
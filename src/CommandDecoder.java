@@ -0,0 +1,227 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: CommandDecoder.java
+ * Purpose:  Reads protocol v1 request lines into a reusable buffer and
+ *           finds the command and arguments without creating garbage.
+ *           Shared by the client and the server.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java Client.java
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A connection keeps one CommandDecoder and reads every request line into
+ * it. The bytes stay in a buffer that is reused from line to line. The
+ * command is matched against a table of known commands byte by byte, case
+ * insensitively, and returned as the table's own string, so looking up and
+ * dispatching a request allocates nothing. Numbers are parsed straight from
+ * the bytes. Only the text arguments that end up in a File or a response are
+ * turned into strings.
+ *
+ * Words are separated by spaces or tabs. The command is the first word of
+ * the line; a line that doesn't start with a known command decodes as
+ * INVALID.
+ */
+final class CommandDecoder {
+
+  // Returned by command() for a line without a known command
+  static final String INVALID = "INVALID";
+
+  // Longest request line accepted
+  static final int MAX_LINE = 64 * 1024;
+
+  private final String[] commands;
+  private byte[] line = new byte[256];
+  private int length = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param commands the known commands, upper case
+   */
+  CommandDecoder(String... commands) {
+    this.commands = commands;
+  }
+
+  /**
+   * Reads the next line, without its line terminator, in place of the last
+   * one.
+   *
+   * @param in stream connected to the other side
+   * @return false at the end of the stream
+   * @throws IOException if reading fails or the line is longer than MAX_LINE
+   */
+  boolean read(InputStream in) throws IOException {
+    length = 0;
+    int b;
+    while ((b = in.read()) != -1 && b != '\n') {
+      if (b == '\r') {
+        continue;
+      }
+      if (length == line.length) {
+        if (length == MAX_LINE) {
+          throw new IOException("Request line longer than " + MAX_LINE + " bytes");
+        }
+        byte[] larger = new byte[Math.min(MAX_LINE, length * 2)];
+        System.arraycopy(line, 0, larger, 0, length);
+        line = larger;
+      }
+      line[length++] = (byte) b;
+    }
+    return b != -1 || length > 0;
+  }
+
+  /**
+   * @return the command of the line, one of the known commands, or INVALID
+   */
+  String command() {
+    int end = wordEnd(0);
+    for (String command : commands) {
+      if (command.length() == end && matches(command, 0)) {
+        return command;
+      }
+    }
+    return INVALID;
+  }
+
+  /**
+   * Checks if the whole line is the given text, such as the V2 answer to the
+   * greeting.
+   *
+   * @param text ASCII text, compared exactly
+   * @return true if the line is the text
+   */
+  boolean is(String text) {
+    if (text.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (line[i] != text.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses a word of the line as a number.
+   *
+   * @param index position of the word, the command is 0
+   * @return the number
+   * @throws NumberFormatException if the word is missing, is not a whole
+   *                               number or doesn't fit in a long
+   */
+  long number(int index) {
+    int start = wordStart(index);
+    int end = wordEnd(start);
+    if (start == end) {
+      throw new NumberFormatException("Missing number");
+    }
+
+    boolean negative = line[start] == '-';
+    long value = 0;
+    for (int i = negative ? start + 1 : start; i < end; i++) {
+      int digit = line[i] - '0';
+      if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+        throw new NumberFormatException("Not a number");
+      }
+      value = value * 10 + digit;
+    }
+    if (negative && end == start + 1) {
+      throw new NumberFormatException("Not a number");
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Returns the rest of the line from a word on, with the spaces around it
+   * removed. Spaces inside are kept, so file names may contain them.
+   *
+   * @param index position of the first word, the command is 0
+   * @return the text, empty if the line has fewer words
+   */
+  String rest(int index) {
+    int start = wordStart(index);
+    int end = length;
+    while (end > start && isSpace(line[end - 1])) {
+      end--;
+    }
+    return start == end ? "" : new String(line, start, end - start);
+  }
+
+  /**
+   * Finds the command of a line that is already a string, such as a command
+   * typed by the user. Same rules as command().
+   *
+   * @param input    the line
+   * @param commands the known commands, upper case
+   * @return one of the known commands, or INVALID
+   */
+  static String commandOf(String input, String... commands) {
+    int end = 0;
+    while (end < input.length() && input.charAt(end) != ' ' && input.charAt(end) != '\t') {
+      end++;
+    }
+    for (String command : commands) {
+      if (command.length() == end && input.regionMatches(true, 0, command, 0, end)) {
+        return command;
+      }
+    }
+    return INVALID;
+  }
+
+  /**
+   * @return true if the command matches the line at the given position,
+   * ignoring case
+   */
+  private boolean matches(String command, int start) {
+    for (int i = 0; i < command.length(); i++) {
+      int b = line[start + i];
+      if (b >= 'a' && b <= 'z') {
+        b -= 'a' - 'A';
+      }
+      if (b != command.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return position of the first byte of a word, or the line length if the
+   * line has fewer words
+   */
+  private int wordStart(int index) {
+    int position = wordEnd(0);
+    for (int word = 0; word < index; word++) {
+      while (position < length && isSpace(line[position])) {
+        position++;
+      }
+      if (word + 1 < index) {
+        position = wordEnd(position);
+      }
+    }
+    return index == 0 ? 0 : position;
+  }
+
+  /**
+   * @return position after the word that starts at the given position
+   */
+  private int wordEnd(int start) {
+    int position = start;
+    while (position < length && !isSpace(line[position])) {
+      position++;
+    }
+    return position;
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t';
+  }
+}
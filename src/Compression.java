@@ -0,0 +1,394 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: Compression.java
+ * Purpose:  Compression that the client and the server negotiate
+ *           for each download. The server compresses the file while
+ *           it sends it and the client decompresses it while it
+ *           saves it. Shared by the client and the server.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java Client.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The client offers the codecs it can decode, in order of preference, and
+ * the server picks the first one it supports unless the file is not worth
+ * compressing. Files whose extension says they are already compressed are
+ * skipped without reading them, anything else is judged by compressing a
+ * few samples of the file.
+ *
+ * Compressed data is not self-delimiting on a shared stream, because the
+ * decoders read ahead. Protocol v1 therefore sends it in blocks, each a
+ * 4 byte length followed by that many bytes, ending with an empty block.
+ * Protocol v2 already delimits the data with DATA frames and an END frame.
+ */
+final class Compression {
+
+  static final String DEFLATE = "DEFLATE";
+  static final String GZIP = "GZIP";
+
+  // Codecs offered by default, best first
+  static final String ALL = DEFLATE + "," + GZIP;
+
+  // Files smaller than this cost more to negotiate than they save
+  private static final long MIN_SIZE = 512;
+
+  // Size and number of the samples taken by the compressibility probe
+  private static final int SAMPLE_SIZE = 16 * 1024;
+  private static final int SAMPLES = 3;
+
+  // Compress only if the samples shrink below this fraction of their size
+  private static final double MAX_RATIO = 0.9;
+
+  // Size of the v1 blocks and of the codec buffers
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  // Extensions of formats that are compressed already
+  private static final Set<String> COMPRESSED = new HashSet<>(Arrays.asList(
+      "7z", "avi", "bz2", "docx", "flac", "gif", "gz", "jar", "jpeg", "jpg", "m4a",
+      "mkv", "mov", "mp3", "mp4", "ogg", "png", "pptx", "rar", "tgz", "webm", "webp",
+      "xlsx", "xz", "zip", "zst"));
+
+  private Compression() {
+  }
+
+  /**
+   * Picks the codec for a download.
+   *
+   * @param offered codecs the client can decode, comma separated, best first
+   * @param file    the file being sent
+   * @param samples reads the file, such as FileChannel::read, used to take samples
+   * @param start   position of the first byte sent
+   * @param count   number of bytes sent
+   * @return the codec, or null to send the file uncompressed
+   */
+  static String choose(String offered, File file, Samples samples, long start, long count) {
+    if (offered == null || offered.isEmpty() || count < MIN_SIZE) {
+      return null;
+    }
+
+    String name = file.getName();
+    String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+    if (name.contains(".") && COMPRESSED.contains(extension)) {
+      return null;
+    }
+
+    String codec = null;
+    for (String candidate : offered.split(",")) {
+      candidate = candidate.trim().toUpperCase(Locale.ROOT);
+      if (candidate.equals(DEFLATE) || candidate.equals(GZIP)) {
+        codec = candidate;
+        break;
+      }
+    }
+    if (codec == null) {
+      return null;
+    }
+
+    try {
+      return isCompressible(samples, start, count) ? codec : null;
+    } catch (IOException ex) {
+      return null; // Unreadable samples, the transfer will report the error
+    }
+  }
+
+  /**
+   * Reads part of the file being sent without moving its position, with the
+   * signature of FileChannel.read(ByteBuffer, long). Files served from memory
+   * are sampled from there.
+   */
+  interface Samples {
+    int read(ByteBuffer buffer, long position) throws IOException;
+  }
+
+  /**
+   * Compresses samples from the start, middle and end of the range with the
+   * fastest deflate level.
+   *
+   * @param samples reads the file
+   * @param start   position of the first byte sent
+   * @param count   number of bytes sent
+   * @return true if the samples shrink enough to be worth compressing
+   * @throws IOException if the file can't be read
+   */
+  private static boolean isCompressible(Samples samples, long start, long count)
+      throws IOException {
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    long input = 0;
+    long compressed = 0;
+
+    try (BufferPool.Lease sampleLease = BufferPool.HEAP.acquire(SAMPLE_SIZE);
+         BufferPool.Lease outputLease = BufferPool.HEAP.acquire(SAMPLE_SIZE)) {
+      byte[] sample = sampleLease.array();
+      byte[] output = outputLease.array();
+      for (int i = 0; i < SAMPLES; i++) {
+        long position = start + (count - Math.min(count, SAMPLE_SIZE)) * i / (SAMPLES - 1);
+        ByteBuffer buffer = ByteBuffer.wrap(sample, 0, (int) Math.min(count, SAMPLE_SIZE));
+        // Positional reads don't move the file, the transfer starts where it expects
+        int bytesRead = 0;
+        while (buffer.hasRemaining() && bytesRead != -1) {
+          bytesRead = samples.read(buffer, position + buffer.position());
+        }
+
+        deflater.reset();
+        deflater.setInput(sample, 0, buffer.position());
+        deflater.finish();
+        while (!deflater.finished()) {
+          compressed += deflater.deflate(output);
+        }
+        input += buffer.position();
+      }
+    } finally {
+      deflater.end();
+    }
+    return input > 0 && compressed < input * MAX_RATIO;
+  }
+
+  /**
+   * Wraps the wire stream in an encoder. Closing the encoder finishes the
+   * compressed data and closes the wire stream.
+   *
+   * @param codec DEFLATE or GZIP
+   * @param wire  stream the compressed bytes are written to
+   * @return stream the file bytes are written to
+   * @throws IOException if the encoder can't be created
+   */
+  static OutputStream encoder(String codec, OutputStream wire) throws IOException {
+    // Sync flush lets every flush() put everything written so far on the wire
+    if (codec.equals(GZIP)) {
+      return new GZIPOutputStream(wire, BLOCK_SIZE, true);
+    }
+    return new DeflaterOutputStream(wire, new Deflater(), BLOCK_SIZE, true) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        def.end(); // Not done by DeflaterOutputStream for a supplied deflater
+      }
+    };
+  }
+
+  /**
+   * Wraps the wire stream in a decoder.
+   *
+   * @param codec DEFLATE or GZIP
+   * @param wire  stream of the compressed bytes, ends where the data ends
+   * @param count number of bytes the data decompresses to
+   * @return stream of the file bytes
+   * @throws IOException if the codec is unknown or the data is malformed
+   */
+  static Decoder decoder(String codec, InputStream wire, long count) throws IOException {
+    return new Decoder(codec, wire, count);
+  }
+
+  /**
+   * Writes protocol v1 blocks. Closing the stream writes the empty end block
+   * and flushes, but leaves the socket open. The block buffer is borrowed
+   * from the pool until then.
+   */
+  static class BlockOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final BufferPool.Lease lease = BufferPool.HEAP.acquire(BLOCK_SIZE);
+    private final byte[] block = lease.array();
+    private int length = 0;
+    private long wireBytes = 0;
+    private boolean closed = false;
+
+    BlockOutputStream(OutputStream out) {
+      this.out = new DataOutputStream(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+      while (count > 0) {
+        int copied = Math.min(count, block.length - length);
+        System.arraycopy(bytes, offset, block, length, copied);
+        length += copied;
+        offset += copied;
+        count -= copied;
+        if (length == block.length) {
+          writeBlock();
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      writeBlock();
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        try {
+          writeBlock();
+          out.writeInt(0);
+          wireBytes += 4;
+          out.flush();
+        } finally {
+          lease.close();
+        }
+      }
+    }
+
+    /**
+     * @return bytes written to the wire so far, block headers included
+     */
+    long getWireBytes() {
+      return wireBytes;
+    }
+
+    private void writeBlock() throws IOException {
+      if (length > 0) {
+        out.writeInt(length);
+        out.write(block, 0, length);
+        wireBytes += 4 + length;
+        length = 0;
+      }
+    }
+  }
+
+  /**
+   * Reads protocol v1 blocks. Ends after the empty end block without reading
+   * anything past it.
+   */
+  static class BlockInputStream extends InputStream {
+    private final DataInputStream in;
+    private int remaining = 0; // Bytes left in the current block
+    private boolean ended = false;
+
+    BlockInputStream(InputStream in) {
+      this.in = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      while (remaining == 0) {
+        if (ended) {
+          return -1;
+        }
+        remaining = in.readInt();
+        if (remaining < 0 || remaining > BLOCK_SIZE) {
+          throw new IOException("Malformed compressed block");
+        }
+        ended = remaining == 0;
+      }
+      int bytesRead = in.read(buffer, offset, Math.min(length, remaining));
+      if (bytesRead == -1) {
+        throw new EOFException("Server closed the connection");
+      }
+      remaining -= bytesRead;
+      return bytesRead;
+    }
+  }
+
+  /**
+   * Decompresses a download. Once the last file byte has been read the rest
+   * of the wire stream is consumed, so whatever follows the data (the trailer)
+   * can be read next.
+   */
+  static class Decoder extends InputStream {
+    private final InputStream wire;
+    private final InputStream decoded;
+    private long remaining;
+    private long wireBytes = 0;
+
+    private Decoder(String codec, InputStream wire, long count) throws IOException {
+      // Count the compressed bytes as the codec reads them
+      this.wire = new FilterInputStream(wire) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          wireBytes += b == -1 ? 0 : 1;
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          int bytesRead = super.read(buffer, offset, length);
+          wireBytes += Math.max(bytesRead, 0);
+          return bytesRead;
+        }
+      };
+      this.remaining = count;
+
+      switch (codec) {
+        case DEFLATE:
+          decoded = new InflaterInputStream(this.wire, new Inflater(), BLOCK_SIZE);
+          break;
+        case GZIP:
+          decoded = new GZIPInputStream(this.wire, BLOCK_SIZE);
+          break;
+        default:
+          throw new IOException("Unsupported compression " + codec);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int bytesRead = decoded.read(buffer, offset, (int) Math.min(length, remaining));
+      if (bytesRead == -1) {
+        throw new EOFException("Compressed data ended early");
+      }
+      remaining -= bytesRead;
+
+      if (remaining == 0) {
+        // Skip the end of the compressed data the codec hasn't asked for
+        try (BufferPool.Lease lease = BufferPool.HEAP.acquire(BLOCK_SIZE)) {
+          byte[] rest = lease.array();
+          while (wire.read(rest, 0, rest.length) != -1) {
+            // Discard
+          }
+        }
+      }
+      return bytesRead;
+    }
+
+    /**
+     * @return compressed bytes read from the wire so far
+     */
+    long getWireBytes() {
+      return wireBytes;
+    }
+  }
+}
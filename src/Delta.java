@@ -0,0 +1,480 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: Delta.java
+ * Purpose:  Delta transfer used by SYNC. The client describes its
+ *           copy of a file with block checksums, the server answers
+ *           with the differences only and the client patches its
+ *           copy in place. Shared by the client and the server.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java Client.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The algorithm is the one rsync uses. The client cuts its copy into blocks
+ * and sends a weak rolling checksum and a strong MD5 of each one. The server
+ * slides a window of one block over its file a byte at a time. The rolling
+ * checksum of the window is updated in constant time per byte and looked up
+ * among the client's blocks; only on a hit is the MD5 computed to confirm it.
+ * Confirmed blocks are sent as COPY instructions, everything in between as
+ * LITERAL data.
+ *
+ * The client writes the result straight into its copy instead of building a
+ * second file, which matters for the multi-gigabyte files this is meant for.
+ * That only works if no instruction reads a block that an earlier one has
+ * overwritten, so the server only matches blocks at or after the position
+ * being written, like rsync --inplace. Changes that keep the layout of the
+ * file, the common case for images and archives that are updated in place,
+ * send only the changed blocks. Data inserted near the start moves the rest
+ * of the file back and sends it in full. An interrupted SYNC leaves a mixed
+ * file, which the next SYNC repairs like any other change.
+ *
+ * Instructions, in the DATA frames of the response:
+ * COPY:    byte 1, int first block, int number of blocks
+ * LITERAL: byte 2, int length, the bytes
+ */
+final class Delta {
+
+  static final byte COPY = 1;
+  static final byte LITERAL = 2;
+
+  // Length of the strong checksum, a full MD5
+  static final int STRONG_LENGTH = 16;
+
+  // Block size bounds. Between them the block size is the square root of the
+  // file size, which balances the signature size against the literal data
+  // sent around each change.
+  private static final int MIN_BLOCK = 2048;
+  private static final int MAX_BLOCK = 1024 * 1024;
+
+  // Most blocks in a signature
+  private static final int MAX_BLOCKS = 2 * 1024 * 1024;
+
+  // Largest signature: block size, number of blocks and the weak and strong
+  // checksum of every block
+  static final int MAX_SIGNATURE = 4 + 8 + MAX_BLOCKS * (4 + STRONG_LENGTH);
+
+  // Literal data is sent once this much has built up
+  private static final int MAX_LITERAL = 64 * 1024;
+
+  private Delta() {
+  }
+
+  /**
+   * @param fileSize size of the client's copy
+   * @return the block size its signature uses
+   */
+  static int blockSize(long fileSize) {
+    long size = (long) Math.sqrt(fileSize);
+    size = Math.max(size, (fileSize + MAX_BLOCKS - 1) / MAX_BLOCKS);
+    size = (size + 7) / 8 * 8;
+    return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, size));
+  }
+
+  /**
+   * Writes the signature of a file: the block size, the number of blocks and
+   * the weak and strong checksum of every full block. A shorter last block is
+   * left out and will simply be sent.
+   *
+   * @param file the client's copy
+   * @param out  stream the signature is written to
+   * @return block size of the signature, needed to apply the instructions
+   * @throws IOException if the file can't be read
+   */
+  static int writeSignature(File file, DataOutputStream out) throws IOException {
+    int block = blockSize(file.length());
+    long blocks = file.length() / block;
+    MessageDigest md5 = md5();
+    byte[] buffer = new byte[block];
+
+    out.writeInt(block);
+    out.writeLong(blocks);
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1000000)) {
+      for (long i = 0; i < blocks; i++) {
+        readFully(in, buffer);
+        out.writeInt(new Rolling(buffer, 0, block).value());
+        md5.update(buffer, 0, block);
+        out.write(md5.digest());
+      }
+    }
+    return block;
+  }
+
+  /**
+   * Reads and checks a signature sent by a client.
+   *
+   * @param in stream positioned at the signature
+   * @return the signature, indexed by weak checksum
+   * @throws IOException if the signature is malformed
+   */
+  static Signature readSignature(DataInputStream in) throws IOException {
+    int block = in.readInt();
+    long blocks = in.readLong();
+    if (block < MIN_BLOCK || block > MAX_BLOCK || blocks < 0 || blocks > MAX_BLOCKS) {
+      throw new IOException("Invalid signature");
+    }
+
+    // Sorted by weak checksum, then by block, as checksum and block in one
+    // long. The arrays grow as the blocks arrive, so a count the client never
+    // sends doesn't cost any memory.
+    int capacity = (int) Math.min(blocks, 4096);
+    long[] entries = new long[capacity];
+    byte[] strong = new byte[capacity * STRONG_LENGTH];
+    for (int i = 0; i < blocks; i++) {
+      if (i == capacity) {
+        capacity = (int) Math.min(blocks, 2L * capacity);
+        entries = Arrays.copyOf(entries, capacity);
+        strong = Arrays.copyOf(strong, capacity * STRONG_LENGTH);
+      }
+      int checksum = in.readInt();
+      entries[i] = (long) checksum << 32 | i;
+      in.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+    }
+    Arrays.sort(entries);
+
+    Signature signature = new Signature(block, strong);
+    for (int i = 0; i < entries.length; i++) {
+      signature.weak[i] = (int) (entries[i] >> 32);
+      signature.blocks[i] = (int) entries[i];
+      signature.tags[tag(signature.weak[i])] = true;
+    }
+    return signature;
+  }
+
+  /**
+   * Compares a file with a client's signature and writes the instructions
+   * that turn the client's copy into the file.
+   *
+   * @param signature the signature the client sent
+   * @param file      channel of the server's file, read from the start
+   * @param out       stream the instructions are written to
+   * @param digest    checksum updated with every byte of the file, or null
+   * @return number of bytes of the file sent as literal data
+   * @throws IOException if the file can't be read or the stream written
+   */
+  static long encode(Signature signature, FileChannel file, OutputStream out,
+                     TransferDigest digest) throws IOException {
+    int block = signature.block;
+    int[] weak = signature.weak;
+    int[] blocks = signature.blocks;
+    boolean[] tags = signature.tags;
+    byte[] strong = signature.strong;
+
+    DataOutputStream instructions = new DataOutputStream(out);
+    MessageDigest md5 = md5();
+
+    // buffer[literal, position) is pending literal data and the window is
+    // buffer[position, position + block). Bytes before literal are taken care
+    // of by the instructions written or the pending COPY run. Four blocks of
+    // files up to 64 gigabytes fit in a pooled buffer.
+    int size = Math.max(4 * block, 1000000);
+    boolean pooled = size <= BufferPool.LARGEST;
+    try (BufferPool.Lease lease = pooled ? BufferPool.HEAP.acquire(size) : null) {
+      byte[] buffer = lease != null ? lease.array() : new byte[size];
+      int literal = 0;
+      int position = 0;
+      int filled = 0;
+      boolean endOfFile = false;
+      long written = 0;      // Bytes of the new file up to literal
+      long literalBytes = 0;
+      int runStart = -1;     // Pending COPY of blocks runStart to runStart + runLength
+      int runLength = 0;
+      Rolling rolling = null;
+
+      while (true) {
+        // Keep a whole window in the buffer, moving the unsent bytes to the front
+        if (filled - position < block && !endOfFile) {
+          if (literal > 0) {
+            System.arraycopy(buffer, literal, buffer, 0, filled - literal);
+            position -= literal;
+            filled -= literal;
+            literal = 0;
+          }
+          while (filled < buffer.length) {
+            int bytesRead = file.read(ByteBuffer.wrap(buffer, filled, buffer.length - filled));
+            if (bytesRead == -1) {
+              endOfFile = true;
+              break;
+            }
+            if (digest != null) {
+              digest.update(buffer, filled, bytesRead);
+            }
+            filled += bytesRead;
+          }
+          continue;
+        }
+        if (filled - position < block) {
+          break; // Less than a block left, it goes out as literal data
+        }
+
+        if (rolling == null) {
+          rolling = new Rolling(buffer, position, block);
+        }
+
+        int match = -1;
+        int checksum = rolling.value();
+        int first = tags[tag(checksum)] ? Arrays.binarySearch(weak, checksum) : -1;
+        if (first >= 0) {
+          while (first > 0 && weak[first - 1] == checksum) {
+            first--; // The search may land on any block with this checksum
+          }
+          md5.update(buffer, position, block);
+          byte[] window = md5.digest();
+          // Blocks before the write position are already overwritten
+          long writePosition = written + (position - literal);
+          for (int i = first; i < weak.length && weak[i] == checksum; i++) {
+            int candidate = blocks[i];
+            if ((long) candidate * block >= writePosition && equal(strong, candidate, window)) {
+              match = candidate;
+              break;
+            }
+          }
+        }
+
+        if (match != -1) {
+          if (position > literal) {
+            writeLiteral(instructions, buffer, literal, position);
+            literalBytes += position - literal;
+            written += position - literal;
+          }
+          if (runLength == 0 || match != runStart + runLength) {
+            writeRun(instructions, runStart, runLength);
+            runStart = match;
+            runLength = 0;
+          }
+          runLength++;
+          written += block;
+          position += block;
+          literal = position;
+          rolling = null;
+          continue;
+        }
+
+        // Slide the window one byte, the byte left behind becomes literal data
+        // and ends the COPY run before it
+        if (position == literal) {
+          writeRun(instructions, runStart, runLength);
+          runLength = 0;
+        }
+        if (position + block < filled) {
+          rolling.roll(buffer[position], buffer[position + block]);
+        } else {
+          rolling = null; // The next byte isn't read yet, start over after the refill
+        }
+        position++;
+        if (position - literal >= MAX_LITERAL) {
+          writeLiteral(instructions, buffer, literal, position);
+          literalBytes += position - literal;
+          written += position - literal;
+          literal = position;
+        }
+      }
+
+      writeRun(instructions, runStart, runLength);
+      writeLiteral(instructions, buffer, literal, filled);
+      literalBytes += filled - literal;
+      instructions.flush();
+      return literalBytes;
+    }
+  }
+
+  /**
+   * Applies instructions to the client's copy. The file is patched where it
+   * is and cut to the new size at the end.
+   *
+   * @param file         the client's copy, open for reading and writing
+   * @param block        block size of the signature that was sent
+   * @param instructions stream of the server's instructions
+   * @param size         size of the file on the server
+   * @return {bytes copied from the old copy, literal bytes received}
+   * @throws IOException if the instructions are malformed or the file can't be written
+   */
+  static long[] apply(RandomAccessFile file, int block, InputStream instructions, long size)
+      throws IOException {
+    DataInputStream in = new DataInputStream(instructions);
+    FileChannel channel = file.getChannel();
+    long position = 0;
+    long copied = 0;
+    long literal = 0;
+
+    try (BufferPool.Lease lease = BufferPool.HEAP.acquire(1000000)) {
+      byte[] buffer = lease.array();
+      int type;
+      while ((type = in.read()) != -1) {
+        if (type == COPY) {
+          long source = (long) in.readInt() * block;
+          long length = (long) in.readInt() * block;
+          if (source < position || source + length > channel.size()) {
+            throw new IOException("Invalid COPY instruction");
+          }
+          // Blocks that haven't moved are already in place. Moving forward in
+          // the file is safe chunk by chunk because source is never behind.
+          if (source != position) {
+            for (long done = 0; done < length; ) {
+              int chunk = (int) Math.min(buffer.length, length - done);
+              ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, chunk);
+              while (bytes.hasRemaining()) {
+                if (channel.read(bytes, source + done + bytes.position()) == -1) {
+                  throw new EOFException("Local copy shrank during SYNC");
+                }
+              }
+              bytes.flip();
+              while (bytes.hasRemaining()) {
+                channel.write(bytes, position + done + bytes.position());
+              }
+              done += chunk;
+            }
+          }
+          position += length;
+          copied += length;
+        } else if (type == LITERAL) {
+          int length = in.readInt();
+          if (length < 0) {
+            throw new IOException("Invalid LITERAL instruction");
+          }
+          while (length > 0) {
+            int chunk = Math.min(buffer.length, length);
+            in.readFully(buffer, 0, chunk);
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, chunk);
+            while (bytes.hasRemaining()) {
+              channel.write(bytes, position + bytes.position());
+            }
+            position += chunk;
+            literal += chunk;
+            length -= chunk;
+          }
+        } else {
+          throw new IOException("Unknown delta instruction " + type);
+        }
+      }
+    }
+
+    if (position != size) {
+      throw new IOException("SYNC produced " + position + " of " + size + " bytes");
+    }
+    channel.truncate(size);
+    return new long[]{copied, literal};
+  }
+
+  /**
+   * Writes a COPY instruction, nothing if the run is empty.
+   */
+  private static void writeRun(DataOutputStream out, int start, int length)
+      throws IOException {
+    if (length > 0) {
+      out.writeByte(COPY);
+      out.writeInt(start);
+      out.writeInt(length);
+    }
+  }
+
+  /**
+   * Writes buffer[from, to) as a LITERAL instruction, nothing if it is empty.
+   */
+  private static void writeLiteral(DataOutputStream out, byte[] buffer, int from, int to)
+      throws IOException {
+    if (to > from) {
+      out.writeByte(LITERAL);
+      out.writeInt(to - from);
+      out.write(buffer, from, to - from);
+    }
+  }
+
+  /**
+   * @return index of a weak checksum in the tag table
+   */
+  private static int tag(int checksum) {
+    return (checksum ^ (checksum >>> 16)) & 0xffff;
+  }
+
+  private static boolean equal(byte[] strong, int block, byte[] window) {
+    for (int i = 0; i < STRONG_LENGTH; i++) {
+      if (strong[block * STRONG_LENGTH + i] != window[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void readFully(InputStream in, byte[] buffer) throws IOException {
+    int filled = 0;
+    while (filled < buffer.length) {
+      int bytesRead = in.read(buffer, filled, buffer.length - filled);
+      if (bytesRead == -1) {
+        throw new EOFException("File shrank while its signature was computed");
+      }
+      filled += bytesRead;
+    }
+  }
+
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("MD5 is required by every Java platform", ex);
+    }
+  }
+
+  /**
+   * A client's signature. The weak checksums are kept sorted, with the block
+   * each belongs to at the same index of blocks, and are found by binary
+   * search; collisions are rare, most checksums belong to one block. Primitive
+   * arrays keep a signature of millions of blocks at 24 bytes a block. Most
+   * windows match no block at all, the tag table turns them away without a
+   * search.
+   */
+  static final class Signature {
+    final int block;
+    final int[] weak;
+    final int[] blocks;
+    final boolean[] tags = new boolean[1 << 16];
+    final byte[] strong;
+
+    private Signature(int block, byte[] strong) {
+      this.block = block;
+      this.weak = new int[strong.length / STRONG_LENGTH];
+      this.blocks = new int[weak.length];
+      this.strong = strong;
+    }
+  }
+
+  /**
+   * The rsync rolling checksum of a window: two 16 bit sums, one of the bytes
+   * and one of the bytes weighted by their distance from the end. Moving the
+   * window by a byte takes out the byte that leaves and adds the one that
+   * enters without looking at the rest.
+   */
+  static final class Rolling {
+    private final int length;
+    private int a;
+    private int b;
+
+    Rolling(byte[] bytes, int offset, int length) {
+      this.length = length;
+      for (int i = 0; i < length; i++) {
+        int value = bytes[offset + i] & 0xff;
+        a += value;
+        b += (length - i) * value;
+      }
+    }
+
+    void roll(byte out, byte in) {
+      a += (in & 0xff) - (out & 0xff);
+      b += a - length * (out & 0xff);
+    }
+
+    int value() {
+      return (a & 0xffff) | (b << 16);
+    }
+  }
+}
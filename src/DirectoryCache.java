@@ -0,0 +1,212 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: DirectoryCache.java
+ * Purpose:  Server wide cache of DIR listings. Shared by every
+ *           client connection so a directory that many clients
+ *           browse is only read from the disk once per change.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * DirectoryCache keeps the most recently used directory listings keyed by
+ * canonical path. Every cached directory is registered with a WatchService,
+ * and a background thread drops the listing as soon as an entry is created,
+ * deleted or modified. File systems that don't deliver watch events are
+ * covered by comparing the directory's modification time on every lookup.
+ */
+class DirectoryCache {
+
+  private final int capacity;
+  private final WatchService watcher; // null if the file system can't watch
+
+  // Cached listings in least recently used order. Guarded by the cache itself.
+  private final LinkedHashMap<String, Listing> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Constructor. Starts the watcher thread.
+   *
+   * @param capacity maximum number of directories kept, 0 disables the cache
+   */
+  DirectoryCache(int capacity) {
+    this.capacity = capacity;
+    this.entries = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+        if (size() > DirectoryCache.this.capacity) {
+          eldest.getValue().cancel();
+          return true;
+        }
+        return false;
+      }
+    };
+
+    WatchService service = null;
+    if (capacity > 0) {
+      try {
+        service = FileSystems.getDefault().newWatchService();
+      } catch (IOException | UnsupportedOperationException ex) {
+        System.err.println("Directory cache: no WatchService, checking modification times only");
+      }
+    }
+    this.watcher = service;
+
+    if (watcher != null) {
+      Thread thread = new Thread(this::watch, "DirectoryWatcher");
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  /**
+   * Returns the listing of a directory, reading it with the loader only if it
+   * is not cached or has changed since it was cached.
+   *
+   * @param directory the directory to list
+   * @param loader    reads the listing from the disk
+   * @return the listing
+   */
+  String get(File directory, Function<File, String> loader) {
+    if (capacity == 0) {
+      return loader.apply(directory);
+    }
+
+    String key;
+    try {
+      key = directory.getCanonicalPath();
+    } catch (IOException ex) {
+      misses.incrementAndGet();
+      return loader.apply(directory);
+    }
+
+    long modified = directory.lastModified();
+    synchronized (entries) {
+      Listing entry = entries.get(key);
+      if (entry != null && entry.modified == modified) {
+        hits.incrementAndGet();
+        return entry.listing;
+      }
+      if (entry != null) {
+        entries.remove(key).cancel(); // Changed without a watch event
+      }
+    }
+    misses.incrementAndGet();
+
+    // Watch before reading so no change after the read can be missed
+    WatchKey watchKey = register(key);
+    String listing = loader.apply(directory);
+
+    // A key that was cancelled meanwhile saw a change, or was dropped with an
+    // older listing, and would never report the next one: don't keep the
+    // listing. An empty string means the directory could not be read.
+    synchronized (entries) {
+      if (watchKey != null && !watchKey.isValid()) {
+        return listing;
+      }
+      if (!listing.isEmpty()) {
+        entries.put(key, new Listing(listing, modified, watchKey));
+      } else if (watchKey != null) {
+        // A directory has one key, which a cached listing may still use
+        Listing entry = entries.get(key);
+        if (entry == null || entry.watchKey != watchKey) {
+          watchKey.cancel();
+        }
+      }
+    }
+    return listing;
+  }
+
+  /**
+   * @return number of lookups answered from memory
+   */
+  long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of lookups that had to read the directory
+   */
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * Registers a directory with the watch service.
+   *
+   * @param path canonical path of the directory
+   * @return the watch key, or null if the directory can't be watched
+   */
+  private WatchKey register(String path) {
+    if (watcher == null) {
+      return null;
+    }
+    try {
+      return Paths.get(path).register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException | UnsupportedOperationException ex) {
+      return null; // Fall back to the modification time check
+    }
+  }
+
+  /**
+   * Watcher thread. Drops the listing of every directory that reports a change.
+   */
+  private void watch() {
+    while (true) {
+      WatchKey watchKey;
+      try {
+        watchKey = watcher.take();
+      } catch (InterruptedException | ClosedWatchServiceException ex) {
+        return;
+      }
+
+      // The events themselves don't matter, any change invalidates the listing
+      watchKey.pollEvents();
+      String key = watchKey.watchable().toString();
+
+      synchronized (entries) {
+        Listing entry = entries.get(key);
+        if (entry != null && entry.watchKey == watchKey) {
+          entries.remove(key);
+        }
+        watchKey.cancel();
+      }
+    }
+  }
+
+  /**
+   * A cached listing.
+   */
+  private static class Listing {
+    final String listing;
+    final long modified;    // Directory modification time when it was read
+    final WatchKey watchKey; // null if the directory isn't watched
+
+    Listing(String listing, long modified, WatchKey watchKey) {
+      this.listing = listing;
+      this.modified = modified;
+      this.watchKey = watchKey;
+    }
+
+    void cancel() {
+      if (watchKey != null) {
+        watchKey.cancel();
+      }
+    }
+  }
+}
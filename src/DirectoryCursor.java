@@ -0,0 +1,191 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: DirectoryCursor.java
+ * Purpose:  Position in a directory listing that is sent to the
+ *           client one page at a time by the LIST command.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * DirectoryCursor walks a directory with a DirectoryStream and produces one
+ * entry line at a time in the same "Type#Size#Name" format DIR uses. Without
+ * sorting only the entry being produced is held in memory, so directories of
+ * any size are listed with bounded memory. Sorting has to read the whole
+ * directory first.
+ */
+class DirectoryCursor implements Closeable {
+
+  // Sort orders accepted by the LIST command
+  static final String UNSORTED = "none";
+  static final String BY_NAME = "name";
+  static final String BY_SIZE = "size";
+  static final String BY_TYPE = "type"; // Files first, like DIR
+
+  private final DirectoryStream<Path> stream;
+  private final Iterator<Path> paths; // Set while streaming unsorted
+  private Iterator<String> sorted;    // Set when sorting
+  private String next;                // Entry returned by the next call to next()
+
+  /**
+   * Opens a cursor at the first entry of a directory.
+   *
+   * @param directory the directory to list
+   * @param sort      one of the sort order constants
+   * @param filter    glob the entry names must match, such as "*.txt"
+   * @throws IOException if the directory can't be read
+   * @throws IllegalArgumentException if the sort order or glob is invalid
+   */
+  DirectoryCursor(File directory, String sort, String filter) throws IOException {
+    Comparator<Entry> order;
+    switch (sort) {
+      case UNSORTED:
+        order = null;
+        break;
+      case BY_NAME:
+        order = Comparator.comparing(entry -> entry.name);
+        break;
+      case BY_SIZE:
+        order = Comparator.<Entry>comparingLong(entry -> entry.size)
+            .thenComparing(entry -> entry.name);
+        break;
+      case BY_TYPE:
+        order = Comparator.<Entry, Boolean>comparing(entry -> entry.folder)
+            .thenComparing(entry -> entry.name);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown sort order " + sort);
+    }
+
+    stream = Files.newDirectoryStream(directory.toPath(), filter);
+
+    if (order == null) {
+      paths = stream.iterator();
+    } else {
+      List<Entry> entries = new ArrayList<>();
+      for (Path path : stream) {
+        Entry entry = Entry.read(path);
+        if (entry != null) {
+          entries.add(entry);
+        }
+      }
+      stream.close();
+      entries.sort(order);
+
+      List<String> lines = new ArrayList<>(entries.size());
+      for (Entry entry : entries) {
+        lines.add(entry.toString());
+      }
+      paths = null;
+      sorted = lines.iterator();
+    }
+    advance();
+  }
+
+  /**
+   * @return true if next() has another entry
+   */
+  boolean hasNext() {
+    return next != null;
+  }
+
+  /**
+   * @return the next entry line, or null once the listing is exhausted
+   */
+  String next() {
+    String entry = next;
+    advance();
+    return entry;
+  }
+
+  /**
+   * Releases the directory stream.
+   */
+  @Override
+  public void close() {
+    try {
+      stream.close();
+    } catch (IOException ignored) {
+      // Nothing left to release
+    }
+  }
+
+  /**
+   * Moves to the next entry that is a file or a folder.
+   */
+  private void advance() {
+    next = null;
+    if (sorted != null) {
+      if (sorted.hasNext()) {
+        next = sorted.next();
+      }
+      return;
+    }
+
+    try {
+      while (next == null && paths.hasNext()) {
+        Entry entry = Entry.read(paths.next());
+        if (entry != null) {
+          next = entry.toString();
+        }
+      }
+    } catch (DirectoryIteratorException ex) {
+      next = null; // Directory vanished while it was listed, end the listing
+    }
+  }
+
+  /**
+   * One directory entry.
+   */
+  private static class Entry {
+    final String name;
+    final boolean folder;
+    final long size;
+
+    Entry(String name, boolean folder, long size) {
+      this.name = name;
+      this.folder = folder;
+      this.size = size;
+    }
+
+    /**
+     * Reads the attributes of an entry with a single stat call.
+     *
+     * @param path the entry
+     * @return the entry, or null if it is neither a file nor a folder or it
+     * was deleted meanwhile
+     */
+    static Entry read(Path path) {
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attributes.isRegularFile()) {
+          return new Entry(path.getFileName().toString(), false, attributes.size());
+        } else if (attributes.isDirectory()) {
+          return new Entry(path.getFileName().toString(), true, 0);
+        }
+      } catch (IOException ex) {
+        // Deleted between the listing and the stat, skip it
+      }
+      return null;
+    }
+
+    @Override
+    public String toString() {
+      return folder ? "Folder#-#" + name : "File#" + size + "#" + name;
+    }
+  }
+}
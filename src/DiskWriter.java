@@ -0,0 +1,234 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: DiskWriter.java
+ * Purpose:  Writes a download to the disk on a thread of its own, so
+ *           the client keeps reading from the network while earlier
+ *           data is written.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Client.java
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * DiskWriter splits saving a download over two threads. The thread that
+ * reads from the server fills a buffer and hands it over as soon as it is
+ * full; a writer thread writes it to the part file, updates the checksum and
+ * records the progress in the sidecar, while the reader already fills the
+ * other buffer. A slow write no longer stops the socket from being read, and
+ * the download runs at the speed of the slower of the two instead of the sum
+ * of both.
+ *
+ * The two 1mb buffers are borrowed from BufferPool.HEAP and passed back and
+ * forth through two queues, so the reader waits only when both buffers are
+ * waiting to be written. Writer threads are kept for the next download.
+ *
+ * The part file is extended to the full size of the download when it is
+ * opened, so it doesn't grow with every write.
+ */
+class DiskWriter implements Closeable {
+
+  private static final int BUFFERS = 2;
+
+  // Handed to the writer thread after the last buffer
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+  private static final ExecutorService WRITERS = Executors.newCachedThreadPool(task -> {
+    Thread writer = new Thread(task, "Disk Writer");
+    writer.setDaemon(true);
+    return writer;
+  });
+
+  private final PartialDownload partial;
+  private final FileChannel channel;
+  private final TransferDigest digest;
+  private final BufferPool.Lease[] leases = new BufferPool.Lease[BUFFERS];
+  private final BlockingQueue<ByteBuffer> empty = new ArrayBlockingQueue<>(BUFFERS);
+  private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFERS + 1);
+  private final Future<?> writer;
+  private ByteBuffer current; // Being filled by the reader
+  private boolean finished = false;
+  private boolean closed = false;
+
+  // Written by the writer thread
+  private volatile long position;  // Bytes of the file on the disk
+  private volatile IOException failure;
+  private long checkpoint;         // Bytes recorded in the sidecar
+
+  /**
+   * Constructor. Opens the part file after the last recorded byte and starts
+   * the writer thread.
+   *
+   * @param partial the download being saved
+   * @param digest  checksum updated with every byte written, or null
+   * @throws IOException if the part file can't be opened
+   */
+  DiskWriter(PartialDownload partial, TransferDigest digest) throws IOException {
+    this.partial = partial;
+    this.channel = partial.openChannel();
+    this.digest = digest;
+    this.position = partial.getReceived();
+    this.checkpoint = position;
+    for (int i = 0; i < BUFFERS; i++) {
+      leases[i] = BufferPool.HEAP.acquire(1000000);
+      empty.add(leases[i].buffer());
+    }
+    writer = WRITERS.submit(this::drain);
+  }
+
+  /**
+   * Reads the next bytes of the download from the server. Waits if both
+   * buffers are still being written.
+   *
+   * @param in    stream the file bytes are read from
+   * @param limit most bytes to read
+   * @return number of bytes read, or -1 at the end of the stream
+   * @throws IOException if reading fails or writing the earlier data failed
+   */
+  int receive(InputStream in, long limit) throws IOException {
+    if (current == null) {
+      try {
+        current = empty.take();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the disk");
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    int bytesRead = in.read(current.array(), current.position(),
+        (int) Math.min(current.remaining(), limit));
+    if (bytesRead > 0) {
+      current.position(current.position() + bytesRead);
+      if (!current.hasRemaining()) {
+        full.add(current);
+        current = null;
+      }
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Writes everything received so far and waits until it is on the disk.
+   *
+   * @throws IOException if writing failed
+   */
+  void finish() throws IOException {
+    if (!finished) {
+      finished = true;
+      if (current != null) {
+        full.add(current);
+        current = null;
+      }
+      full.add(END);
+      try {
+        writer.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the disk");
+      } catch (ExecutionException ex) {
+        throw new IOException(ex.getCause());
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * @return number of bytes of the file on the disk
+   */
+  long getPosition() {
+    return position;
+  }
+
+  /**
+   * Writes everything received so far, records it in the sidecar and closes
+   * the part file. The data stays on the disk when the download failed, so
+   * it can be resumed.
+   *
+   * @throws IOException if the sidecar can't be written
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      finish();
+    } catch (IOException ex) {
+      // Keep what made it to the disk
+    }
+    try {
+      channel.close();
+      partial.record(position);
+    } finally {
+      for (BufferPool.Lease lease : leases) {
+        lease.close();
+      }
+    }
+  }
+
+  /**
+   * Body of the writer thread. Writes the buffers in the order they were
+   * filled. After a failure the rest are passed back unwritten, so the reader
+   * never waits for a buffer that doesn't come.
+   */
+  private void drain() {
+    try {
+      ByteBuffer buffer;
+      while ((buffer = full.take()) != END) {
+        if (failure == null) {
+          try {
+            write(buffer);
+          } catch (IOException ex) {
+            failure = ex;
+          }
+        }
+        buffer.clear();
+        empty.add(buffer);
+      }
+    } catch (InterruptedException ex) {
+      failure = new InterruptedIOException("Disk writer interrupted");
+    }
+  }
+
+  /**
+   * Writes one buffer after the data written before it.
+   */
+  private void write(ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    if (digest != null) {
+      digest.update(buffer.array(), 0, buffer.limit());
+    }
+    long next = position;
+    while (buffer.hasRemaining()) {
+      next += channel.write(buffer, next);
+    }
+    position = next;
+
+    // Periodically record how much of the file is safely on disk
+    if (position - checkpoint >= PartialDownload.CHECKPOINT_BYTES) {
+      partial.record(position);
+      checkpoint = position;
+    }
+  }
+}
@@ -0,0 +1,430 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: EventLog.java
+ * Purpose:  Asynchronous server log. Connection threads hand events to
+ *           a ring buffer and a background thread formats and writes
+ *           them to the terminal or to a rotating log file.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventLog keeps connection threads off the terminal. Printing a line takes
+ * the lock of System.out and waits for the write, so under load every
+ * connection queues behind the console. Here a connection only fills in a
+ * slot of a ring buffer: it claims the next sequence number with a
+ * compare-and-set, stores the fields of the event and publishes the slot by
+ * writing its sequence number. No lock is taken and nothing is formatted.
+ * A single writer thread takes the slots in order, formats them and writes
+ * them, flushing whenever it runs out of events.
+ *
+ * When the writer falls a whole ring behind, new events are dropped and
+ * counted, or, with the block policy, the connection waits for room. Drops
+ * are reported in the log once the writer catches up and by STATS.
+ *
+ * Each line is the time, the thread, the event and its fields as name=value:
+ *
+ *   2026-10-18 14:02:11.130 [Thread-3] command name=DOWNLOAD
+ *   2026-10-18 14:02:11.320 [Thread-3] transfer-end file=a.bin bytes=5000 ms=2 mode=copy
+ *
+ * A log file is renamed to file.1 once it reaches the rotation size, file.1
+ * to file.2 and so on, and the oldest is deleted.
+ */
+class EventLog implements Closeable {
+
+  // Slots in the ring, a power of two
+  static final int CAPACITY = 8192;
+
+  // Rotated files kept next to the current one
+  static final int KEEP = 5;
+
+  // How long the writer sleeps when there is nothing to write
+  private static final long IDLE_NANOS = 2000000;
+
+  private static final int CONNECT = 0;
+  private static final int CLOSE = 1;
+  private static final int COMMAND = 2;
+  private static final int TRANSFER_START = 3;
+  private static final int TRANSFER_END = 4;
+  private static final int MESSAGE = 5;
+
+  private final File file;       // Log file, null for standard output
+  private final long rotateAt;   // Size that starts a new file, 0 to never rotate
+  private final boolean block;   // Wait for room instead of dropping events
+  private final Slot[] slots = new Slot[CAPACITY];
+  private final AtomicLong claimed = new AtomicLong(); // Next sequence number to claim
+  private volatile long consumed = 0;                  // Next sequence number to write
+  private final LongAdder dropped = new LongAdder();
+  private volatile boolean running = false;
+  private volatile boolean closing = false;
+  private Thread writer;
+
+  // Used by the writer thread only
+  private Writer out;
+  private long written = 0;
+  private long droppedReported = 0;
+  private final StringBuilder line = new StringBuilder(256);
+  private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+  private long stampSecond = -1;
+  private String stamp;
+
+  /**
+   * Constructor. Events are ignored until start().
+   *
+   * @param file     log file, or null to write to standard output
+   * @param rotateAt size in bytes at which the file is rotated, 0 to never
+   *                 rotate
+   * @param block    true to make connections wait when the ring is full,
+   *                 false to drop their events
+   */
+  EventLog(File file, long rotateAt, boolean block) {
+    this.file = file;
+    this.rotateAt = rotateAt;
+    this.block = block;
+    for (int i = 0; i < CAPACITY; i++) {
+      slots[i] = new Slot();
+    }
+  }
+
+  /**
+   * Opens the log file and starts the writer thread.
+   *
+   * @throws IOException if the log file can't be opened
+   */
+  void start() throws IOException {
+    out = open();
+    writer = new Thread(this::drain, "Event Log");
+    writer.setDaemon(true);
+    writer.start();
+    running = true;
+  }
+
+  /**
+   * A client connected.
+   *
+   * @param client address of the client
+   */
+  void connected(Object client) {
+    publish(CONNECT, client, null, 0, 0);
+  }
+
+  /**
+   * A connection ended.
+   *
+   * @param client address of the client
+   * @param reason "bye" if the client said BYE, "eof" if it just went away
+   */
+  void disconnected(Object client, String reason) {
+    publish(CLOSE, client, reason, 0, 0);
+  }
+
+  /**
+   * A request was received.
+   *
+   * @param command the command, upper case
+   */
+  void command(String command) {
+    publish(COMMAND, command, null, 0, 0);
+  }
+
+  /**
+   * A download started.
+   *
+   * @param name   file or folder sent
+   * @param offset first byte sent
+   * @param bytes  number of bytes to send, -1 if not known up front
+   */
+  void transferStarted(String name, long offset, long bytes) {
+    publish(TRANSFER_START, name, null, offset, bytes);
+  }
+
+  /**
+   * A download finished.
+   *
+   * @param name  file or folder sent
+   * @param bytes number of bytes sent
+   * @param nanos time taken
+   * @param mode  how the bytes were sent, such as "zero-copy"
+   */
+  void transferEnded(String name, long bytes, long nanos, String mode) {
+    publish(TRANSFER_END, name, mode, bytes, nanos);
+  }
+
+  /**
+   * Anything else worth logging.
+   *
+   * @param text the message
+   */
+  void message(String text) {
+    publish(MESSAGE, text, null, 0, 0);
+  }
+
+  /**
+   * @return number of events dropped because the ring was full
+   */
+  long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Stops taking events, waits for the writer to write the ones already
+   * taken and closes the log file.
+   */
+  @Override
+  public void close() {
+    if (!running) {
+      return;
+    }
+    closing = true;
+    try {
+      writer.join(5000);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Claims a slot, fills it in and publishes it to the writer.
+   */
+  private void publish(int type, Object subject, String detail, long first, long second) {
+    if (!running || closing) {
+      return;
+    }
+    long sequence = claim();
+    if (sequence < 0) {
+      return;
+    }
+
+    Slot slot = slots[(int) (sequence & (CAPACITY - 1))];
+    slot.time = System.currentTimeMillis();
+    slot.thread = Thread.currentThread();
+    slot.type = type;
+    slot.subject = subject;
+    slot.detail = detail;
+    slot.first = first;
+    slot.second = second;
+    slot.published = sequence; // Volatile write, the fields above are visible first
+  }
+
+  /**
+   * @return the claimed sequence number, or -1 if the event is dropped
+   */
+  private long claim() {
+    while (true) {
+      long sequence = claimed.get();
+      if (sequence - consumed >= CAPACITY) {
+        if (!block || closing) {
+          dropped.increment();
+          return -1;
+        }
+        LockSupport.parkNanos(IDLE_NANOS / 20); // The writer is a ring behind
+        continue;
+      }
+      if (claimed.compareAndSet(sequence, sequence + 1)) {
+        return sequence;
+      }
+    }
+  }
+
+  /**
+   * Body of the writer thread. Writes the slots in order of their sequence
+   * numbers until the log is closed and every claimed slot was written.
+   */
+  private void drain() {
+    long next = 0;
+    while (true) {
+      Slot slot = slots[(int) (next & (CAPACITY - 1))];
+      if (slot.published == next) {
+        write(slot);
+        slot.thread = null; // Don't keep the last ring of events alive
+        slot.subject = null;
+        slot.detail = null;
+        next++;
+        consumed = next;
+        continue;
+      }
+
+      // Nothing more published, write out what was formatted so far
+      try {
+        reportDrops();
+        out.flush();
+      } catch (IOException ex) {
+        System.err.println("Could not write the log: " + ex.getMessage());
+      }
+      if (closing && claimed.get() == next) {
+        break;
+      }
+      LockSupport.parkNanos(IDLE_NANOS);
+    }
+
+    try {
+      if (file != null) {
+        out.close();
+      }
+    } catch (IOException ex) {
+      System.err.println("Could not close the log: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Formats one event and writes it, rotating the file when it is full.
+   */
+  private void write(Slot slot) {
+    line.setLength(0);
+    long second = slot.time / 1000;
+    if (second != stampSecond) {
+      stampSecond = second;
+      stamp = dateFormat.format(new Date(slot.time));
+    }
+    line.append(stamp).append('.');
+    long millis = slot.time % 1000;
+    if (millis < 100) {
+      line.append(millis < 10 ? "00" : "0");
+    }
+    line.append(millis).append(" [").append(slot.thread.getName()).append("] ");
+
+    switch (slot.type) {
+      case CONNECT:
+        line.append("connect client=");
+        appendValue(slot.subject);
+        break;
+      case CLOSE:
+        line.append("close client=");
+        appendValue(slot.subject);
+        line.append(" reason=").append(slot.detail);
+        break;
+      case COMMAND:
+        line.append("command name=").append(slot.subject);
+        break;
+      case TRANSFER_START:
+        line.append("transfer-start file=");
+        appendValue(slot.subject);
+        line.append(" offset=").append(slot.first);
+        if (slot.second >= 0) {
+          line.append(" bytes=").append(slot.second);
+        }
+        break;
+      case TRANSFER_END:
+        line.append("transfer-end file=");
+        appendValue(slot.subject);
+        line.append(" bytes=").append(slot.first).append(" ms=").append(slot.second / 1000000);
+        line.append(" mode=");
+        appendValue(slot.detail);
+        break;
+      default:
+        line.append("message ").append(slot.subject);
+    }
+    line.append('\n');
+
+    try {
+      out.append(line);
+      written += line.length();
+      if (file != null && rotateAt > 0 && written >= rotateAt) {
+        rotate();
+      }
+    } catch (IOException ex) {
+      System.err.println("Could not write the log: " + ex.getMessage());
+    }
+  }
+
+  /**
+   * Adds a field value, quoted if it contains spaces, quotes or line breaks.
+   */
+  private void appendValue(Object value) {
+    String text = String.valueOf(value);
+    boolean plain = !text.isEmpty();
+    for (int i = 0; i < text.length() && plain; i++) {
+      char c = text.charAt(i);
+      plain = c > ' ' && c != '"' && c != '=';
+    }
+    if (plain) {
+      line.append(text);
+      return;
+    }
+
+    line.append('"');
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        line.append('\\').append(c);
+      } else if (c == '\n') {
+        line.append("\\n");
+      } else if (c == '\r') {
+        line.append("\\r");
+      } else {
+        line.append(c);
+      }
+    }
+    line.append('"');
+  }
+
+  /**
+   * Logs the number of events dropped since the last report.
+   */
+  private void reportDrops() throws IOException {
+    long total = dropped.sum();
+    if (total != droppedReported) {
+      out.write("Event log full, " + (total - droppedReported) + " events dropped\n");
+      droppedReported = total;
+    }
+  }
+
+  /**
+   * Moves the full log file aside and starts a new one.
+   */
+  private void rotate() throws IOException {
+    out.close();
+    try {
+      new File(file.getPath() + "." + KEEP).delete();
+      for (int i = KEEP - 1; i >= 1; i--) {
+        File older = new File(file.getPath() + "." + i);
+        if (older.exists() && !older.renameTo(new File(file.getPath() + "." + (i + 1)))) {
+          throw new IOException("Could not rotate " + older);
+        }
+      }
+      if (!file.renameTo(new File(file.getPath() + ".1"))) {
+        throw new IOException("Could not rotate " + file);
+      }
+    } finally {
+      out = open(); // Keep logging to the same file if it could not be moved
+    }
+  }
+
+  /**
+   * @return writer to the end of the log file, or to standard output
+   */
+  private Writer open() throws IOException {
+    if (file == null) {
+      return new BufferedWriter(new OutputStreamWriter(System.out));
+    }
+    written = file.length();
+    return new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(file, true), StandardCharsets.UTF_8), 65536);
+  }
+
+  /**
+   * One event. A slot is reused every CAPACITY events.
+   */
+  private static class Slot {
+    volatile long published = -1; // Sequence number of the event it holds
+    long time;
+    Thread thread; // Publisher, named by the writer
+    int type;
+    Object subject; // Formatted by the writer, never changed after publishing
+    String detail;
+    long first;
+    long second;
+  }
+}
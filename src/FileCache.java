@@ -0,0 +1,288 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: FileCache.java
+ * Purpose:  Server wide cache of popular files. Small files are kept
+ *           in memory outside the heap and large files are mapped, so
+ *           repeated downloads are served without reading the disk.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * FileCache holds the contents of downloaded files keyed by canonical path.
+ * Files up to the small file limit are copied into direct buffers on their
+ * first download and kept in least recently used order until they no longer
+ * fit in the capacity. Larger files are mapped with a read-only
+ * MappedByteBuffer once they have been asked for twice, and the mapping is
+ * shared by every connection that downloads them. A mapped file takes no heap
+ * and its pages are the page cache's, so only the number of mappings is
+ * bounded.
+ *
+ * An entry is dropped as soon as the file's size or modification time differ
+ * from when it was cached. Those are checked on every lookup; the contents
+ * are not read again.
+ */
+class FileCache {
+
+  // Most files mapped at once
+  private static final int MAPPED_FILES = 64;
+
+  // Downloads of a large file before it is mapped
+  private static final int POPULAR = 2;
+
+  // Large files whose downloads are counted, least recently asked dropped
+  private static final int TRACKED = 1024;
+
+  private final long capacity;   // Bytes of small files kept, 0 disables the cache
+  private final long smallLimit; // Largest file copied into memory
+
+  // All three in least recently used order. Guarded by this.
+  private final LinkedHashMap<String, Entry> small = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<String, Entry> mapped = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<String, Integer> requests =
+      new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+          return size() > TRACKED;
+        }
+      };
+  private long residentBytes = 0;
+  private long mappedBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param capacity   bytes of small files kept in memory, 0 disables the cache
+   * @param smallLimit files up to this size are copied, larger ones are mapped
+   */
+  FileCache(long capacity, long smallLimit) {
+    this.capacity = capacity;
+    this.smallLimit = Math.min(Math.min(smallLimit, capacity), Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the contents of a file from memory, caching it first if it is
+   * worth it.
+   *
+   * @param file the file about to be sent
+   * @return a read-only buffer holding the whole file with its position at 0,
+   * or null if the file has to be read from the disk
+   */
+  ByteBuffer get(File file) {
+    if (capacity == 0) {
+      return null;
+    }
+
+    String key;
+    try {
+      key = file.getCanonicalPath();
+    } catch (IOException ex) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    long size = file.length();
+    long modified = file.lastModified();
+    boolean large = size > smallLimit;
+    synchronized (this) {
+      Entry entry = small.containsKey(key) ? small.get(key) : mapped.get(key);
+      if (entry != null && entry.size == size && entry.modified == modified) {
+        hits.incrementAndGet();
+        return entry.data.duplicate();
+      }
+      if (entry != null) {
+        remove(key); // Changed since it was cached
+      }
+
+      // Large files are only mapped once they are popular. Mappings are
+      // limited to 2gb, bigger files are always read from the disk.
+      if (large && (size > Integer.MAX_VALUE
+          || requests.merge(key, 1, Integer::sum) < POPULAR)) {
+        misses.incrementAndGet();
+        return null;
+      }
+      requests.remove(key);
+    }
+    misses.incrementAndGet();
+
+    // Loaded outside the lock, other files can be served meanwhile
+    ByteBuffer data;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      data = large ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : load(channel, size);
+    } catch (IOException ex) {
+      return null;
+    }
+
+    // A file changed while it was read is not kept, nor served from memory
+    if (file.length() != size || file.lastModified() != modified) {
+      return null;
+    }
+
+    data = data.asReadOnlyBuffer();
+    synchronized (this) {
+      remove(key); // Loaded by another connection at the same time
+      if (large) {
+        mapped.put(key, new Entry(data, size, modified));
+        mappedBytes += size;
+        evict(mapped, MAPPED_FILES, Long.MAX_VALUE);
+      } else {
+        small.put(key, new Entry(data, size, modified));
+        residentBytes += size;
+        evict(small, Integer.MAX_VALUE, capacity);
+      }
+    }
+    return data.duplicate();
+  }
+
+  /**
+   * Copies part of a cached file into a buffer, like FileChannel.read with a
+   * position.
+   *
+   * @param data     buffer returned by get()
+   * @param into     buffer the bytes are copied into
+   * @param position position in the file of the first byte copied
+   * @return number of bytes copied, or -1 if position is at the end of the file
+   */
+  static int read(ByteBuffer data, ByteBuffer into, long position) {
+    if (position >= data.limit()) {
+      return -1;
+    }
+    ByteBuffer range = data.duplicate();
+    range.position((int) position);
+    range.limit((int) Math.min(data.limit(), position + into.remaining()));
+    int count = range.remaining();
+    into.put(range);
+    return count;
+  }
+
+  /**
+   * @return number of downloads served from memory
+   */
+  long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return number of downloads that had to read or load the file
+   */
+  long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return fraction of the downloads served from memory, 0 before the first
+   */
+  double getHitRatio() {
+    long found = hits.get();
+    long total = found + misses.get();
+    return total == 0 ? 0 : (double) found / total;
+  }
+
+  /**
+   * @return bytes of small files held in memory
+   */
+  synchronized long getResidentBytes() {
+    return residentBytes;
+  }
+
+  /**
+   * @return bytes of large files currently mapped
+   */
+  synchronized long getMappedBytes() {
+    return mappedBytes;
+  }
+
+  /**
+   * Reads a whole small file into a direct buffer.
+   *
+   * @param channel channel of the open file
+   * @param size    size of the file
+   * @return the buffer, flipped
+   * @throws IOException if the file can't be read or shrank
+   */
+  private static ByteBuffer load(FileChannel channel, long size) throws IOException {
+    ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+    while (data.hasRemaining()) {
+      if (channel.read(data) == -1) {
+        throw new IOException("File shrank while it was cached");
+      }
+    }
+    data.flip();
+    return data;
+  }
+
+  /**
+   * Drops a cached file. Caller holds the lock.
+   *
+   * @param key canonical path of the file
+   */
+  private void remove(String key) {
+    Entry entry = small.remove(key);
+    if (entry != null) {
+      residentBytes -= entry.size;
+    }
+    entry = mapped.remove(key);
+    if (entry != null) {
+      mappedBytes -= entry.size;
+    }
+  }
+
+  /**
+   * Drops the least recently used files until a table fits its limits. The
+   * memory is given back when the garbage collector frees the buffers, which
+   * is also the only way to unmap a file. Caller holds the lock.
+   *
+   * @param table    small or mapped
+   * @param maxFiles most files kept
+   * @param maxBytes most bytes kept
+   */
+  private void evict(LinkedHashMap<String, Entry> table, int maxFiles, long maxBytes) {
+    Iterator<Entry> eldest = table.values().iterator();
+    while (eldest.hasNext()
+        && (table.size() > maxFiles || bytes(table) > maxBytes)) {
+      Entry entry = eldest.next();
+      eldest.remove();
+      if (table == small) {
+        residentBytes -= entry.size;
+      } else {
+        mappedBytes -= entry.size;
+      }
+    }
+  }
+
+  private long bytes(LinkedHashMap<String, Entry> table) {
+    return table == small ? residentBytes : mappedBytes;
+  }
+
+  /**
+   * A cached file.
+   */
+  private static class Entry {
+    final ByteBuffer data; // Read-only, position 0
+    final long size;       // File size when it was cached
+    final long modified;   // File modification time when it was cached
+
+    Entry(ByteBuffer data, long size, long modified) {
+      this.data = data;
+      this.size = size;
+      this.modified = modified;
+    }
+  }
+}
@@ -0,0 +1,504 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: FramedSession.java
+ * Purpose:  Client side of protocol version 2. Sends framed
+ *           requests to the server and decodes the framed
+ *           responses, including file data.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Client.java
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * FramedSession wraps a connection that has switched to protocol v2. Control
+ * responses and file data are read from the same buffered stream; the frame
+ * lengths make sure nothing is read past the end of a message.
+ *
+ * Requests can either be made one at a time with call() and download(), or
+ * pipelined: send() and sendDownload() only queue a request, and receive()
+ * hands the interleaved responses of every outstanding request to a Listener
+ * as they arrive.
+ */
+class FramedSession {
+
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  private int nextRequestId = 1;
+
+  // Pipelined requests that have not been completely answered yet
+  private final Set<Integer> outstanding = new HashSet<>();
+  private byte[] chunkBuffer; // Receives DATA frames of pipelined downloads
+
+  // Request id and remaining DATA bytes of the download being received
+  private int transferId;
+  private int chunkRemaining;
+  private String trailer;
+  private String codec; // Compression of the download being received, or null
+
+  /**
+   * Constructor. The greeting must already have been answered with "V2".
+   *
+   * @param in  buffered stream from the server, positioned after the greeting
+   * @param out stream to the server
+   */
+  FramedSession(InputStream in, OutputStream out) {
+    this.in = new DataInputStream(in);
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+  }
+
+  /**
+   * Sends a request and waits for its response.
+   *
+   * @param opcode   request opcode
+   * @param argument request argument, or null for none
+   * @return the response text. Error codes such as "DDNE" or "FNF" are
+   * returned the same way the v1 protocol sends them.
+   * @throws IOException if the connection fails or the response is malformed
+   */
+  String call(byte opcode, String argument) throws IOException {
+    int id = nextRequestId++;
+    Protocol.writeText(out, opcode, id, argument == null ? "" : argument);
+    out.flush();
+
+    Protocol.Frame response = Protocol.readFrame(in);
+    if (response.requestId != id
+        || (response.opcode != Protocol.OK && response.opcode != Protocol.ERROR)) {
+      throw new IOException("Unexpected response from server");
+    }
+    return response.text();
+  }
+
+  /**
+   * Sends a request whose response is streamed: any number of ENTRIES frames
+   * followed by an OK or ERROR frame.
+   *
+   * @param opcode   request opcode
+   * @param argument request argument, or null for none
+   * @param rows     receives every line of the ENTRIES frames as it arrives
+   * @return the text of the final response
+   * @throws IOException if the connection fails or the response is malformed
+   */
+  String stream(byte opcode, String argument, Consumer<String> rows) throws IOException {
+    int id = nextRequestId++;
+    Protocol.writeText(out, opcode, id, argument == null ? "" : argument);
+    out.flush();
+
+    while (true) {
+      Protocol.Frame response = Protocol.readFrame(in);
+      if (response.requestId != id) {
+        throw new IOException("Unexpected response from server");
+      }
+      if (response.opcode == Protocol.OK || response.opcode == Protocol.ERROR) {
+        return response.text();
+      }
+      if (response.opcode != Protocol.ENTRIES) {
+        throw new IOException("Unexpected response from server");
+      }
+      for (String row : response.text().split("\n")) {
+        if (!row.isEmpty()) {
+          rows.accept(row);
+        }
+      }
+    }
+  }
+
+  /**
+   * Requests a file, or part of one. On success the data must be read from
+   * data() and the trailer with trailer() before the next request.
+   *
+   * @param fileName     name of the file in the current server directory
+   * @param offset       position of the first byte to send
+   * @param length       maximum number of bytes to send
+   * @param expectedSize size the file must have, or -1 for any size
+   * @param algorithm    checksum algorithm for the trailer, or null for none
+   * @param codecs       compression codecs offered, comma separated, or null
+   * @return {total file size, number of file bytes that follow}. If the
+   * server compresses the data, codec() names the codec.
+   * @throws RemoteError if the server answered with an error code
+   * @throws IOException if the connection fails or the response is malformed
+   */
+  long[] download(String fileName, long offset, long length, long expectedSize,
+                  String algorithm, String codecs) throws IOException {
+    int id = writeDownload(fileName, offset, length, expectedSize, algorithm, codecs);
+    out.flush();
+
+    Protocol.Frame response = Protocol.readFrame(in);
+    if (response.requestId != id) {
+      throw new IOException("Unexpected response from server");
+    }
+    if (response.opcode == Protocol.ERROR) {
+      throw new RemoteError(response.text());
+    }
+    if (response.opcode != Protocol.FILE) {
+      throw new IOException("Unexpected response from server");
+    }
+
+    transferId = id;
+    chunkRemaining = 0;
+    trailer = null;
+
+    DataInputStream header = response.data();
+    long[] sizes = {header.readLong(), header.readLong()};
+    codec = header.available() > 0 ? header.readUTF() : "";
+    codec = codec.isEmpty() ? null : codec;
+    return sizes;
+  }
+
+  /**
+   * @return the codec the current download is compressed with, or null if
+   * data() returns the file bytes as they are
+   */
+  String codec() {
+    return codec;
+  }
+
+  /**
+   * Requests a whole folder as an archive. On success the archive must be
+   * read from data() and the trailer with trailer() before the next request.
+   *
+   * @param folderName name of the folder in the current server directory
+   * @param algorithm  checksum algorithm for the trailer, or null for none
+   * @throws RemoteError if the server answered with an error code
+   * @throws IOException if the connection fails or the response is malformed
+   */
+  void downloadFolder(String folderName, String algorithm) throws IOException {
+    int id = nextRequestId++;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeUTF(algorithm == null ? "" : algorithm);
+    payload.writeUTF(folderName);
+
+    Protocol.writeFrame(out, Protocol.RDOWNLOAD, id, bytes.toByteArray(), 0, bytes.size());
+    out.flush();
+
+    Protocol.Frame response = Protocol.readFrame(in);
+    if (response.requestId != id) {
+      throw new IOException("Unexpected response from server");
+    }
+    if (response.opcode == Protocol.ERROR) {
+      throw new RemoteError(response.text());
+    }
+    if (response.opcode != Protocol.FILE) {
+      throw new IOException("Unexpected response from server");
+    }
+
+    transferId = id;
+    chunkRemaining = 0;
+    trailer = null;
+    codec = null;
+  }
+
+  /**
+   * Asks for the differences between a file and the local copy described by
+   * a signature. On success the instructions must be read from data() and
+   * the trailer with trailer() before the next request.
+   *
+   * @param fileName  name of the file in the current server directory
+   * @param signature signature of the local copy, written by Delta
+   * @param algorithm checksum algorithm for the trailer, or null for none
+   * @return size of the file on the server
+   * @throws RemoteError if the server answered with an error code
+   * @throws IOException if the connection fails or the response is malformed
+   */
+  long sync(String fileName, byte[] signature, String algorithm) throws IOException {
+    int id = nextRequestId++;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(signature.length + 256);
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeUTF(algorithm == null ? "" : algorithm);
+    payload.writeUTF(fileName);
+    payload.write(signature);
+
+    Protocol.writeFrame(out, Protocol.SYNC, id, bytes.toByteArray(), 0, bytes.size());
+    out.flush();
+
+    Protocol.Frame response = Protocol.readFrame(in);
+    if (response.requestId != id) {
+      throw new IOException("Unexpected response from server");
+    }
+    if (response.opcode == Protocol.ERROR) {
+      throw new RemoteError(response.text());
+    }
+    if (response.opcode != Protocol.FILE) {
+      throw new IOException("Unexpected response from server");
+    }
+
+    transferId = id;
+    chunkRemaining = 0;
+    trailer = null;
+    codec = null;
+    return response.data().readLong();
+  }
+
+  /**
+   * Queues a simple request without waiting for its response. The request is
+   * sent by the next flush().
+   *
+   * @param opcode   request opcode
+   * @param argument request argument, or null for none
+   * @return the request id its response will carry
+   * @throws IOException if the request can't be written
+   */
+  int send(byte opcode, String argument) throws IOException {
+    int id = nextRequestId++;
+    Protocol.writeText(out, opcode, id, argument == null ? "" : argument);
+    outstanding.add(id);
+    return id;
+  }
+
+  /**
+   * Queues a download request without waiting for its response. The request
+   * is sent by the next flush(). Parameters are the same as download().
+   *
+   * @return the request id its response will carry
+   * @throws IOException if the request can't be written
+   */
+  int sendDownload(String fileName, long offset, long length, long expectedSize,
+                   String algorithm) throws IOException {
+    int id = writeDownload(fileName, offset, length, expectedSize, algorithm, null);
+    outstanding.add(id);
+    return id;
+  }
+
+  /**
+   * Sends every queued request.
+   *
+   * @throws IOException if the requests can't be sent
+   */
+  void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Reads responses until every pipelined request has been answered. Each
+   * frame is passed to the listener as soon as it arrives, so the data of
+   * several downloads arrives interleaved.
+   *
+   * @param listener receives the responses
+   * @throws IOException if the connection fails or the listener fails
+   */
+  void receive(Listener listener) throws IOException {
+    out.flush();
+
+    while (!outstanding.isEmpty()) {
+      byte opcode = in.readByte();
+      int id = in.readInt();
+      int length = in.readInt();
+
+      if (!outstanding.contains(id) || length < 0 || length > Protocol.maxPayload(opcode)) {
+        throw new IOException("Unexpected frame from server");
+      }
+
+      if (opcode == Protocol.DATA) {
+        if (chunkBuffer == null) {
+          chunkBuffer = new byte[Protocol.MAX_CHUNK];
+        }
+        in.readFully(chunkBuffer, 0, length);
+        listener.onData(id, chunkBuffer, 0, length);
+        continue;
+      }
+
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+
+      switch (opcode) {
+        case Protocol.OK:
+        case Protocol.ERROR:
+          outstanding.remove(id);
+          listener.onResponse(id, opcode == Protocol.OK, new String(payload, StandardCharsets.UTF_8));
+          break;
+        case Protocol.FILE:
+          DataInputStream header = new DataInputStream(new ByteArrayInputStream(payload));
+          listener.onFile(id, header.readLong(), header.readLong());
+          break;
+        case Protocol.END:
+          outstanding.remove(id);
+          listener.onEnd(id, new String(payload, StandardCharsets.UTF_8));
+          break;
+        default:
+          throw new IOException("Unexpected frame from server");
+      }
+    }
+  }
+
+  /**
+   * @return stream of the file bytes of the current download. It ends when
+   * the server's END frame arrives.
+   */
+  InputStream data() {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+          return 0;
+        }
+        while (chunkRemaining == 0) {
+          if (trailer != null || !nextChunk()) {
+            return -1;
+          }
+        }
+        int bytesRead = in.read(buffer, offset, Math.min(length, chunkRemaining));
+        if (bytesRead == -1) {
+          throw new EOFException("Server closed the connection");
+        }
+        chunkRemaining -= bytesRead;
+        return bytesRead;
+      }
+    };
+  }
+
+  /**
+   * Reads the END frame of the current download once all its data was read.
+   *
+   * @return the checksum trailer, empty if none was requested
+   * @throws IOException if the connection fails or more data is pending
+   */
+  String trailer() throws IOException {
+    while (trailer == null) {
+      if (chunkRemaining > 0 || nextChunk()) {
+        throw new IOException("Server sent more data than announced");
+      }
+    }
+    return trailer;
+  }
+
+  /**
+   * Tells the server the client is leaving.
+   *
+   * @throws IOException if the request can't be sent
+   */
+  void bye() throws IOException {
+    Protocol.writeHeader(out, Protocol.BYE, nextRequestId++, 0);
+    out.flush();
+  }
+
+  /**
+   * Writes a DOWNLOAD request frame.
+   *
+   * @return the request id
+   * @throws IOException if the request can't be written
+   */
+  private int writeDownload(String fileName, long offset, long length, long expectedSize,
+                            String algorithm, String codecs) throws IOException {
+    int id = nextRequestId++;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeLong(offset);
+    payload.writeLong(length);
+    payload.writeLong(expectedSize);
+    payload.writeUTF(algorithm == null ? "" : algorithm);
+    payload.writeUTF(fileName);
+    if (codecs != null) {
+      payload.writeUTF(codecs);
+    }
+
+    Protocol.writeFrame(out, Protocol.DOWNLOAD, id, bytes.toByteArray(), 0, bytes.size());
+    return id;
+  }
+
+  /**
+   * Reads the next frame header of the current download.
+   *
+   * @return true if a DATA frame started, false if the END frame was read
+   * @throws IOException if the frame is malformed or belongs to another request
+   */
+  private boolean nextChunk() throws IOException {
+    byte opcode = in.readByte();
+    int id = in.readInt();
+    int length = in.readInt();
+
+    if (id != transferId || length < 0 || length > Protocol.maxPayload(opcode)) {
+      throw new IOException("Unexpected frame from server");
+    }
+
+    if (opcode == Protocol.DATA) {
+      chunkRemaining = length;
+      return true;
+    }
+    if (opcode == Protocol.END) {
+      byte[] payload = new byte[length];
+      in.readFully(payload);
+      trailer = new String(payload, StandardCharsets.UTF_8);
+      return false;
+    }
+    throw new IOException("Unexpected frame from server");
+  }
+
+  /**
+   * Receives the responses to pipelined requests.
+   */
+  interface Listener {
+
+    /**
+     * A simple request, or a download that failed, was answered.
+     *
+     * @param id   request id
+     * @param ok   false if the server sent an error code
+     * @param text response text or error code
+     * @throws IOException if handling the response fails
+     */
+    void onResponse(int id, boolean ok, String text) throws IOException;
+
+    /**
+     * A download started.
+     *
+     * @param id    request id
+     * @param total size of the whole file
+     * @param count number of bytes that follow
+     * @throws IOException if handling the response fails
+     */
+    void onFile(int id, long total, long count) throws IOException;
+
+    /**
+     * A chunk of a download arrived. The buffer is reused after this returns.
+     *
+     * @param id     request id
+     * @param buffer array holding the data
+     * @param offset position of the first byte
+     * @param length number of bytes
+     * @throws IOException if handling the data fails
+     */
+    void onData(int id, byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * A download finished.
+     *
+     * @param id      request id
+     * @param trailer checksum trailer, empty if none was requested
+     * @throws IOException if handling the response fails
+     */
+    void onEnd(int id, String trailer) throws IOException;
+  }
+
+  /**
+   * Error code sent by the server in place of a response, such as "FNF".
+   */
+  static class RemoteError extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RemoteError(String code) {
+      super(code);
+    }
+
+    String getCode() {
+      return getMessage();
+    }
+  }
+}
@@ -0,0 +1,232 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: HashIndex.java
+ * Purpose:  Persistent index of file content hashes. The server answers
+ *           HASH from it and the client uses it to find files it already
+ *           holds. Shared by the client and the server.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java Client.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * HashIndex maps files, by canonical path, to the SHA-256 of their contents
+ * together with the size and modification time the hash was computed for.
+ * Hashes are computed the first time they are asked for and reused until the
+ * file's size or modification time change, so a file is read once no matter
+ * how often its hash is requested. Connections asking for the same file at
+ * the same time share one computation.
+ *
+ * The index is kept in memory and written to a text file by save(), one
+ * entry per line: hash, size, modification time and path separated by tabs.
+ * Entries of files that changed while the program was not running are
+ * simply computed again.
+ */
+class HashIndex {
+
+  static final String ALGORITHM = "SHA-256";
+
+  private final File store; // File the index is saved to, null to keep it in memory
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<String, FutureTask<Entry>> pending = new ConcurrentHashMap<>();
+  private volatile boolean dirty = false;
+
+  /**
+   * Constructor. Loads the index saved by an earlier run, if there is one.
+   *
+   * @param store file the index is saved to, or null to keep it in memory
+   */
+  HashIndex(File store) {
+    this.store = store;
+    if (store == null || !store.isFile()) {
+      return;
+    }
+
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new FileInputStream(store), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\t", 4);
+        if (fields.length == 4) {
+          entries.put(fields[3], new Entry(fields[0], Long.parseLong(fields[1]),
+              Long.parseLong(fields[2])));
+        }
+      }
+    } catch (IOException | NumberFormatException ex) {
+      // A damaged index is rebuilt as hashes are asked for
+      System.err.println("Could not read hash index " + store + ", starting empty");
+      entries.clear();
+    }
+  }
+
+  /**
+   * Returns the hash of a file, computing it if it is not indexed or the file
+   * changed since.
+   *
+   * @param file the file
+   * @return the SHA-256 of its contents in hex
+   * @throws IOException if the file can't be read
+   */
+  String hash(File file) throws IOException {
+    String key = file.getCanonicalPath();
+    Entry entry = entries.get(key);
+    if (entry != null && entry.matches(file)) {
+      return entry.hash;
+    }
+
+    // Only one connection reads the file, the others wait for its result
+    FutureTask<Entry> task = new FutureTask<>(() -> compute(file));
+    FutureTask<Entry> running = pending.putIfAbsent(key, task);
+    if (running == null) {
+      running = task;
+      task.run();
+      pending.remove(key, task);
+    }
+
+    try {
+      entry = running.get();
+    } catch (ExecutionException ex) {
+      if (ex.getCause() instanceof IOException) {
+        throw (IOException) ex.getCause();
+      }
+      throw new IOException(ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while hashing " + file);
+    }
+
+    entries.put(key, entry);
+    dirty = true;
+    return entry.hash;
+  }
+
+  /**
+   * Looks for an indexed file with the given contents.
+   *
+   * @param hash SHA-256 of the contents in hex
+   * @param size size of the contents
+   * @return a file that still has those contents, or null if none is indexed
+   */
+  File find(String hash, long size) {
+    for (Map.Entry<String, Entry> indexed : entries.entrySet()) {
+      Entry entry = indexed.getValue();
+      File file = new File(indexed.getKey());
+      if (entry.size == size && entry.hash.equals(hash) && entry.matches(file)) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return number of files indexed
+   */
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * Writes the index to its file if anything was added since the last save.
+   * The new index replaces the old one only once it is complete.
+   *
+   * @throws IOException if the index can't be written
+   */
+  synchronized void save() throws IOException {
+    if (store == null || !dirty) {
+      return;
+    }
+    dirty = false;
+
+    File temporary = new File(store.getPath() + ".tmp");
+    try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+        new FileOutputStream(temporary), StandardCharsets.UTF_8))) {
+      for (Map.Entry<String, Entry> indexed : entries.entrySet()) {
+        Entry entry = indexed.getValue();
+        writer.write(entry.hash + "\t" + entry.size + "\t" + entry.modified + "\t"
+            + indexed.getKey() + "\n");
+      }
+    } catch (IOException ex) {
+      dirty = true;
+      throw ex;
+    }
+    Files.move(temporary.toPath(), store.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Reads a whole file and hashes it.
+   *
+   * @param file the file
+   * @return the entry for the file as it was read
+   * @throws IOException if the file can't be read or changed while it was read
+   */
+  private static Entry compute(File file) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException("SHA-256 is required by every Java platform", ex);
+    }
+
+    long size = file.length();
+    long modified = file.lastModified();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+         BufferPool.Lease lease = BufferPool.DIRECT.acquire(1000000)) {
+      ByteBuffer buffer = lease.buffer();
+      while (channel.read(buffer) != -1) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+
+    // A file that changed while it was read has no single hash
+    if (file.length() != size || file.lastModified() != modified) {
+      throw new IOException(file.getName() + " changed while it was hashed");
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return new Entry(hex.toString(), size, modified);
+  }
+
+  /**
+   * The hash of a file as it was when it was computed.
+   */
+  private static class Entry {
+    final String hash;
+    final long size;
+    final long modified;
+
+    Entry(String hash, long size, long modified) {
+      this.hash = hash;
+      this.size = size;
+      this.modified = modified;
+    }
+
+    /**
+     * @return true if the file still has the size and modification time
+     */
+    boolean matches(File file) {
+      return file.length() == size && file.lastModified() == modified;
+    }
+  }
+}
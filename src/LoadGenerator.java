@@ -0,0 +1,507 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: LoadGenerator.java
+ * Purpose:  Headless load generator. Runs many simulated clients
+ *           against a server at once and reports the request rate,
+ *           latency percentiles and download throughput.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac LoadGenerator.java
+ * Execution Command: java LoadGenerator [options] <host> [port]
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadGenerator starts a number of sessions, each on its own connection and
+ * thread, and lets them send a random mix of DIR, CD and DOWNLOAD requests
+ * with a think time between requests, like people browsing the server. The
+ * sessions speak protocol v2 through FramedSession, the same code the
+ * interactive client uses, and wait out BUSY replies like it does.
+ *
+ * Downloaded data is read and thrown away, nothing is written to the disk.
+ * After the run every command's count, error count, rate and latency
+ * percentiles are printed, followed by the total download throughput.
+ */
+class LoadGenerator {
+
+  private static final String USAGE =
+      "Usage: java LoadGenerator [--sessions=N] [--duration=seconds] " +
+          "[--mix=DIR:weight,CD:weight,DOWNLOAD:weight] [--think=ms] [--path=folder] " +
+          "[--max-size=bytes] <host> [port]";
+
+  // Commands a session can send
+  static final String[] COMMANDS = {"DIR", "CD", "DOWNLOAD"};
+
+  public static void main(String args[]) {
+    int sessions = 10;
+    int duration = 30;
+    int think = 100;
+    String path = null;
+    long maxSize = 100000000;
+    int[] weights = {5, 2, 3}; // DIR, CD, DOWNLOAD
+    List<String> positional = new ArrayList<>();
+
+    try {
+      for (String arg : args) {
+        String value = arg.substring(arg.indexOf("=") + 1);
+        if (arg.startsWith("--sessions=")) {
+          sessions = Integer.parseInt(value);
+        } else if (arg.startsWith("--duration=")) {
+          duration = Integer.parseInt(value);
+        } else if (arg.startsWith("--think=")) {
+          think = Integer.parseInt(value);
+        } else if (arg.startsWith("--path=")) {
+          path = value;
+        } else if (arg.startsWith("--max-size=")) {
+          maxSize = Long.parseLong(value);
+        } else if (arg.startsWith("--mix=")) {
+          weights = parseMix(value);
+        } else if (arg.startsWith("--")) {
+          throw new NumberFormatException();
+        } else {
+          positional.add(arg);
+        }
+      }
+      if (sessions < 1 || duration < 1 || think < 0 || positional.isEmpty()
+          || positional.size() > 2) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException ex) {
+      System.err.println(USAGE);
+      return;
+    }
+
+    String host = positional.get(0);
+    int port = positional.size() == 2 ? Integer.parseInt(positional.get(1)) : 50001;
+
+    System.out.println("Running " + sessions + " sessions against " + host + ":" + port
+        + " for " + duration + " seconds");
+
+    List<SimulatedSession> simulated = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    long deadline = System.nanoTime() + duration * 1000000000L;
+    long started = System.nanoTime();
+
+    for (int i = 0; i < sessions; i++) {
+      SimulatedSession session = new SimulatedSession(host, port, path, weights, think,
+          maxSize, deadline, i);
+      Thread thread = new Thread(session, "Session-" + i);
+      simulated.add(session);
+      threads.add(thread);
+      thread.start();
+    }
+
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+
+    report(simulated, (System.nanoTime() - started) / 1e9);
+  }
+
+  /**
+   * Parses the weights of the command mix.
+   *
+   * @param mix list such as "DIR:5,CD:2,DOWNLOAD:3", missing commands get 0
+   * @return the weights in the order of COMMANDS
+   * @throws NumberFormatException if the mix is malformed or all zero
+   */
+  private static int[] parseMix(String mix) {
+    int[] weights = new int[COMMANDS.length];
+    int total = 0;
+    for (String part : mix.split(",")) {
+      String[] pair = part.split(":");
+      int command = Arrays.asList(COMMANDS).indexOf(pair[0].trim().toUpperCase());
+      if (pair.length != 2 || command == -1) {
+        throw new NumberFormatException();
+      }
+      weights[command] = Integer.parseInt(pair[1].trim());
+      if (weights[command] < 0) {
+        throw new NumberFormatException();
+      }
+      total += weights[command];
+    }
+    if (total == 0) {
+      throw new NumberFormatException();
+    }
+    return weights;
+  }
+
+  /**
+   * Merges the measurements of every session and prints them.
+   *
+   * @param sessions finished sessions
+   * @param seconds  length of the run
+   */
+  private static void report(List<SimulatedSession> sessions, double seconds) {
+    long bytes = 0;
+    long connections = 0;
+    System.out.println();
+    System.out.printf("%-10s %9s %8s %10s %10s %10s %10s %10s%n", "Command", "Requests",
+        "Errors", "Req/s", "p50 ms", "p99 ms", "p99.9 ms", "Max ms");
+
+    long totalRequests = 0;
+    for (String command : COMMANDS) {
+      Latencies merged = new Latencies();
+      long errors = 0;
+      for (SimulatedSession session : sessions) {
+        merged.addAll(session.latencies.get(command));
+        errors += session.errors.get(command).get();
+      }
+      totalRequests += merged.size();
+      merged.sort();
+      System.out.printf("%-10s %9d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n", command,
+          merged.size(), errors, merged.size() / seconds, merged.percentile(50) / 1e6,
+          merged.percentile(99) / 1e6, merged.percentile(99.9) / 1e6,
+          merged.percentile(100) / 1e6);
+    }
+
+    for (SimulatedSession session : sessions) {
+      bytes += session.bytes.get();
+      connections += session.connections.get();
+    }
+    System.out.printf("%nTotal: %d requests in %.1f seconds, %.1f requests/s%n",
+        totalRequests, seconds, totalRequests / seconds);
+    System.out.printf("Downloaded %d bytes, %.2f MB/s%n", bytes, bytes / seconds / 1e6);
+    System.out.println("Connections opened: " + connections);
+  }
+}
+
+/**
+ * One simulated client. Connects, goes to the start folder, then picks
+ * commands at random by weight until the deadline, sleeping a random think
+ * time between them. A lost connection is counted as an error of the request
+ * that failed and the session connects again.
+ */
+class SimulatedSession implements Runnable {
+
+  private final String host;
+  private final int port;
+  private final String path;
+  private final int[] weights;
+  private final int think;
+  private final long maxSize;
+  private final long deadline;
+  private final Random random;
+
+  // Results, read by the main thread once the session thread has ended
+  final Map<String, Latencies> latencies = new HashMap<>();
+  final Map<String, AtomicLong> errors = new HashMap<>();
+  final AtomicLong bytes = new AtomicLong();
+  final AtomicLong connections = new AtomicLong();
+
+  private ServerConnection connection;
+  private FramedSession session;
+  private String base;                                // Folder the session starts in
+  private List<String> baseFolders = new ArrayList<>();
+  private List<String[]> files;                       // {name, size} in the current folder
+  private List<String> folders = new ArrayList<>();   // Folders in the current folder
+  private final byte[] buffer = new byte[256 * 1024]; // Downloads are read into it
+  private String lastError;                           // Last reason connecting failed
+
+  /**
+   * Constructor.
+   *
+   * @param host     server name or address
+   * @param port     server port
+   * @param path     folder to start in, or null for the server's folder
+   * @param weights  weight of each command in LoadGenerator.COMMANDS
+   * @param think    mean think time between requests in milliseconds
+   * @param maxSize  largest file the session downloads
+   * @param deadline System.nanoTime() at which the session stops
+   * @param seed     seed of the random choices
+   */
+  SimulatedSession(String host, int port, String path, int[] weights, int think, long maxSize,
+                   long deadline, long seed) {
+    this.host = host;
+    this.port = port;
+    this.path = path;
+    this.weights = weights;
+    this.think = think;
+    this.maxSize = maxSize;
+    this.deadline = deadline;
+    this.random = new Random(seed);
+    for (String command : LoadGenerator.COMMANDS) {
+      latencies.put(command, new Latencies());
+      errors.put(command, new AtomicLong());
+    }
+  }
+
+  public void run() {
+    try {
+      while (System.nanoTime() < deadline) {
+        String command = null;
+        try {
+          if (session == null) {
+            connect();
+          }
+          command = pick();
+          if (command.equals("DOWNLOAD")) {
+            // A user lists the folder before picking a file, and leaves a
+            // folder with nothing to download
+            if (files == null) {
+              command = "DIR";
+              measure(command);
+              command = "DOWNLOAD";
+            }
+            if (candidates().isEmpty()) {
+              command = "CD";
+            }
+          }
+          measure(command);
+        } catch (IOException ex) {
+          disconnect();
+          if (command == null) {
+            // Could not connect, say why once and don't hammer the server
+            if (!String.valueOf(ex.getMessage()).equals(lastError)) {
+              lastError = String.valueOf(ex.getMessage());
+              System.err.println(Thread.currentThread().getName() + ": " + lastError);
+            }
+            sleep(1000);
+            continue;
+          }
+          errors.get(command).incrementAndGet();
+        }
+        // Exponential around the mean, so requests arrive like independent users
+        sleep((long) (-Math.log(1 - random.nextDouble()) * think));
+      }
+    } catch (InterruptedException ex) {
+      // Stopped early
+    }
+
+    if (session != null) {
+      try {
+        session.bye();
+      } catch (IOException ignored) {
+        // Closing anyway
+      }
+    }
+    disconnect();
+  }
+
+  /**
+   * Opens the connection, switches to protocol v2 and goes to the start folder.
+   *
+   * @throws IOException if the server can't be reached or the folder is missing
+   */
+  private void connect() throws IOException {
+    connection = ServerConnection.open(host, port);
+    connections.incrementAndGet();
+    if (!Protocol.HELLO_V2.equals(connection.greeting)) {
+      throw new IOException("Server does not speak protocol v2");
+    }
+    OutputStream out = connection.socket.getOutputStream();
+    out.write((Protocol.V2 + "\n").getBytes());
+    out.flush();
+    session = new FramedSession(connection.in, out);
+
+    base = path == null ? session.call(Protocol.PWD, null) : session.call(Protocol.CD, path);
+    if (base.equals("DDNE") || base.equals("PD")) {
+      throw new IOException("Can't open " + path + " on the server");
+    }
+    list();
+    baseFolders = folders;
+  }
+
+  private void disconnect() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (IOException ignored) {
+        // Nothing left to release
+      }
+    }
+    connection = null;
+    session = null;
+  }
+
+  /**
+   * @return a command chosen at random by weight
+   */
+  private String pick() {
+    int total = 0;
+    for (int weight : weights) {
+      total += weight;
+    }
+    int choice = random.nextInt(total);
+    for (int i = 0; i < weights.length; i++) {
+      choice -= weights[i];
+      if (choice < 0) {
+        return LoadGenerator.COMMANDS[i];
+      }
+    }
+    return LoadGenerator.COMMANDS[0];
+  }
+
+  /**
+   * Runs one request and records its latency, or an error if the server
+   * answered with one.
+   *
+   * @param command DIR, CD or DOWNLOAD
+   * @throws IOException if the connection failed
+   */
+  private void measure(String command) throws IOException {
+    long started = System.nanoTime();
+    boolean ok = runCommand(command);
+    latencies.get(command).add(System.nanoTime() - started);
+    if (!ok) {
+      errors.get(command).incrementAndGet();
+    }
+  }
+
+  /**
+   * Sends one request and waits for the whole response.
+   *
+   * @param command DIR, CD or DOWNLOAD
+   * @return false if the server answered with an error code
+   * @throws IOException if the connection failed
+   */
+  private boolean runCommand(String command) throws IOException {
+    switch (command) {
+      case "DIR":
+        return list();
+      case "CD":
+        // Into a folder of the start folder, or back to the start folder
+        String target = base;
+        if (!baseFolders.isEmpty() && random.nextBoolean()) {
+          target = base + "/" + baseFolders.get(random.nextInt(baseFolders.size()));
+        }
+        String response = session.call(Protocol.CD, target);
+        files = null; // The next download lists the new folder first
+        return !response.equals("DDNE") && !response.equals("PD");
+      default:
+        return download();
+    }
+  }
+
+  /**
+   * Sends DIR and remembers the files and folders of the current folder.
+   *
+   * @return false if the folder couldn't be read
+   * @throws IOException if the connection failed
+   */
+  private boolean list() throws IOException {
+    String listing = session.call(Protocol.DIR, null);
+    files = new ArrayList<>();
+    folders = new ArrayList<>();
+    if (listing.isEmpty()) {
+      return false;
+    }
+    if (listing.equals("EMPTY")) {
+      return true;
+    }
+    String[] tokens = listing.split("#");
+    for (int i = 0; i + 2 < tokens.length; i += 3) {
+      if (tokens[i].equals("File")) {
+        files.add(new String[]{tokens[i + 2], tokens[i + 1]});
+      } else {
+        folders.add(tokens[i + 2]);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return files of the last listing no larger than maxSize
+   */
+  private List<String> candidates() {
+    List<String> candidates = new ArrayList<>();
+    for (String[] file : files) {
+      if (Long.parseLong(file[1]) <= maxSize) {
+        candidates.add(file[0]);
+      }
+    }
+    return candidates;
+  }
+
+  /**
+   * Downloads a random file of the last listing no larger than maxSize and
+   * throws the data away.
+   *
+   * @return false if the server refused
+   * @throws IOException if the connection failed
+   */
+  private boolean download() throws IOException {
+    List<String> candidates = candidates();
+    String name = candidates.get(random.nextInt(candidates.size()));
+    try {
+      session.download(name, 0, Long.MAX_VALUE, -1, null, null);
+    } catch (FramedSession.RemoteError ex) {
+      return false;
+    }
+    InputStream data = session.data();
+    int bytesRead;
+    while ((bytesRead = data.read(buffer)) != -1) {
+      bytes.addAndGet(bytesRead);
+    }
+    session.trailer();
+    return true;
+  }
+
+  /**
+   * Sleeps, but not past the deadline.
+   *
+   * @param millis milliseconds to sleep
+   * @throws InterruptedException if the session is stopped
+   */
+  private void sleep(long millis) throws InterruptedException {
+    long left = (deadline - System.nanoTime()) / 1000000;
+    if (Math.min(millis, left) > 0) {
+      Thread.sleep(Math.min(millis, left));
+    }
+  }
+}
+
+/**
+ * A growing list of latencies in nanoseconds.
+ */
+class Latencies {
+  private long[] values = new long[1024];
+  private int size = 0;
+
+  void add(long value) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    values[size++] = value;
+  }
+
+  void addAll(Latencies other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.values[i]);
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  void sort() {
+    Arrays.sort(values, 0, size);
+  }
+
+  /**
+   * @param percent 0 to 100
+   * @return the latency below which that percentage of the values fall,
+   * 0 if there are none. The list must be sorted.
+   */
+  long percentile(double percent) {
+    if (size == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(percent / 100 * size) - 1;
+    return values[Math.max(0, Math.min(index, size - 1))];
+  }
+}
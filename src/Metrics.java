@@ -0,0 +1,250 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: Metrics.java
+ * Purpose:  Counters and histograms describing what the server is
+ *           doing: connections, commands, bytes sent, transfer speed
+ *           and errors. Read with the STATS command or scraped from
+ *           the optional metrics port.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics is written by every connection thread at once, so recording never
+ * takes a lock: counters are LongAdders, which spread contended updates over
+ * several cells, and the table of commands is built up front and never
+ * changes. Reading sums the cells, so a report is a close snapshot rather
+ * than an exact one, which is all a scrape needs.
+ *
+ * Reports use the Prometheus text format, one "name{labels} value" line per
+ * sample, so the metrics port can be scraped by standard tools and read by
+ * people alike.
+ */
+class Metrics {
+
+  // Commands that get their own count and latency histogram. Anything else
+  // is counted as INVALID.
+  private static final String[] COMMANDS = {"BYE", "PWD", "DIR", "LIST", "CD", "SIZE",
+      "DOWNLOAD", "RANGE", "RESUME", "RDOWNLOAD", "STATS", "SYNC", "HASH", "SEARCH", "INVALID"};
+
+  private final LongAdder connections = new LongAdder();       // Opened since start
+  private final LongAdder activeConnections = new LongAdder();
+  private final LongAdder bytesSent = new LongAdder();
+  private final LongAdder transfers = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+
+  // Latency in microseconds by command, never modified after construction
+  private final Map<String, Histogram> commands;
+
+  // Speed of each completed transfer in bytes per second
+  private final Histogram throughput = new Histogram();
+
+  private final long startedAt = System.nanoTime();
+
+  /**
+   * Constructor.
+   */
+  Metrics() {
+    Map<String, Histogram> table = new LinkedHashMap<>();
+    for (String command : COMMANDS) {
+      table.put(command, new Histogram());
+    }
+    commands = Collections.unmodifiableMap(table);
+  }
+
+  void connectionOpened() {
+    connections.increment();
+    activeConnections.increment();
+  }
+
+  void connectionClosed() {
+    activeConnections.decrement();
+  }
+
+  /**
+   * Records a served request.
+   *
+   * @param command command name such as "PWD", in any case
+   * @param nanos   time taken to serve it
+   */
+  void command(String command, long nanos) {
+    Histogram latency = commands.get(command.toUpperCase());
+    if (latency == null) {
+      latency = commands.get("INVALID");
+    }
+    latency.record(nanos / 1000);
+  }
+
+  /**
+   * Records bytes written to a client socket.
+   *
+   * @param bytes number of bytes
+   */
+  void sent(long bytes) {
+    bytesSent.add(bytes);
+  }
+
+  /**
+   * Wraps a client socket stream so every byte written to it is counted.
+   *
+   * @param out stream connected to the client
+   * @return the counting stream
+   */
+  OutputStream counting(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        bytesSent.increment();
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        bytesSent.add(length);
+      }
+    };
+  }
+
+  /**
+   * Records a completed file or folder transfer.
+   *
+   * @param bytes number of bytes sent
+   * @param nanos time from the first to the last byte
+   */
+  void transfer(long bytes, long nanos) {
+    transfers.increment();
+    throughput.record((long) (bytes * 1e9 / Math.max(nanos, 1)));
+  }
+
+  /**
+   * Records a failed request or a connection lost to an error.
+   */
+  void error() {
+    errors.increment();
+  }
+
+  /**
+   * Builds the report.
+   *
+   * @param server gauges owned by other parts of the server, added as they are
+   * @return the report, one sample per line
+   */
+  String report(Map<String, Number> server) {
+    StringBuilder out = new StringBuilder();
+
+    sample(out, "server_uptime_seconds", "", (System.nanoTime() - startedAt) / 1000000000L);
+    sample(out, "server_connections_total", "", connections.sum());
+    sample(out, "server_connections_active", "", activeConnections.sum());
+    sample(out, "server_bytes_sent_total", "", bytesSent.sum());
+    sample(out, "server_transfers_total", "", transfers.sum());
+    sample(out, "server_errors_total", "", errors.sum());
+    for (Map.Entry<String, Number> gauge : server.entrySet()) {
+      sample(out, "server_" + gauge.getKey(), "", gauge.getValue());
+    }
+
+    // Latency buckets are kept in microseconds and reported in seconds
+    out.append("# TYPE server_command_latency_seconds histogram\n");
+    for (Map.Entry<String, Histogram> command : commands.entrySet()) {
+      if (command.getValue().count.sum() > 0) {
+        command.getValue().report(out, "server_command_latency_seconds",
+            "command=\"" + command.getKey() + "\",", 6);
+      }
+    }
+
+    out.append("# TYPE server_transfer_bytes_per_second histogram\n");
+    throughput.report(out, "server_transfer_bytes_per_second", "", 0);
+    return out.toString();
+  }
+
+  /**
+   * @return value divided by 10^decimals, written without rounding noise
+   */
+  private static String scaled(long value, int decimals) {
+    return BigDecimal.valueOf(value, decimals).stripTrailingZeros().toPlainString();
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, Object value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  /**
+   * Histogram with power of two buckets: bucket i counts the values that
+   * need i bits, so values from 2^(i-1) to 2^i - 1. Recording is a bit count
+   * and two adds.
+   */
+  private static class Histogram {
+    private static final int BUCKETS = 48;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < BUCKETS; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void record(long value) {
+      value = Math.max(value, 0);
+      int bucket = Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+      buckets[bucket].increment();
+      count.increment();
+      sum.add(value);
+    }
+
+    /**
+     * Writes the cumulative buckets from the lowest to the highest one in
+     * use, then the sum and count.
+     *
+     * @param out      report being built
+     * @param name     metric name
+     * @param labels   labels of every sample, each followed by a comma
+     * @param decimals the reported unit is the recorded unit times 10^decimals
+     */
+    void report(StringBuilder out, String name, String labels, int decimals) {
+      long[] counts = new long[BUCKETS];
+      int lowest = BUCKETS;
+      int highest = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = buckets[i].sum();
+        if (counts[i] > 0) {
+          lowest = Math.min(lowest, i);
+          highest = i;
+        }
+      }
+
+      long cumulative = 0;
+      for (int i = lowest; i <= highest; i++) {
+        cumulative += counts[i];
+        // Largest value in bucket i is 2^i - 1
+        sample(out, name + "_bucket",
+            labels + "le=\"" + scaled((1L << i) - 1, decimals) + "\"", cumulative);
+      }
+      // The buckets are read one by one while others record, so the total is
+      // taken from them rather than from count to keep the report consistent
+      sample(out, name + "_bucket", labels + "le=\"+Inf\"", cumulative);
+      String plain = labels.isEmpty() ? "" : labels.substring(0, labels.length() - 1);
+      sample(out, name + "_sum", plain, scaled(sum.sum(), decimals));
+      sample(out, name + "_count", plain, cumulative);
+    }
+  }
+}
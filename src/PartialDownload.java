@@ -0,0 +1,181 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: PartialDownload.java
+ * Purpose:  Keeps track of an unfinished download in a ".part" file and
+ *           its sidecar, so an interrupted download can be resumed.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Client.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * PartialDownload tracks a download that has not finished yet. The data is
+ * written to "name.part" and the sidecar "name.part.info" records the total
+ * file size and the number of bytes known to be on disk. Only the bytes
+ * recorded in the sidecar are trusted when a download is resumed.
+ */
+class PartialDownload {
+
+  // Record progress in the sidecar after this many bytes are written
+  static final long CHECKPOINT_BYTES = 8000000;
+
+  private final File target;
+  private final File part;
+  private final File info;
+  private final long size;
+  private long received;
+
+  /**
+   * Constructor.
+   *
+   * @param target   the file the finished download is saved as
+   * @param size     total size of the file on the server
+   * @param received number of bytes already saved in the part file
+   */
+  private PartialDownload(File target, long size, long received) {
+    this.target = target;
+    this.part = new File(target.getPath() + ".part");
+    this.info = new File(target.getPath() + ".part.info");
+    this.size = size;
+    this.received = received;
+  }
+
+  /**
+   * Looks for an unfinished download of the target file.
+   *
+   * @param target the file the finished download is saved as
+   * @return the partial download, or null if there is none that can be resumed
+   */
+  static PartialDownload find(File target) {
+    PartialDownload partial = new PartialDownload(target, 0, 0);
+    if (!partial.part.isFile() || !partial.info.isFile()) {
+      return null;
+    }
+
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(partial.info)) {
+      properties.load(in);
+      long size = Long.parseLong(properties.getProperty("size"));
+      long received = Long.parseLong(properties.getProperty("received"));
+
+      // The part file must hold at least the bytes the sidecar promises
+      if (received < 0 || received > size || received > partial.part.length()) {
+        return null;
+      }
+      return new PartialDownload(target, size, received);
+    } catch (IOException | NumberFormatException e) {
+      return null; // Unreadable sidecar, download from the start
+    }
+  }
+
+  /**
+   * Begins tracking a new download.
+   *
+   * @param target the file the finished download is saved as
+   * @param size   total size of the file on the server
+   * @return the new partial download
+   * @throws IOException if the sidecar can't be written
+   */
+  static PartialDownload start(File target, long size) throws IOException {
+    PartialDownload partial = new PartialDownload(target, size, 0);
+    partial.record(0);
+    return partial;
+  }
+
+  /**
+   * Opens the part file for writing after the last recorded byte. Anything
+   * written past the recorded count by an interrupted attempt is discarded.
+   *
+   * @return stream that appends to the part file
+   * @throws IOException if the part file can't be opened
+   */
+  OutputStream openOutput() throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+      file.setLength(received);
+    }
+    return new BufferedOutputStream(new FileOutputStream(part, true));
+  }
+
+  /**
+   * Opens the part file for writing at any position. Like openOutput(), bytes
+   * past the recorded count are discarded. The file is then extended to the
+   * full size of the download, so it is allocated once instead of growing
+   * with every write.
+   *
+   * @return channel to the part file
+   * @throws IOException if the part file can't be opened
+   */
+  FileChannel openChannel() throws IOException {
+    FileChannel channel = FileChannel.open(part.toPath(),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try {
+      channel.truncate(received);
+      if (size > received) {
+        channel.write(ByteBuffer.allocate(1), size - 1);
+      }
+    } catch (IOException ex) {
+      channel.close();
+      throw ex;
+    }
+    return channel;
+  }
+
+  /**
+   * Records that the first bytes of the file are safely in the part file.
+   * Callers must flush the part file before recording.
+   *
+   * @param received number of bytes written to the part file
+   * @throws IOException if the sidecar can't be written
+   */
+  void record(long received) throws IOException {
+    this.received = received;
+
+    Properties properties = new Properties();
+    properties.setProperty("size", String.valueOf(size));
+    properties.setProperty("received", String.valueOf(received));
+    try (OutputStream out = new FileOutputStream(info)) {
+      properties.store(out, "Partial download of " + target.getName());
+    }
+  }
+
+  /**
+   * Moves the finished part file to the target and removes the sidecar.
+   *
+   * @throws IOException if the file can't be moved
+   */
+  void complete() throws IOException {
+    Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    Files.deleteIfExists(info.toPath());
+  }
+
+  /**
+   * Throws away the partial download.
+   */
+  void delete() {
+    part.delete();
+    info.delete();
+  }
+
+  File getTarget() {
+    return target;
+  }
+
+  long getSize() {
+    return size;
+  }
+
+  long getReceived() {
+    return received;
+  }
+}
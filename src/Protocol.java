@@ -0,0 +1,503 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: Protocol.java
+ * Purpose:  Constants and helpers for the wire protocol that are
+ *           shared by the client and the server. Covers the line
+ *           based version 1 protocol and the framed binary
+ *           version 2 protocol.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java Client.java
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocol version 2 replaces text lines with frames. Every frame starts with
+ * a 9 byte header followed by the payload:
+ *
+ * <pre>
+ *   opcode      1 byte   what the frame is (request or response type)
+ *   request id  4 bytes  chosen by the client, echoed in every response
+ *   length      4 bytes  number of payload bytes that follow
+ *   payload     length bytes
+ * </pre>
+ *
+ * Because the length of every frame is known up front, control messages and
+ * file data can share one buffered stream without either side reading past
+ * the end of a message. The server greets with "HELLO V2" and switches to
+ * frames when the client answers "V2". Clients that ignore the greeting keep
+ * talking version 1.
+ */
+final class Protocol {
+
+  // Greeting sent by servers that speak version 2, and the client's answer
+  static final String HELLO_V2 = "HELLO V2";
+  static final String V2 = "V2";
+
+  // Sent instead of the greeting when the server is full, followed by the
+  // number of seconds to wait before connecting again: "BUSY 5"
+  static final String BUSY = "BUSY";
+
+  // Request opcodes sent by the client
+  static final byte BYE = 0x01;
+  static final byte PWD = 0x02;
+  static final byte DIR = 0x03;
+  static final byte CD = 0x04;
+  static final byte SIZE = 0x05;
+  static final byte DOWNLOAD = 0x06; // payload: long offset, long length,
+                                     // long expected size (-1 for any),
+                                     // UTF checksum ("" for none), UTF name,
+                                     // optional UTF codecs offered
+  static final byte LIST = 0x07;     // payload: LIST arguments as text
+  static final byte RDOWNLOAD = 0x08; // payload: UTF checksum ("" for none),
+                                      // UTF folder name
+  static final byte STATS = 0x09;    // no payload
+  static final byte SYNC = 0x0A;     // payload: UTF checksum ("" for none),
+                                     // UTF name, signature of the client's
+                                     // copy (see Delta)
+  static final byte HASH = 0x0B;     // payload: file name as text
+  static final byte SEARCH = 0x0C;   // payload: SEARCH arguments as text
+
+  // Response opcodes sent by the server
+  static final byte OK = 0x40;       // payload: response text
+  static final byte ERROR = 0x41;    // payload: error code (FNF, DDNE, PD, ...)
+  static final byte FILE = 0x42;     // payload: long total size, long byte count,
+                                     // UTF codec ("" if not compressed)
+  static final byte DATA = 0x43;     // payload: file bytes
+  static final byte END = 0x44;      // payload: checksum trailer, may be empty
+  static final byte ENTRIES = 0x45;  // payload: LIST or SEARCH rows, one per line
+
+  // Size of the frame header in bytes
+  static final int HEADER_LENGTH = 9;
+
+  // Largest payload of a single DATA frame
+  static final int MAX_CHUNK = 256 * 1024;
+
+  // Largest number of bytes of rows a LIST or SEARCH response sends in one
+  // ENTRIES frame
+  static final int MAX_ENTRIES = 64 * 1024;
+
+  // Largest payload of a request, or of a response that is not listed below.
+  // Holds a path and a few numbers.
+  static final int MAX_REQUEST = 8 * 1024;
+
+  // Largest payload of an OK response, which holds a whole DIR listing
+  static final int MAX_RESPONSE = 16 * 1024 * 1024;
+
+  // Largest payload of a SYNC request: the checksum algorithm and file name,
+  // then the client's signature. The server reads it from the stream as it
+  // arrives instead of into an array of the declared length.
+  static final int MAX_SYNC = MAX_REQUEST + Delta.MAX_SIGNATURE;
+
+  private Protocol() {
+  }
+
+  /**
+   * Looks up the largest payload a frame may declare. Frames other than SYNC
+   * requests are read into an array of their declared length, so a peer must
+   * not be able to make the other side allocate more than the frame can
+   * reasonably hold.
+   *
+   * @param opcode frame opcode
+   * @return largest payload length accepted for the opcode
+   */
+  static int maxPayload(byte opcode) {
+    switch (opcode) {
+      case DATA:
+        return MAX_CHUNK;
+      case SYNC:
+        return MAX_SYNC;
+      case OK:
+        return MAX_RESPONSE;
+      case ENTRIES:
+        return MAX_ENTRIES + MAX_REQUEST; // Room for a row longer than MAX_ENTRIES
+      default:
+        return MAX_REQUEST;
+    }
+  }
+
+  /**
+   * Looks up the request opcode of a text command.
+   *
+   * @param command command name such as "PWD"
+   * @return the opcode, or -1 if the command has no version 2 equivalent
+   */
+  static byte opcodeOf(String command) {
+    switch (command.toUpperCase()) {
+      case "BYE":
+        return BYE;
+      case "PWD":
+        return PWD;
+      case "DIR":
+        return DIR;
+      case "CD":
+        return CD;
+      case "SIZE":
+        return SIZE;
+      case "DOWNLOAD":
+        return DOWNLOAD;
+      case "LIST":
+        return LIST;
+      case "RDOWNLOAD":
+        return RDOWNLOAD;
+      case "STATS":
+        return STATS;
+      case "SYNC":
+        return SYNC;
+      case "HASH":
+        return HASH;
+      case "SEARCH":
+        return SEARCH;
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Looks up the text command of a request opcode.
+   *
+   * @param opcode request opcode
+   * @return the command name, or "INVALID" for an unknown opcode
+   */
+  static String commandOf(byte opcode) {
+    switch (opcode) {
+      case BYE:
+        return "BYE";
+      case PWD:
+        return "PWD";
+      case DIR:
+        return "DIR";
+      case CD:
+        return "CD";
+      case SIZE:
+        return "SIZE";
+      case DOWNLOAD:
+        return "DOWNLOAD";
+      case LIST:
+        return "LIST";
+      case RDOWNLOAD:
+        return "RDOWNLOAD";
+      case STATS:
+        return "STATS";
+      case SYNC:
+        return "SYNC";
+      case HASH:
+        return "HASH";
+      case SEARCH:
+        return "SEARCH";
+      default:
+        return "INVALID";
+    }
+  }
+
+  /**
+   * Writes a frame header. The caller writes exactly length payload bytes
+   * afterwards.
+   *
+   * @param out       stream connected to the other side
+   * @param opcode    frame opcode
+   * @param requestId request id
+   * @param length    number of payload bytes that follow
+   * @throws IOException if writing fails
+   */
+  static void writeHeader(DataOutputStream out, byte opcode, int requestId, int length)
+      throws IOException {
+    out.writeByte(opcode);
+    out.writeInt(requestId);
+    out.writeInt(length);
+  }
+
+  /**
+   * Writes a complete frame.
+   *
+   * @param out       stream connected to the other side
+   * @param opcode    frame opcode
+   * @param requestId request id
+   * @param payload   array holding the payload
+   * @param offset    position of the first payload byte
+   * @param length    number of payload bytes
+   * @throws IOException if writing fails
+   */
+  static void writeFrame(DataOutputStream out, byte opcode, int requestId,
+                         byte[] payload, int offset, int length) throws IOException {
+    writeHeader(out, opcode, requestId, length);
+    out.write(payload, offset, length);
+  }
+
+  /**
+   * Writes a frame whose payload is text.
+   *
+   * @param out       stream connected to the other side
+   * @param opcode    frame opcode
+   * @param requestId request id
+   * @param text      payload text, sent as UTF-8
+   * @throws IOException if writing fails
+   */
+  static void writeText(DataOutputStream out, byte opcode, int requestId, String text)
+      throws IOException {
+    byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+    writeFrame(out, opcode, requestId, payload, 0, payload.length);
+  }
+
+  /**
+   * Reads a complete frame including its payload.
+   *
+   * @param in stream connected to the other side
+   * @return the frame
+   * @throws EOFException if the stream ends before a frame starts
+   * @throws IOException  if the frame is malformed or reading fails
+   */
+  static Frame readFrame(DataInputStream in) throws IOException {
+    return readFrame(in, false);
+  }
+
+  /**
+   * Reads a request frame on the server. Like readFrame(), except that the
+   * payload of a SYNC request is left in the stream: its handler reads the
+   * signature from data() as it arrives, and discard() skips whatever it
+   * didn't read. A SYNC header alone doesn't make the server allocate the
+   * size it declares.
+   *
+   * @param in stream connected to the client
+   * @return the frame
+   * @throws EOFException if the stream ends before a frame starts
+   * @throws IOException  if the frame is malformed or reading fails
+   */
+  static Frame readRequest(DataInputStream in) throws IOException {
+    return readFrame(in, true);
+  }
+
+  private static Frame readFrame(DataInputStream in, boolean request) throws IOException {
+    byte opcode = in.readByte();
+    int requestId = in.readInt();
+    int length = in.readInt();
+
+    if (length < 0 || length > maxPayload(opcode)) {
+      throw new IOException("Invalid frame length " + length);
+    }
+
+    if (request && opcode == SYNC) {
+      return new Frame(opcode, requestId, new PayloadInputStream(in, length));
+    }
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    return new Frame(opcode, requestId, payload);
+  }
+
+  /**
+   * Reads a single line of text straight from a byte stream. Unlike a
+   * BufferedReader it never reads past the newline, so data following the
+   * line stays in the stream.
+   *
+   * @param in stream connected to the other side
+   * @return the line without its line terminator, or null at end of stream
+   * @throws IOException if reading from the stream fails
+   */
+  static String readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+
+    while ((b = in.read()) != -1 && b != '\n') {
+      if (b != '\r') {
+        line.write(b);
+      }
+    }
+
+    if (b == -1 && line.size() == 0) {
+      return null;
+    }
+    return line.toString();
+  }
+
+  /**
+   * Writes everything written to it as DATA frames of one request. Bytes are
+   * collected until a full MAX_CHUNK frame can be sent or flush() is called.
+   * Closing the stream sends what is left but leaves the connection open.
+   */
+  static final class DataFrameOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final int requestId;
+    private final BufferPool.Lease lease = BufferPool.HEAP.acquire(MAX_CHUNK);
+    private final byte[] chunk = lease.array();
+    private int length = 0;
+    private long wireBytes = 0;
+
+    DataFrameOutputStream(DataOutputStream out, int requestId) {
+      this.out = out;
+      this.requestId = requestId;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int count) throws IOException {
+      while (count > 0) {
+        int copied = Math.min(count, chunk.length - length);
+        System.arraycopy(bytes, offset, chunk, length, copied);
+        length += copied;
+        offset += copied;
+        count -= copied;
+        if (length == chunk.length) {
+          flush();
+        }
+      }
+    }
+
+    /**
+     * Sends the collected bytes as a DATA frame. The connection itself is
+     * flushed by its owner.
+     */
+    @Override
+    public void flush() throws IOException {
+      if (length > 0) {
+        writeFrame(out, DATA, requestId, chunk, 0, length);
+        wireBytes += length;
+        length = 0;
+      }
+    }
+
+    /**
+     * Sends the bytes collected so far and gives the buffer back to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        release();
+      }
+    }
+
+    /**
+     * Gives the buffer back to the pool without sending anything, for a
+     * download that is abandoned. Closing twice does nothing.
+     */
+    void release() {
+      lease.close();
+    }
+
+    /**
+     * @return payload bytes sent in DATA frames so far
+     */
+    long getWireBytes() {
+      return wireBytes;
+    }
+  }
+
+  /**
+   * A frame read from the stream.
+   */
+  static final class Frame {
+    final byte opcode;
+    final int requestId;
+    final byte[] payload;
+    private final PayloadInputStream stream; // Set instead of the payload when streamed
+
+    Frame(byte opcode, int requestId, byte[] payload) {
+      this.opcode = opcode;
+      this.requestId = requestId;
+      this.payload = payload;
+      this.stream = null;
+    }
+
+    private Frame(byte opcode, int requestId, PayloadInputStream stream) {
+      this.opcode = opcode;
+      this.requestId = requestId;
+      this.payload = null;
+      this.stream = stream;
+    }
+
+    /**
+     * @return the payload decoded as UTF-8 text
+     */
+    String text() {
+      return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return stream for decoding a binary payload
+     */
+    DataInputStream data() {
+      if (stream != null) {
+        return new DataInputStream(stream);
+      }
+      return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+
+    /**
+     * Skips the part of a streamed payload that was not read, so the stream
+     * is positioned at the next frame. Does nothing for other frames.
+     *
+     * @throws IOException if the stream ends early or reading fails
+     */
+    void discard() throws IOException {
+      if (stream != null) {
+        stream.discard();
+      }
+    }
+  }
+
+  /**
+   * The payload of a streamed frame, read straight from the connection. Ends
+   * after the length the frame declared.
+   */
+  private static final class PayloadInputStream extends InputStream {
+    private final DataInputStream in;
+    private int remaining;
+
+    PayloadInputStream(DataInputStream in, int length) {
+      this.in = in;
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException("Frame ended early");
+      }
+      remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) {
+        return len == 0 ? 0 : -1;
+      }
+      int count = in.read(b, off, Math.min(len, remaining));
+      if (count == -1) {
+        throw new EOFException("Frame ended early");
+      }
+      remaining -= count;
+      return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return Math.min(in.available(), remaining);
+    }
+
+    void discard() throws IOException {
+      while (remaining > 0) {
+        int skipped = in.skipBytes(remaining);
+        if (skipped <= 0) {
+          in.readByte(); // Throws at the end of the stream
+          skipped = 1;
+        }
+        remaining -= skipped;
+      }
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: SelectorEngine.java
+ * Purpose:  Connection engine that parks idle clients in a single
+ *           Selector instead of giving each one its own thread.
+ *           A connection is handed to a small pool of worker
+ *           threads only while it has a request to serve.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SelectorEngine accepts connections on a non-blocking server channel and
+ * registers every idle client with one Selector. When a client socket becomes
+ * readable its key is cancelled, the channel is switched back to blocking mode
+ * and a worker thread runs the normal ClientConnection request handling. Once
+ * the worker has served all buffered requests the connection is handed back to
+ * the selector thread, so thousands of clients sitting at the prompt cost no
+ * threads at all.
+ *
+ * A worker waits at most READ_TIMEOUT for the rest of a request. A client
+ * that sends part of a request and stops would otherwise keep a worker
+ * forever, and a few of them would stall every other connection. Such a
+ * client is disconnected instead.
+ */
+class SelectorEngine {
+
+  // Longest a worker waits for more of a request, in milliseconds
+  static final int READ_TIMEOUT = 10000;
+
+  private final ServerSocketChannel server;
+  private final ExecutorService workers;
+  private final Selector selector;
+
+  // Connections that workers have finished with and that need to be
+  // registered with the selector again. Only the selector thread registers.
+  private final ConcurrentLinkedQueue<ClientConnection> parked =
+      new ConcurrentLinkedQueue<>();
+
+  /**
+   * Constructor. Takes the bound server channel and the worker pool size.
+   *
+   * @param server      server socket channel that is bound to a port number
+   * @param workerCount number of threads that serve client requests
+   */
+  SelectorEngine(ServerSocketChannel server, int workerCount) {
+    this.server = server;
+    this.workers = Executors.newFixedThreadPool(workerCount);
+    try {
+      this.selector = Selector.open();
+    } catch (IOException ex) {
+      throw new UncheckedIOException("Could not open selector", ex);
+    }
+  }
+
+  /**
+   * Runs the event loop until the server channel is closed.
+   */
+  void run() {
+    try {
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException ex) {
+      System.err.println("Could not register server socket with the selector");
+      ex.printStackTrace();
+      return;
+    }
+
+    while (server.isOpen()) {
+      try {
+        // Keys selected by a previous selectNow() still need to be processed
+        if (selector.selectedKeys().isEmpty()) {
+          selector.select();
+        }
+        registerParked();
+        dispatchSelected();
+      } catch (ClosedSelectorException | ClosedChannelException ex) {
+        break;
+      } catch (IOException ex) {
+        System.err.println("Selector: Error waiting for client activity");
+        ex.printStackTrace();
+      }
+    }
+
+    workers.shutdown();
+  }
+
+  /**
+   * Accepts new clients and hands readable clients to the worker pool.
+   *
+   * @throws IOException if the selector can no longer be used
+   */
+  private void dispatchSelected() throws IOException {
+    List<ClientConnection> readable = new ArrayList<>();
+
+    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+    while (keys.hasNext()) {
+      SelectionKey key = keys.next();
+      keys.remove();
+
+      if (!key.isValid()) {
+        continue;
+      }
+
+      if (key.isAcceptable()) {
+        SocketChannel client = server.accept();
+        if (client != null) {
+          // Newly accepted channels are still blocking, greet on a worker
+          ClientConnection connection = new ClientConnection(client.socket());
+          Runnable session = () -> workers.execute(() -> {
+            if (connection.open()) {
+              park(connection);
+            } else {
+              connection.close();
+            }
+          });
+          // Over the session limit the connection waits or is told to retry
+          if (!Server.admission.admit(session)) {
+            workers.execute(() -> connection.refuse(Server.admission.retryAfter()));
+          }
+        }
+      } else if (key.isReadable()) {
+        // Deregister so the worker can put the channel in blocking mode
+        key.cancel();
+        readable.add((ClientConnection) key.attachment());
+      }
+    }
+
+    if (!readable.isEmpty()) {
+      // Flush the cancelled keys before the channels change blocking mode
+      selector.selectNow();
+      for (ClientConnection connection : readable) {
+        workers.execute(() -> serve(connection));
+      }
+    }
+  }
+
+  /**
+   * Worker side of a dispatch. Serves the pending requests then parks the
+   * connection again.
+   *
+   * @param connection client connection whose socket is readable
+   */
+  private void serve(ClientConnection connection) {
+    try {
+      SocketChannel channel = connection.getChannel();
+      channel.configureBlocking(true);
+      channel.socket().setSoTimeout(READ_TIMEOUT);
+    } catch (IOException ex) {
+      connection.close();
+      return;
+    }
+
+    if (connection.serviceReadable()) {
+      park(connection);
+    }
+  }
+
+  /**
+   * Queues a connection to be registered with the selector again.
+   *
+   * @param connection idle client connection
+   */
+  private void park(ClientConnection connection) {
+    parked.add(connection);
+    selector.wakeup();
+  }
+
+  /**
+   * Registers every parked connection for read readiness. Runs on the selector
+   * thread only.
+   */
+  private void registerParked() {
+    ClientConnection connection;
+    while ((connection = parked.poll()) != null) {
+      SocketChannel channel = connection.getChannel();
+      try {
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, connection);
+      } catch (IOException ex) {
+        connection.close();
+      }
+    }
+  }
+}
@@ -15,32 +15,104 @@
  *           a TCP connection.
  * Language: Java 8 (1.8.0_101)
  * Compilation Command: javac Server.java
- * Execution Command: java Server [port]
+ * Execution Command: java Server [--engine=thread|nio|virtual] [--dircache=entries] [port]
  * Shutting Down: Ctrl+C
+ * Console: "rate [total [per-connection]]" shows or changes the bandwidth limits
+ * Metrics: java Server --metrics-port=9100, then http://localhost:9100/metrics
+ * Logging: java Server --log=server.log, rotated every 10mb by default
  */
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+import com.sun.net.httpserver.HttpServer;
 
 
 class Server {
+
+  private static final String USAGE =
+      "Usage: java Server [--engine=thread|nio|virtual] [--workers=N] " +
+          "[--transfer=zerocopy|copy] [--compress=auto|off] [--dircache=entries] " +
+          "[--filecache=bytes] [--filecache-small=bytes] " +
+          "[--rate=bytes/s] [--client-rate=bytes/s] [--max-sessions=N] [--queue=N] " +
+          "[--metrics-port=port] [--hash-index=file|off] [--log=console|file|off] " +
+          "[--log-size=bytes] [--log-full=drop|block] [port]";
+
+  // Send files with FileChannel.transferTo instead of copying them through
+  // a buffer. Set by the --transfer option.
+  static boolean zeroCopy = true;
+
+  // DIR listings shared by every connection. Sized by the --dircache option.
+  static DirectoryCache directoryCache;
+
+  // Popular files kept in memory. Sized by the --filecache options.
+  static FileCache fileCache = new FileCache(0, 0);
+
+  // Content hashes of the files asked for with HASH. Saved to the file given
+  // by the --hash-index option.
+  static HashIndex hashIndex = new HashIndex(null);
+
+  // Compress downloads when the client offers a codec and the file looks
+  // compressible. Turned off with --compress=off.
+  static boolean compression = true;
+
+  // Upload limits shared by every connection. Set by the --rate and
+  // --client-rate options and changed at runtime from the console.
+  static BandwidthScheduler bandwidth = new BandwidthScheduler(0, 0);
+
+  // Bounds the number of sessions served at once. Sized by the
+  // --max-sessions and --queue options.
+  static AdmissionControl admission;
+
+  // Counters and histograms reported by STATS and the --metrics-port
+  static final Metrics metrics = new Metrics();
+
+  // Connection events, written in the background to the terminal or the file
+  // given by the --log option. Ignores events until it is started.
+  static EventLog log = new EventLog(null, 0, false);
+
   public static void main(String args[]) {
 
-    ServerSocket server = null;
+    ServerSocketChannel server = null;
+    Map<String, String> options = new HashMap<>();
+    int port = 50001; // No port specified, bind to default port 50001
 
-    try {
-      if (args.length == 0) {
-        // No port specified, create ServerSocket and bind to default port 50001
-        server = new ServerSocket(50001);
-      } else if (args.length == 1) {
-        // Create ServerSocket on specified port
-        server = new ServerSocket(Integer.parseInt(args[0]));
+    // Options are given as --name=value, the only positional argument is the port
+    for (String arg : args) {
+      if (arg.startsWith("--") && arg.contains("=")) {
+        options.put(arg.substring(2, arg.indexOf("=")), arg.substring(arg.indexOf("=") + 1));
+      } else if (!options.containsKey("port")) {
+        options.put("port", arg);
       } else {
-        System.err.println("Usage: java Server [port]");
+        System.err.println(USAGE);
         System.exit(-1);
       }
+    }
+
+    try {
+      if (options.containsKey("port")) {
+        port = Integer.parseInt(options.get("port"));
+      }
+      // Every engine accepts through a channel so the NIO engine can register
+      // the accepted sockets with its selector
+      server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(port));
+    } catch (NumberFormatException ex) {
+      System.err.println(USAGE);
+      System.exit(-1);
     } catch (IOException ex) {
       System.err.println("Could not create a ServerSocket");
       ex.printStackTrace();
@@ -51,7 +123,7 @@ class Server {
     // Because a computer can have multiple interfaces that are not simply IPs
     // the results need to be filtered
     try {
-      int port = server.getLocalPort();
+      port = server.socket().getLocalPort();
 
       ArrayList<String> interfaces = new ArrayList<>();
       // Get enumeration of all the computer's network devices addresses
@@ -80,31 +152,131 @@ class Server {
       e.printStackTrace();
     }
 
-    // Server is bound to a port, wait for connections in a loop
-    waitForConnection(server);
+    String transfer = options.getOrDefault("transfer", "zerocopy");
+    if (!transfer.equals("zerocopy") && !transfer.equals("copy")) {
+      System.err.println(USAGE);
+      System.exit(-1);
+    }
+    zeroCopy = transfer.equals("zerocopy");
 
-    System.exit(0);
-  }
+    String compress = options.getOrDefault("compress", "auto");
+    if (!compress.equals("auto") && !compress.equals("off")) {
+      System.err.println(USAGE);
+      System.exit(-1);
+    }
+    compression = compress.equals("auto");
 
-  /**
-   * Waits for incoming connections with the server. Once a client connection
-   * is received, it accepts it and then creates a new thread to handle the
-   * connection. This allows multiple clients to connect to the server
-   * simultaneously
-   *
-   * @param server server socket that is bound to a port number
-   */
-  private static void waitForConnection(ServerSocket server) {
+    try {
+      int capacity = Integer.parseInt(options.getOrDefault("dircache", "1024"));
+      if (capacity < 0) {
+        throw new NumberFormatException();
+      }
+      directoryCache = new DirectoryCache(capacity);
+    } catch (NumberFormatException ex) {
+      System.err.println(USAGE);
+      System.exit(-1);
+    }
+
+    try {
+      fileCache = new FileCache(
+          parseSize(options.getOrDefault("filecache", "64M")),
+          parseSize(options.getOrDefault("filecache-small", "1M")));
+    } catch (NumberFormatException ex) {
+      System.err.println(USAGE);
+      System.exit(-1);
+    }
+
+    try {
+      bandwidth.setRates(parseSize(options.getOrDefault("rate", "0")),
+          parseSize(options.getOrDefault("client-rate", "0")));
+    } catch (NumberFormatException ex) {
+      System.err.println(USAGE);
+      System.exit(-1);
+    }
+    startConsole();
+
+    String index = options.getOrDefault("hash-index",
+        new File(System.getProperty("user.home"), ".download-server-hashes").getPath());
+    hashIndex = new HashIndex(index.equals("off") ? null : new File(index));
+    startIndexSaver();
 
-    Socket client = null;
+    try {
+      int maxSessions = Integer.parseInt(options.getOrDefault("max-sessions", "1000"));
+      int queueLength = Integer.parseInt(options.getOrDefault("queue", "100"));
+      if (maxSessions < 0 || queueLength < 0) {
+        throw new NumberFormatException();
+      }
+      admission = new AdmissionControl(maxSessions, queueLength);
+    } catch (NumberFormatException ex) {
+      System.err.println(USAGE);
+      System.exit(-1);
+    }
 
-    // Runtime hook to handle when a user presses Ctrl+C to close the server daemon
+    String logTarget = options.getOrDefault("log", "console");
+    String logFull = options.getOrDefault("log-full", "drop");
+    try {
+      if (!logFull.equals("drop") && !logFull.equals("block")) {
+        throw new NumberFormatException();
+      }
+      log = new EventLog(logTarget.equals("console") ? null : new File(logTarget),
+          parseSize(options.getOrDefault("log-size", "10M")),
+          logFull.equals("block"));
+      if (!logTarget.equals("off")) {
+        log.start();
+      }
+    } catch (NumberFormatException ex) {
+      System.err.println(USAGE);
+      System.exit(-1);
+    } catch (IOException ex) {
+      System.err.println("Could not open the log file " + logTarget);
+      System.exit(-1);
+    }
+
+    if (options.containsKey("metrics-port")) {
+      try {
+        startMetricsEndpoint(Integer.parseInt(options.get("metrics-port")));
+      } catch (NumberFormatException ex) {
+        System.err.println(USAGE);
+        System.exit(-1);
+      } catch (IOException ex) {
+        System.err.println("Could not open the metrics port");
+        ex.printStackTrace();
+        System.exit(-1);
+      }
+    }
+
+    int workers = Runtime.getRuntime().availableProcessors() * 2;
+    try {
+      if (options.containsKey("workers")) {
+        workers = Integer.parseInt(options.get("workers"));
+      }
+      if (workers < 1) {
+        throw new NumberFormatException();
+      }
+    } catch (NumberFormatException ex) {
+      System.err.println(USAGE);
+      System.exit(-1);
+    }
+
+    // Runtime hook to handle when a user presses Ctrl+C to close the server daemon.
+    // Registered once every option is parsed, so exiting on a bad option doesn't
+    // run it before the caches and the log exist
+    final ServerSocketChannel serverChannel = server;
     Runtime.getRuntime().addShutdownHook(new Thread() {
       public void run() {
         try {
           Thread.sleep(200);
+          log.close();
           System.out.println("Closing server socket...");
-          server.close();
+          serverChannel.close();
+          System.out.println("Directory cache: " + directoryCache.getHits() + " hits, "
+              + directoryCache.getMisses() + " misses");
+          System.out.printf("File cache: %d hits, %d misses (%.1f%% hit ratio)%n",
+              fileCache.getHits(), fileCache.getMisses(), fileCache.getHitRatio() * 100);
+          System.out.println("Sessions: " + admission.getAdmitted() + " served, "
+              + admission.getRejected() + " refused as busy");
+          hashIndex.save();
+          System.out.println("Hash index: " + hashIndex.size() + " files");
         } catch (IOException e) {
           System.err.println("Error closing server socket");
           e.printStackTrace();
@@ -115,12 +287,49 @@ class Server {
       }
     });
 
-    // infinite loop waiting for new connections in main thread'
+    // Server is bound to a port, wait for connections with the chosen engine
+    String engine = options.getOrDefault("engine", "thread");
+    switch (engine) {
+      case "thread":
+        waitForConnection(server, null);
+        break;
+      case "virtual":
+        waitForConnection(server, virtualThreadExecutor());
+        break;
+      case "nio":
+        System.out.println("Selector engine with " + workers + " worker threads");
+        new SelectorEngine(server, workers).run();
+        break;
+      default:
+        System.err.println("Unknown engine: " + engine);
+        System.err.println(USAGE);
+        System.exit(-1);
+    }
+
+    System.exit(0);
+  }
+
+  /**
+   * Waits for incoming connections with the server. Once a client connection
+   * is received, it accepts it and then hands it to a thread to handle the
+   * connection. This allows multiple clients to connect to the server
+   * simultaneously
+   *
+   * @param server   server socket channel that is bound to a port number
+   * @param executor runs each connection, a new platform thread is created per
+   *                 connection when null
+   */
+  private static void waitForConnection(ServerSocketChannel server, Executor executor) {
+
+    // infinite loop waiting for new connections in main thread
     // Close server daemon with Ctrl-C
-    while (true) {
+    while (server.isOpen()) {
+      SocketChannel client = null;
       try {
         // Accept any incoming connections
         client = server.accept();
+      } catch (ClosedChannelException ex) {
+        break; // Server socket was closed by the shutdown hook
       } catch (IOException ex) {
         System.err.println("ServerSocket: Error Connecting with Client");
         ex.printStackTrace();
@@ -128,306 +337,186 @@ class Server {
 
       //    Only execute if client has actually connected (!= null)
       if (client != null) {
-        // Create a new thread and pass it the client connection socket
-        // connection
-        new Thread(new ClientConnection(client)).start();
+        ClientConnection connection = new ClientConnection(client.socket());
+        Runnable session;
+        if (executor == null) {
+          // Create a new thread and pass it the client connection socket
+          session = () -> new Thread(connection).start();
+        } else {
+          session = () -> executor.execute(connection);
+        }
+        // Over the session limit the connection waits or is told to retry
+        if (!admission.admit(session)) {
+          connection.refuse(admission.retryAfter());
+        }
       }
     }
   }
-}
-
-/**
- * ClientConnection class is responsible for handling individual connections and
- * sending and receiving data from client to server and vice versa. Implements
- * the runnable interface so that each instance can be executed as a separate
- * thread.
- */
-class ClientConnection implements Runnable {
-
-  private final Socket client;
-  private PrintWriter outStream;
-  private BufferedReader inStream;
 
   /**
-   * Constructor. Takes the connected client socket as a parameter.
-   *
-   * @param client socket that is connected with the client
+   * Saves the hash index once a minute on a daemon thread, so hashes computed
+   * before a crash are not computed again after the restart.
    */
-  ClientConnection(Socket client) {
-    this.client = client;
-  }
-
-  /**
-   * Default method implemented by the Runnable interface. It gets called when a
-   * new instance of ClientConnection is created. Starts clientHandler() function
-   */
-  public void run() {
-    clientHandler();
+  private static void startIndexSaver() {
+    Thread saver = new Thread(() -> {
+      while (true) {
+        try {
+          Thread.sleep(60000);
+          hashIndex.save();
+        } catch (InterruptedException ex) {
+          return;
+        } catch (IOException ex) {
+          System.err.println("Could not save the hash index: " + ex.getMessage());
+        }
+      }
+    }, "Hash Index");
+    saver.setDaemon(true);
+    saver.start();
   }
 
   /**
-   * Responsible for sending and receiving data from a single client. Loops
-   * indefinitely until client sends a disconnect request. Calls appropriate
-   * functions for other client commands.
+   * Reads commands typed into the server's terminal on a daemon thread, so the
+   * limits can be changed without restarting the server. Ends quietly when
+   * the server has no console input.
+   *
+   *   rate                          shows the current limits
+   *   rate total [per-connection]   sets them, 0 means unlimited
    */
-  private void clientHandler() {
-
-    boolean run = true;
-    // Initialize the current directory file to the program's directory
-    File currentDirectory = new File(System.getProperty("user.dir"));
-    String rawInput = ""; // Full client request
-    String parsedCommand = ""; // Command portion of client request
-
-
-    try {
-      // Create server input and output streams
-      outStream = new PrintWriter(client.getOutputStream(), true);
-      inStream = new BufferedReader(new InputStreamReader(client.getInputStream()));
-    } catch (IOException ex) {
-      System.err.println("Error Creating Input and Output Streams");
-      ex.printStackTrace();
-    }
-
-    System.out.println(Thread.currentThread().getName() +
-        ": Client connection from " + client.getInetAddress());
-
-    // Send client a message that they have successfully connected
-    outStream.println("HELLO");
-
-    // Loop until client chooses to exit
-    while (run) {
+  private static void startConsole() {
+    Thread console = new Thread(() -> {
+      BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+      String line;
       try {
-        rawInput = inStream.readLine();
-
-        // Get the command token (first word) from user input
-        if (rawInput.split("\\s+").length >= 2) {
-          parsedCommand = rawInput.split("\\s+")[0];
-        } else {
-          parsedCommand = rawInput;
+        while ((line = in.readLine()) != null) {
+          String[] words = line.trim().split("\\s+");
+          if (words[0].isEmpty()) {
+            continue;
+          }
+          if (!words[0].equalsIgnoreCase("rate") || words.length > 3) {
+            System.out.println("Console: rate [total [per-connection]]");
+            continue;
+          }
+          try {
+            if (words.length > 1) {
+              bandwidth.setRates(parseSize(words[1]), words.length > 2
+                  ? parseSize(words[2]) : bandwidth.getConnectionRate());
+            }
+            System.out.println("Bandwidth: " + describeRate(bandwidth.getGlobalRate())
+                + " total, " + describeRate(bandwidth.getConnectionRate())
+                + " per connection, " + bandwidth.getActive() + " downloading");
+          } catch (NumberFormatException ex) {
+            System.out.println("Console: rates are bytes per second, such as 500000, 512K or 10M");
+          }
         }
-
       } catch (IOException ex) {
-        System.err.println("Error Reading From Input Stream. Closing " +
-            "connection");
-        ex.printStackTrace();
-        break;
-      }
-
-      switch (parsedCommand.toUpperCase()) {
-        case "BYE":
-          System.out.println(Thread.currentThread().getName() +
-              ": BYE Received - Closing connection from " + client.getInetAddress());
-
-          run = false; // break out of loop
-          break;
-        case "PWD":
-          System.out.println(Thread.currentThread().getName() +
-              ": PWD Received");
-          outStream.println(currentDirectory.getPath()); // send file's current path
-          break;
-        case "DIR":
-          System.out.println(Thread.currentThread().getName() +
-              ": DIR Received");
-          outStream.println(getDirectory(currentDirectory.getPath()));
-          break;
-        case "CD":
-          System.out.println(Thread.currentThread().getName() +
-              ": CD Received");
-
-          // Attempt to change directory and store output in String
-          String output = changeDirectory(rawInput, currentDirectory);
-
-          // There was an error navigating to new directory
-          if (!output.equals("DDNE") && !output.equals("PD")) {
-            currentDirectory = new File(output);
-          }
-
-          // Send the function response string regardless, the client will handle
-          // displaying the error codes to the user
-          outStream.println(output);
-          break;
-        case "DOWNLOAD":
-          System.out.println(Thread.currentThread().getName() +
-              ": DOWNLOAD Received");
-          sendFile(rawInput, currentDirectory, outStream, inStream);
-          break;
-        default:
-          outStream.println("Client Request Error.");
-          System.out.println(Thread.currentThread().getName() +
-              ": Client sent invalid command");
+        // No console, nothing to read
       }
-    }
-
-    // Close the client connection when finished.
-    try {
-      client.close();
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
+    }, "Console");
+    console.setDaemon(true);
+    console.start();
   }
 
   /**
-   * Display the contents of the clients current working directory.
-   * Separates the results by file and folder. Users can download files and enter
-   * folders.
+   * Serves the metrics as plain text over HTTP on the loopback interface, so
+   * they can be scraped without a protocol client. Any path returns them.
    *
-   * @param directory absolute path String to a file directory
-   * @return String delimited by "#" character between tokens. Each
-   * file/folder has 3 different attributes.
-   * Type: "File: or "Folder"
-   * Size: File or Folder Size in Bytes
-   * Name: File or Folder Name
-   * The client will be responsible for parsing the tokens and
-   * formatting the output.
+   * @param port port to listen on
+   * @throws IOException if the port can't be bound
    */
-  private String getDirectory(String directory) {
-    File folder = new File(directory);
-    File[] directoryListing = folder.listFiles();
-    StringBuilder output = new StringBuilder();
-
-    /* Build a new string with files at the top and directories at the
-       bottom. Delimit each entry with a "#" character. The client will
-       parse the tokens from the long string that the server sends. Each
-       directory item has a total of 3 different details about it.
-    */
-    if (directoryListing != null) {
-      for (File file : directoryListing) {
-        if (file.isFile()) {
-          // Put all the files before the folder listings
-          output.insert(0, "File#" +
-              +file.length() +
-              "#" + file.getName() + "#");
-        } else if (file.isDirectory()) {
-          output.append("Folder");
-          output.append("#");
-          output.append("-");
-          output.append("#");
-          output.append(file.getName());
-          output.append("#");
-        }
-      }
-
-      // If length is 0, the folder was empty
-      if (output.length() == 0) {
-        output.append("EMPTY");
+  private static void startMetricsEndpoint(int port) throws IOException {
+    HttpServer endpoint = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    endpoint.createContext("/", exchange -> {
+      byte[] body = statistics().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
       }
-    }
+    });
+    endpoint.start(); // Runs on its own dispatcher thread
+    System.out.println("Metrics on http://" + InetAddress.getLoopbackAddress().getHostAddress()
+        + ":" + endpoint.getAddress().getPort() + "/metrics");
+  }
 
-    return output.toString();
+  /**
+   * Builds the metrics report, with the counts kept by the directory cache,
+   * the admission control and the bandwidth scheduler added.
+   *
+   * @return the report, one sample per line
+   */
+  static String statistics() {
+    Map<String, Number> gauges = new LinkedHashMap<>();
+    gauges.put("sessions_waiting", admission.getWaiting());
+    gauges.put("sessions_refused_total", admission.getRejected());
+    gauges.put("downloads_active", bandwidth.getActive());
+    gauges.put("dircache_hits_total", directoryCache.getHits());
+    gauges.put("dircache_misses_total", directoryCache.getMisses());
+    gauges.put("filecache_hits_total", fileCache.getHits());
+    gauges.put("filecache_misses_total", fileCache.getMisses());
+    gauges.put("filecache_hit_ratio", fileCache.getHitRatio());
+    gauges.put("filecache_resident_bytes", fileCache.getResidentBytes());
+    gauges.put("filecache_mapped_bytes", fileCache.getMappedBytes());
+    gauges.put("log_dropped_total", log.getDropped());
+    BufferPool.DIRECT.report(gauges);
+    BufferPool.HEAP.report(gauges);
+    return metrics.report(gauges);
   }
 
   /**
-   * Reads the client request and parses the new directory path given. Makes sure
-   * that the given path exists, is a directory, and the server has read permissions
-   * Return the path if success, otherwise return an error code.
+   * Parses a size such as "500000", "512K", "10M" or "1G". The suffixes are
+   * powers of 1024. Used for every size option and argument, such as the
+   * cache and log sizes and the SEARCH size bounds, and for the bandwidth
+   * limits, which are sizes per second.
    *
-   * @param rawInput         the entire request string from the client
-   * @param currentDirectory the server's current working directory for the client
-   * @return Returns the new file's absolute path on success.
-   * Returns "PD" if user does not have read permissions
-   * Returns "DDNE" if the directory doesn't exist
+   * @param size the size in bytes
+   * @return the size
+   * @throws NumberFormatException if the size is malformed or negative
    */
-  private String changeDirectory(String rawInput,
-                                 File currentDirectory) {
-    File newFilePath;
-
-    //Create a new string excluding the "CD" part of the array
-    String targetDir = rawInput.substring(rawInput.indexOf(" ")).trim();
-
-
-    //Go up a level to parent directory
-    if (targetDir.equals("..")) {
-      newFilePath = new File(currentDirectory.getParent());
-      // If input contains a "/", user entered a full file path
-    } else if (targetDir.contains(File.separator)) {
-      newFilePath = new File(targetDir);
-    } else { // Input is a relative path
-      newFilePath = new File(currentDirectory, targetDir);
+  static long parseSize(String size) {
+    size = size.trim().toUpperCase();
+    long unit = 1;
+    if (size.endsWith("K")) {
+      unit = 1024;
+    } else if (size.endsWith("M")) {
+      unit = 1024 * 1024;
+    } else if (size.endsWith("G")) {
+      unit = 1024 * 1024 * 1024;
     }
-
-    // Check if the input file/directory exists, is a directory, and has read permissions
-    if (newFilePath.exists() && newFilePath.isDirectory() && newFilePath.canRead()) {
-      return newFilePath.getAbsolutePath(); // Success, return new
-    } else if (!newFilePath.exists() || !newFilePath.isDirectory()) {
-      return "DDNE"; // Directory does not exist
-    } else if (!newFilePath.canRead()) {
-      return "PD"; // Permission denied
+    if (unit != 1) {
+      size = size.substring(0, size.length() - 1);
     }
-    // Return directory does not exists generic error code otherwise
-    return "DDNE";
+    long value = Long.parseLong(size);
+    if (value < 0) {
+      throw new NumberFormatException("Negative size");
+    }
+    return value * unit;
   }
 
   /**
-   * Send a file to the connected client. Client must send the filename. Server
-   * checks if the filename exists, sends READY, client confirms the download,
-   * sends READY, server sends the file size, client receives the file size.
-   * Server starts sending the file in 1mb chunks. Client receives data.
-   *
-   * @param rawInput  - The entire input string received from the Client
-   * @param directory - The client's current working director
-   * @param outStream - Data output stream to the client
-   * @param inStream  - Data input stream from the client
+   * @param rate bytes per second, 0 for unlimited
+   * @return the rate for display
    */
-  private void sendFile(String rawInput, File directory,
-                        PrintWriter outStream, BufferedReader inStream) {
-
-    // Create a new string excluding the command
-    String fileName = rawInput.substring(rawInput.indexOf(" ")).trim();
-
-    BufferedInputStream fileReader = null;
-    OutputStream bytesOut;
-    int bytesSent;
-    byte[] buffer = new byte[1000000]; // Can transfer 1mb at a time
-
-    // Set file to the filename the user gives in their request
-    File file = new File(directory, fileName);
-
-    /* Make sure that given file exists, is a file not a directory, and the
-       server has read permissions for the file */
-    if (file.isFile() && file.exists() && file.canRead()) {
-      try {
-        // Create a new stream to read from source file
-        fileReader = new BufferedInputStream(new FileInputStream(file));
-
-      } catch (FileNotFoundException e) {
-        System.err.println("Could not create file reader stream");
-        e.printStackTrace();
-      }
-
-      // Tell the client that the server is ready to send the file
-      outStream.println("READY");
-
-      try {
-        // Get client response after sending "READY"
-        if (inStream.readLine().equals("READY")) {
-          bytesOut = client.getOutputStream();
-
-          // Send the file length before sending the file
-          outStream.println(file.length());
-
-          // Make sure fileReader stream has been initialized before reading
-          if (fileReader != null) {
-            // Keep reading from file and sending to client until all data is sent or error
-            while ((bytesSent = fileReader.read(buffer, 0, buffer.length)) != -1) {
-              bytesOut.write(buffer, 0, bytesSent);
-            }
-
-            System.out.println(Thread.currentThread().getName() + ": "
-                + file.getName() + " sent to client");
-            fileReader.close(); // Close the file input stream
-            bytesOut.flush();   // Flush the data output stream
-          }
+  private static String describeRate(long rate) {
+    return rate == 0 ? "unlimited" : rate + " bytes/s";
+  }
 
-        } else {
-          System.out.println("\tClient has aborted the download");
-        }
-      } catch (IOException e) {
-        System.err.println("Download command could not get client response.");
-        e.printStackTrace();
-      }
-    } else {
-      outStream.println("FNF");
+  /**
+   * Creates a virtual-thread-per-task executor. Virtual threads only exist on
+   * Java 21 and newer so the factory method is looked up reflectively, keeping
+   * the server compilable with Java 8.
+   *
+   * @return executor that starts a new virtual thread for each connection
+   */
+  private static ExecutorService virtualThreadExecutor() {
+    try {
+      Method factory = java.util.concurrent.Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException ex) {
+      System.err.println("The virtual engine requires Java 21 or newer");
+      System.exit(-1);
+      return null;
     }
   }
 }
-
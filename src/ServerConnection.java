@@ -0,0 +1,118 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: ServerConnection.java
+ * Purpose:  Opens a connection to the server and reads its greeting,
+ *           waiting and trying again while the server is busy. Shared
+ *           by the client and the load generator.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Client.java LoadGenerator.java
+ */
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * ServerConnection opens a connection and reads the server's greeting. A
+ * server that is full answers "BUSY seconds" instead and closes the
+ * connection. The client then waits at least that long before connecting
+ * again, doubling the wait after every refusal. A random extra of up to half
+ * the wait is added so clients refused together don't all return together.
+ */
+class ServerConnection implements Closeable {
+
+  // Number of times a BUSY server is tried again. Set by the --retries option.
+  static int retries = 5;
+
+  // Longest wait between two attempts in seconds
+  private static final int MAX_WAIT = 120;
+
+  private static final Random jitter = new Random();
+
+  final Socket socket;
+  final InputStream in;   // Buffered stream positioned after the greeting
+  final String greeting;
+
+  private ServerConnection(Socket socket, InputStream in, String greeting) {
+    this.socket = socket;
+    this.in = in;
+    this.greeting = greeting;
+  }
+
+  /**
+   * Connects to the server, waiting and trying again while it is busy.
+   *
+   * @param host the server name or IP address to connect to
+   * @param port the port number to connect to
+   * @return the connection, its greeting already read
+   * @throws BusyException if the server was still busy after every retry
+   * @throws IOException   if the connection can't be made
+   */
+  static ServerConnection open(String host, int port) throws IOException {
+    for (int attempt = 0; ; attempt++) {
+      Socket socket = new Socket(host, port);
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      String greeting;
+      try {
+        greeting = Protocol.readLine(in);
+      } catch (IOException ex) {
+        socket.close();
+        throw ex;
+      }
+
+      if (greeting == null || !greeting.startsWith(Protocol.BUSY)) {
+        return new ServerConnection(socket, in, greeting);
+      }
+      socket.close();
+
+      if (attempt >= retries) {
+        throw new BusyException("Server is busy, gave up after " + (attempt + 1) + " attempts");
+      }
+
+      int retryAfter = 1;
+      try {
+        retryAfter = Math.max(1, Integer.parseInt(greeting.substring(Protocol.BUSY.length()).trim()));
+      } catch (NumberFormatException ex) {
+        // No hint, wait the minimum
+      }
+      double wait = Math.min(MAX_WAIT, retryAfter * Math.pow(2, attempt));
+      wait += jitter.nextDouble() * wait / 2;
+
+      System.out.printf("Server is busy, trying again in %.1f seconds (%d of %d)%n",
+          wait, attempt + 1, retries);
+      try {
+        Thread.sleep((long) (wait * 1000));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for the server");
+      }
+    }
+  }
+
+  /**
+   * Closes the connection.
+   */
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+
+  /**
+   * Thrown when the server stays busy.
+   */
+  static class BusyException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    BusyException(String message) {
+      super(message);
+    }
+  }
+}
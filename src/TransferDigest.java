@@ -0,0 +1,126 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: TransferDigest.java
+ * Purpose:  Checksum that the server computes while it sends a
+ *           file and the client computes while it saves the file.
+ *           Shared by the client and the server.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java Client.java
+ */
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * TransferDigest hides the difference between the fast java.util.zip
+ * checksums (CRC32, ADLER32) and the cryptographic MessageDigest algorithms
+ * (SHA-256, MD5, ...). Both ends of a transfer create one with the algorithm
+ * the client asked for, feed it every byte as it goes over the wire and compare
+ * the hex strings at the end, so the file never has to be read a second time.
+ */
+class TransferDigest {
+
+  private final String algorithm;
+  private final Checksum checksum;
+  private final MessageDigest digest;
+
+  /**
+   * Constructor. Exactly one of checksum and digest is used.
+   *
+   * @param algorithm name of the algorithm as sent over the wire
+   * @param checksum  java.util.zip checksum, or null
+   * @param digest    message digest, or null
+   */
+  private TransferDigest(String algorithm, Checksum checksum, MessageDigest digest) {
+    this.algorithm = algorithm;
+    this.checksum = checksum;
+    this.digest = digest;
+  }
+
+  /**
+   * Creates a digest for the named algorithm.
+   *
+   * @param algorithm CRC32, ADLER32 or any MessageDigest algorithm name
+   * @return the digest, or null if the algorithm is not supported
+   */
+  static TransferDigest create(String algorithm) {
+    String name = algorithm.toUpperCase();
+
+    switch (name) {
+      case "CRC32":
+        return new TransferDigest(name, new CRC32(), null);
+      case "ADLER32":
+        return new TransferDigest(name, new Adler32(), null);
+      default:
+        try {
+          return new TransferDigest(name, null, MessageDigest.getInstance(name));
+        } catch (NoSuchAlgorithmException ex) {
+          return null;
+        }
+    }
+  }
+
+  /**
+   * Adds bytes to the digest.
+   *
+   * @param bytes  array holding the data
+   * @param offset position of the first byte
+   * @param length number of bytes
+   */
+  void update(byte[] bytes, int offset, int length) {
+    if (checksum != null) {
+      checksum.update(bytes, offset, length);
+    } else {
+      digest.update(bytes, offset, length);
+    }
+  }
+
+  /**
+   * Adds the remaining bytes of a buffer to the digest. The buffer position is
+   * moved to its limit.
+   *
+   * @param buffer buffer holding the data
+   */
+  void update(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.position(buffer.limit());
+    } else if (checksum instanceof CRC32) {
+      ((CRC32) checksum).update(buffer); // Reads direct buffers in place
+    } else if (checksum instanceof Adler32) {
+      ((Adler32) checksum).update(buffer);
+    } else {
+      digest.update(buffer);
+    }
+  }
+
+  /**
+   * @return the digest of everything added so far as a lowercase hex string
+   */
+  String finish() {
+    if (checksum != null) {
+      return String.format("%08x", checksum.getValue());
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * @return the algorithm name as sent over the wire
+   */
+  String getAlgorithm() {
+    return algorithm;
+  }
+}
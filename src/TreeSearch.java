@@ -0,0 +1,333 @@
+/*
+ * Author: Evan Buss
+ * Major: Computer Science
+ * Creation Date: October 18, 2026
+ * Course: CSC328 - 020 Network Programming
+ * Assignment: Download Client / Server
+ * Filename: TreeSearch.java
+ * Purpose:  Parallel walk of a folder and everything below it for the
+ *           SEARCH command. Matches are handed to the connection as
+ *           they are found.
+ * Language: Java 8 (1.8.0_101)
+ * Compilation Command: javac Server.java
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * TreeSearch walks a folder tree with fork/join: every folder is listed by
+ * its own task and its subfolders are forked as they are found, so the walk
+ * spreads over every core and idle workers steal folders from busy ones.
+ * Symbolic links are not followed, a link can't send the walk in circles or
+ * out of the tree.
+ *
+ * Reading the attributes of an entry takes a stat call, which costs more
+ * than listing it. Like find, the walk uses the link count of a folder,
+ * which on most Unix file systems is 2 plus its number of subfolders: once
+ * that many subfolders were seen, the remaining entries are known to be
+ * files and only those whose names match are read. File systems that don't
+ * count links this way report fewer than 2, and every entry is read.
+ *
+ * Matches are rows in the "Type#Size#Path" format of LIST, with the path
+ * relative to the folder searched. They are queued for the connection, which
+ * sends them while the walk goes on. The queue is bounded, so a client that
+ * reads slowly holds up the walk instead of filling the heap. A folder whose
+ * match finds the queue full doesn't wait for room: it keeps its place in the
+ * listing, sets itself aside and gives its worker back to the pool. The
+ * connection puts the folders set aside back in the pool once it has taken
+ * half of the queue. A client that stops reading therefore stops only its
+ * own search. Closing the search stops the walk.
+ *
+ * One pool sized to the number of cores is shared by every search.
+ */
+class TreeSearch implements Closeable {
+
+  private static final ForkJoinPool POOL =
+      new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+  // Matches found but not taken by the connection yet
+  private static final int QUEUED = 10000;
+
+  private final Path root;
+  private final PathMatcher glob; // Matched against names, null when searching by regex
+  private final Pattern regex;    // Found anywhere in the relative path
+  private final long minSize;
+  private final long maxSize;
+  private final long newerThan;   // Modification time bounds in milliseconds
+  private final long olderThan;
+  private final LinkedBlockingQueue<String> matches = new LinkedBlockingQueue<>(QUEUED);
+  private final LongAdder visited = new LongAdder();
+  private final AtomicInteger active = new AtomicInteger(); // Folders not done yet
+  private final ConcurrentLinkedQueue<Walk> parked = new ConcurrentLinkedQueue<>();
+  private volatile boolean stopped = false;
+
+  /**
+   * Constructor. Nothing is read until start().
+   *
+   * @param root      folder to search
+   * @param glob      glob the names must match, or null
+   * @param regex     regular expression found in the relative paths, or null
+   * @param minSize   smallest file size matched, 0 for any
+   * @param maxSize   largest file size matched, Long.MAX_VALUE for any
+   * @param newerThan oldest modification time matched, 0 for any
+   * @param olderThan newest modification time matched, Long.MAX_VALUE for any
+   * @throws IllegalArgumentException if the glob or regular expression is invalid
+   */
+  TreeSearch(File root, String glob, String regex, long minSize, long maxSize,
+             long newerThan, long olderThan) {
+    this.root = root.toPath();
+    this.glob = glob != null ? FileSystems.getDefault().getPathMatcher("glob:" + glob) : null;
+    this.regex = regex != null ? Pattern.compile(regex) : null;
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.newerThan = newerThan;
+    this.olderThan = olderThan;
+  }
+
+  /**
+   * Starts the walk in the background.
+   */
+  void start() {
+    schedule(new Walk(root, ""));
+  }
+
+  /**
+   * Waits for the next match. Resumes the folders that were set aside once
+   * the queue has room again.
+   *
+   * @param millis longest time to wait
+   * @return the next match, or null if none was found in time
+   * @throws InterruptedException if the connection thread is interrupted
+   */
+  String poll(long millis) throws InterruptedException {
+    String row = matches.poll(millis, TimeUnit.MILLISECONDS);
+    if (!parked.isEmpty() && matches.remainingCapacity() >= QUEUED / 2) {
+      Walk walk;
+      while ((walk = parked.poll()) != null) {
+        run(walk);
+      }
+    }
+    return row;
+  }
+
+  /**
+   * @return true once the walk is over and every match was taken
+   */
+  boolean isFinished() {
+    return active.get() == 0 && matches.isEmpty();
+  }
+
+  /**
+   * @return number of files and folders looked at so far
+   */
+  long getVisited() {
+    return visited.sum();
+  }
+
+  /**
+   * Stops the walk. Matches still queued are dropped.
+   */
+  @Override
+  public void close() {
+    stopped = true;
+    matches.clear();
+    closeParked();
+  }
+
+  /**
+   * Ends the folders that were set aside, after the search was stopped.
+   */
+  private void closeParked() {
+    Walk walk;
+    while ((walk = parked.poll()) != null) {
+      walk.finish();
+    }
+  }
+
+  /**
+   * Adds a folder to the walk.
+   */
+  private void schedule(Walk walk) {
+    active.incrementAndGet();
+    run(walk);
+  }
+
+  /**
+   * Hands a folder to the pool. Pool workers push it on their own queue,
+   * where idle workers can steal it.
+   */
+  private void run(Walk walk) {
+    if (ForkJoinTask.getPool() == POOL) {
+      ForkJoinTask.adapt(walk).fork();
+    } else {
+      POOL.execute(walk);
+    }
+  }
+
+  /**
+   * @return true if the entry passes every filter
+   */
+  private boolean matches(Path path, String relative, BasicFileAttributes attributes) {
+    if (!nameMatches(path, relative)) {
+      return false;
+    }
+    // Size limits only make sense for files
+    if (attributes.isDirectory()) {
+      if (minSize > 0 || maxSize < Long.MAX_VALUE) {
+        return false;
+      }
+    } else if (attributes.size() < minSize || attributes.size() > maxSize) {
+      return false;
+    }
+    long modified = attributes.lastModifiedTime().toMillis();
+    return modified >= newerThan && modified <= olderThan;
+  }
+
+  /**
+   * @return true if the name or path passes the glob or regular expression
+   */
+  private boolean nameMatches(Path path, String relative) {
+    if (glob != null && !glob.matches(path.getFileName())) {
+      return false;
+    }
+    return regex == null || regex.matcher(relative).find();
+  }
+
+  /**
+   * @return number of subfolders of a folder going by its link count, or -1
+   * if the file system doesn't tell
+   */
+  private static int subfolders(Path folder) {
+    try {
+      Object links = Files.getAttribute(folder, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+      if (links instanceof Integer && (Integer) links >= 2) {
+        return (Integer) links - 2;
+      }
+    } catch (IOException | UnsupportedOperationException | IllegalArgumentException ex) {
+      // No unix attribute view
+    }
+    return -1;
+  }
+
+  /**
+   * Lists one folder and adds a task for each of its subfolders. Runs again
+   * from where it stopped after it was set aside.
+   */
+  private class Walk implements Runnable {
+    private final Path folder;
+    private final String prefix; // Path of the folder relative to the root, ending in "/"
+    private DirectoryStream<Path> stream;
+    private Iterator<Path> entries;
+    private int folders;         // Subfolders going by the link count
+    private int found = 0;       // Subfolders seen so far
+    private String pending;      // Match that didn't fit in the queue
+
+    Walk(Path folder, String prefix) {
+      this.folder = folder;
+      this.prefix = prefix;
+    }
+
+    @Override
+    public void run() {
+      if (stopped) {
+        finish();
+        return;
+      }
+      try {
+        if (entries == null) {
+          if (matches.remainingCapacity() == 0) {
+            park(); // Don't open folders the connection isn't ready for
+            return;
+          }
+          folders = subfolders(folder);
+          stream = Files.newDirectoryStream(folder);
+          entries = stream.iterator();
+        }
+        if (pending != null) {
+          if (!matches.offer(pending)) {
+            park();
+            return;
+          }
+          pending = null;
+        }
+
+        while (!stopped && entries.hasNext()) {
+          Path path = entries.next();
+          String relative = prefix + path.getFileName();
+
+          // Every subfolder was found, the rest are files
+          if (folders == found && !nameMatches(path, relative)) {
+            visited.increment();
+            continue;
+          }
+          BasicFileAttributes attributes;
+          try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class,
+                LinkOption.NOFOLLOW_LINKS);
+          } catch (IOException ex) {
+            continue; // Deleted meanwhile
+          }
+          if (!attributes.isRegularFile() && !attributes.isDirectory()) {
+            continue;
+          }
+          visited.increment();
+
+          if (attributes.isDirectory()) {
+            found++;
+            schedule(new Walk(path, relative + "/"));
+          }
+          if (matches(path, relative, attributes)) {
+            String row = attributes.isDirectory() ? "Folder#-#" + relative
+                : "File#" + attributes.size() + "#" + relative;
+            if (!matches.offer(row)) {
+              pending = row; // The connection is behind, step aside
+              park();
+              return;
+            }
+          }
+        }
+      } catch (IOException | DirectoryIteratorException ex) {
+        // Folder can't be read, search the rest of the tree
+      }
+      finish();
+    }
+
+    /**
+     * Sets the folder aside until the connection has taken some matches.
+     * Another thread may resume it right away, so nothing is touched after.
+     */
+    private void park() {
+      parked.add(this);
+      if (stopped) {
+        closeParked(); // close() may have missed it
+      }
+    }
+
+    /**
+     * Closes the listing and counts the folder as done.
+     */
+    private void finish() {
+      if (stream != null) {
+        try {
+          stream.close();
+        } catch (IOException ignored) {
+          // Nothing left to release
+        }
+      }
+      active.decrementAndGet();
+    }
+  }
+}